@@ -0,0 +1,111 @@
+package dcpu.bench;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares JMH results (-rf csv) with a stored baseline and reports benchmarks which got slower.
+ * <p/>
+ * Usage: BaselineCheck baseline.csv current.csv [tolerance%]
+ * <p/>
+ * Exit code is 1 if any benchmark regressed by more than tolerance (default 5%). Throughput scores must not drop,
+ * time scores must not grow; benchmarks missing from either file are listed but not counted.
+ */
+public class BaselineCheck {
+
+    private static class Result {
+        String mode;
+        double score;
+        double error;
+        String unit;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BaselineCheck baseline.csv current.csv [tolerance%]");
+            System.exit(2);
+        }
+        double tolerance = args.length > 2 ? Double.parseDouble(args[2]) / 100 : 0.05;
+        Map<String, Result> baseline = read(args[0]);
+        Map<String, Result> current = read(args[1]);
+        int regressions = 0;
+        for (Map.Entry<String, Result> entry : current.entrySet()) {
+            Result now = entry.getValue();
+            Result was = baseline.get(entry.getKey());
+            if (was == null) {
+                System.out.printf("NEW        %s: %.3f %s%n", entry.getKey(), now.score, now.unit);
+                continue;
+            }
+            double change = (now.score - was.score) / was.score;
+            // throughput: higher is better, everything else is time per op
+            double gain = "thrpt".equals(now.mode) ? change : -change;
+            String verdict = gain < -tolerance ? "REGRESSION" : gain > tolerance ? "IMPROVED  " : "OK        ";
+            if (gain < -tolerance) regressions++;
+            System.out.printf("%s %s: %.3f -> %.3f %s (%+.1f%%, error %.3f)%n", verdict, entry.getKey(), was.score,
+                    now.score, now.unit, change * 100, now.error);
+        }
+        for (String key : baseline.keySet()) {
+            if (!current.containsKey(key)) System.out.printf("MISSING    %s%n", key);
+        }
+        System.out.printf("%d regression(s) over %.0f%%%n", regressions, tolerance * 100);
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    /**
+     * Reads JMH csv, keyed on benchmark name plus parameters
+     */
+    static Map<String, Result> read(String file) throws IOException {
+        Map<String, Result> results = new LinkedHashMap<String, Result>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            List<String> header = split(reader.readLine());
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().length() == 0) continue;
+                List<String> cells = split(line);
+                StringBuilder key = new StringBuilder(cells.get(0));
+                for (int i = 7; i < cells.size() && i < header.size(); i++) {
+                    key.append(' ').append(header.get(i).replace("Param: ", "")).append('=').append(cells.get(i));
+                }
+                Result result = new Result();
+                result.mode = cells.get(1);
+                result.score = Double.parseDouble(cells.get(4));
+                result.error = cells.get(5).length() == 0 || "NaN".equals(cells.get(5)) ? 0 : Double.parseDouble(cells.get(5));
+                result.unit = cells.get(6);
+                results.put(key.toString(), result);
+            }
+        } finally {
+            reader.close();
+        }
+        return results;
+    }
+
+    private static List<String> split(String line) {
+        List<String> cells = new ArrayList<String>();
+        StringBuilder cell = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    cell.append('"');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == ',' && !quoted) {
+                cells.add(cell.toString());
+                cell.setLength(0);
+            } else {
+                cell.append(c);
+            }
+        }
+        cells.add(cell.toString());
+        return cells;
+    }
+}
@@ -0,0 +1,55 @@
+package dcpu.bench;
+
+import dcpu.Dcpu;
+import dcpu.hw.MonitorLEM1802;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to render one LEM1802 frame of random text
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MonitorBenchmark {
+
+    private static final char VRAM = 0x8000;
+
+    private MonitorLEM1802 monitor;
+    private int[] pixels;
+
+    @Setup
+    public void setUp() {
+        Dcpu cpu = new Dcpu();
+        monitor = new MonitorLEM1802();
+        cpu.attach(monitor);
+        Random random = new Random(1);
+        for (int i = 0; i < MonitorLEM1802.MON_ROWS * MonitorLEM1802.MON_COLS; i++) {
+            cpu.mem[VRAM + i] = (char) random.nextInt(0x10000);
+        }
+        cpu.setreg(Dcpu.Reg.A, MonitorLEM1802.MONINT_MEM_MAP_SCREEN);
+        cpu.setreg(Dcpu.Reg.B, VRAM);
+        monitor.interrupt();
+        pixels = new int[monitor.getWidth() * monitor.getHeight()];
+    }
+
+    @Benchmark
+    public int[] render() {
+        monitor.render(pixels);
+        return pixels;
+    }
+}
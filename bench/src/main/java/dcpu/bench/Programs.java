@@ -0,0 +1,79 @@
+package dcpu.bench;
+
+import dcpu.Assembler;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Guest programs for benchmarks, loaded from resources
+ */
+final class Programs {
+
+    private Programs() {
+    }
+
+    /**
+     * Reads source of program at resource path, like "/dcpu/demos/HelloWorldMonitor.asm"
+     */
+    static String source(String path) {
+        InputStream stream = Programs.class.getResourceAsStream(path);
+        if (stream == null) throw new IllegalArgumentException("No program " + path);
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(stream, "UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                sb.append(line).append('\n');
+            }
+            reader.close();
+            return sb.toString();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static char[] assemble(String path) {
+        return new Assembler().assemble(source(path));
+    }
+
+    /**
+     * Deterministic source of given number of lines, mixing labels, basic and special instructions and data
+     */
+    static String synthetic(int lines) {
+        String[] regs = {"A", "B", "C", "X", "Y", "Z", "I", "J"};
+        String[] ops = {"SET", "ADD", "SUB", "MUL", "DIV", "AND", "BOR", "XOR", "SHL", "IFE", "IFN", "STI"};
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            String r1 = regs[i % regs.length];
+            String r2 = regs[(i * 3 + 1) % regs.length];
+            switch (i % 8) {
+                case 0:
+                    sb.append(":l").append(i).append(" SET ").append(r1).append(", 0x").append(Integer.toHexString(i * 7));
+                    break;
+                case 1:
+                    sb.append("    ").append(ops[i % ops.length]).append(' ').append(r1).append(", [").append(r2)
+                            .append('+').append(i).append(']');
+                    break;
+                case 2:
+                    sb.append("    JSR l").append(i - 2);
+                    break;
+                case 3:
+                    sb.append("    DAT \"text\", 0x").append(Integer.toHexString(i)).append(", 0");
+                    break;
+                case 4:
+                    sb.append("    SET [0x8000+").append(r1).append("], ").append(r2).append(" ; comment");
+                    break;
+                case 5:
+                    sb.append("    IFG ").append(r1).append(", ").append(i % 30);
+                    break;
+                default:
+                    sb.append("    ").append(ops[(i / 8) % ops.length]).append(' ').append(r1).append(", ").append(r2);
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,79 @@
+package dcpu.bench;
+
+import dcpu.Dcpu;
+import dcpu.OpcodeProfiler;
+import dcpu.hw.GenericClock;
+import dcpu.hw.GenericKeyboard;
+import dcpu.hw.MonitorLEM1802;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * run(n) speed on guest programs, in instructions per microsecond (MIPS). Programs which halt are restarted.
+ * <p/>
+ * Engine "profiled" is the interpreter with {@link OpcodeProfiler} installed; its overhead is the difference to
+ * "interpreter".
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RunBenchmark {
+
+    static final int STEPS = 100000;
+    private static final int CHUNK = 1000;
+
+    @Param({"/dcpu/bench/sort.asm", "/dcpu/bench/bignum.asm", "/dcpu/bench/memcpy.asm",
+            "/dcpu/bench/interrupts.asm", "/dcpu/bench/lemtext.asm", "/dcpu/bench/recursion.asm",
+            "/dcpu/demos/HelloWorldMonitor.asm"})
+    public String program;
+
+    @Param({"interpreter", "jit", "profiled"})
+    public String engine;
+
+    private char[] binary;
+    private Dcpu cpu;
+
+    @Setup
+    public void setUp() {
+        binary = Programs.assemble(program);
+        cpu = new Dcpu();
+        // same devices as in ExtAsmDemo and BenchmarkRunner
+        cpu.attach(new GenericKeyboard(MonitorLEM1802.MANUFACTURER_ID, 16));
+        cpu.attach(new MonitorLEM1802());
+        cpu.attach(new GenericClock(MonitorLEM1802.MANUFACTURER_ID));
+        cpu.setJitEnabled("jit".equals(engine));
+        if ("profiled".equals(engine)) new OpcodeProfiler().install(cpu);
+        restart();
+    }
+
+    private void restart() {
+        cpu.memzero();
+        cpu.upload(binary);
+        cpu.reset();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STEPS)
+    public long run() {
+        for (int i = 0; i < STEPS; i += CHUNK) {
+            if (cpu.halt) restart();
+            cpu.run(CHUNK);
+        }
+        return cpu.cycles;
+    }
+}
@@ -0,0 +1,69 @@
+package dcpu.bench;
+
+import dcpu.Assembler;
+import dcpu.Dcpu;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Interpreter single-step throughput and interrupt dispatch cost
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StepBenchmark {
+
+    // mix of 1-3 cycle basic ops, memory operands and a taken/not taken branch
+    private static final String LOOP = "" +
+            "       IAS handler\n" +
+            ":loop  ADD A, 1\n" +
+            "       SET [0x1000+I], A\n" +
+            "       MUL B, [0x1000+I]\n" +
+            "       ADD I, 1\n" +
+            "       AND I, 0xff\n" +
+            "       IFE I, 0\n" +
+            "       SET C, B\n" +
+            "       SET PC, loop\n" +
+            ":handler ADD X, A\n" +
+            "       RFI 0\n";
+
+    private Dcpu cpu;
+
+    @Setup
+    public void setUp() {
+        cpu = new Dcpu();
+        cpu.upload(new Assembler().assemble(LOOP));
+        cpu.step(false); // IAS
+    }
+
+    @Benchmark
+    public long step() {
+        cpu.step(false);
+        return cpu.cycles;
+    }
+
+    /**
+     * Device-style interrupt: enqueue, dispatch into handler, one handler instruction, RFI
+     */
+    @Benchmark
+    public long interruptDispatch() {
+        cpu.interrupt((char) 1);
+        cpu.step(false);
+        cpu.step(false);
+        cpu.step(false);
+        return cpu.cycles;
+    }
+}
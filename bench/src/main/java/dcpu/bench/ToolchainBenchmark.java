@@ -0,0 +1,63 @@
+package dcpu.bench;
+
+import dcpu.Assembler;
+import dcpu.Disassembler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Assembler lines and disassembler words per millisecond
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ToolchainBenchmark {
+
+    static final int LINES = 2000;
+    static final int WORDS = 4096;
+
+    private String source;
+    private final char[] mem = new char[0x10000];
+    private final Disassembler disassembler = new Disassembler();
+
+    @Setup
+    public void setUp() {
+        source = Programs.synthetic(LINES);
+        char[] binary = new Assembler().assemble(source);
+        // tile the binary, so disassembly of WORDS words never runs off the code
+        for (int i = 0; i < mem.length; i++) {
+            mem[i] = binary[i % binary.length];
+        }
+        disassembler.init(mem);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public char[] assemble() {
+        return new Assembler().assemble(source);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WORDS)
+    public void disassemble(Blackhole bh) {
+        disassembler.setAddress(0);
+        while (disassembler.getAddress() < WORDS) {
+            bh.consume(disassembler.next(true));
+        }
+    }
+}
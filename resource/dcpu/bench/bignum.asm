@@ -0,0 +1,69 @@
+; Benchmark: 256-bit Fibonacci numbers, added with ADX carry chains and checked by SBX borrow chains
+; X, Y, Z point to F(n-2), F(n-1), F(n); every number is 16 words, least significant first
+; [rounds] counts terms, [failures] counts terms for which F(n) - F(n-1) != F(n-2)
+
+             SET X, fa
+             SET Y, fb
+             SET Z, fc
+             SET [fb], 1
+
+:term        SET I, X                   ; Z = X
+             SET J, Z
+             SET B, Z
+             ADD B, 16
+:copy        STI [J], [I]
+             IFN J, B
+                 SET PC, copy
+
+             SET I, Y                   ; Z += Y, STI moves pointers without touching EX
+             SET J, Z
+             SET EX, 0
+:add         ADX [J], [I]
+             STI A, A
+             IFN J, B
+                 SET PC, add
+
+             SET I, Z                   ; fd = Z
+             SET J, fd
+             SET C, fd
+             ADD C, 16
+:copy2       STI [J], [I]
+             IFN J, C
+                 SET PC, copy2
+
+             SET I, Y                   ; fd -= Y
+             SET J, fd
+             SET EX, 0
+:sub         SET A, EX                  ; SBX adds EX as unsigned 0xffff, so a borrow coming in is lost
+             IFG [J], [I]               ; when [J] <= [I] - keep it going by hand
+                 SET A, 0
+             SBX [J], [I]
+             IFN A, 0
+                 SET EX, 0xffff
+             STI A, A
+             IFN J, C
+                 SET PC, sub
+
+             SET I, X                   ; fd == X ?
+             SET J, fd
+:cmp         IFN [I], [J]
+                 SET PC, fail
+             STI A, A
+             IFN J, C
+                 SET PC, cmp
+             SET PC, rotate
+:fail        ADD [failures], 1
+
+:rotate      SET A, X                   ; X, Y, Z = Y, Z, X
+             SET X, Y
+             SET Y, Z
+             SET Z, A
+             ADD [rounds], 1
+             SET PC, term
+
+:rounds      DAT 0
+:failures    DAT 0
+:fa          RESERVE 16 dat 0
+:fb          RESERVE 16 dat 0
+:fc          RESERVE 16 dat 0
+:fd          RESERVE 16 dat 0
@@ -0,0 +1,42 @@
+; Benchmark: interrupt-heavy code - software interrupt storms, queued with IAQ, on top of 60 Hz clock ticks
+; [ticks] counts clock interrupts, [counts+1..3] count software interrupts by message, [rounds] counts main loops
+
+             IAS handler
+             HWN Z                      ; find generic clock
+:next_hw     IFE Z, 0
+                 SET PC, main
+             SUB Z, 1
+             HWQ Z
+             IFE B, 0x12d0
+                 IFE A, 0xb402
+                     SET PC, clock
+             SET PC, next_hw
+:clock       SET A, 0                   ; tick 60 times per second...
+             SET B, 1
+             HWI Z
+             SET A, 2                   ; ...with message 0x10
+             SET B, 0x10
+             HWI Z
+
+:main        INT 1
+             ADD [rounds], 1
+             IAQ 1                      ; queue two, then let them in back to back
+             INT 2
+             INT 3
+             IAQ 0
+             SET PC, main
+
+:handler     IFE A, 0x10
+                 SET PC, tick
+             SET PUSH, B
+             SET B, A
+             AND B, 3
+             ADD [counts+B], 1
+             SET B, POP
+             RFI 0
+:tick        ADD [ticks], 1
+             RFI 0
+
+:rounds      DAT 0
+:ticks       DAT 0
+:counts      DAT 0, 0, 0, 0
@@ -0,0 +1,59 @@
+; Benchmark: heavy LEM1802 text output - prints numbered lines and scrolls the whole screen for each one
+; Y is the line number; [rounds] counts printed lines
+
+             HWN Z                      ; find LEM1802
+:next_hw     IFE Z, 0
+                 SET PC, end_hw
+             SUB Z, 1
+             HWQ Z
+             IFE B, 0x7349
+                 IFE A, 0xf615
+                     SET [mon_hw], Z
+             SET PC, next_hw
+:end_hw      SET A, 0                   ; screen at 0x8000
+             SET B, 0x8000
+             HWI [mon_hw]
+             SET Y, 0
+
+:line        SET I, 0x8020              ; scroll up one row
+             SET J, 0x8000
+:scroll      STI [J], [I]
+             STI [J], [I]
+             STI [J], [I]
+             STI [J], [I]
+             IFN I, 0x8180
+                 SET PC, scroll
+:clear       STI [J], 0                 ; clear last row
+             IFN J, 0x8180
+                 SET PC, clear
+
+             SET J, 0x8160              ; print message...
+             SET I, message
+:str         IFE [I], 0
+                 SET PC, hex
+             SET A, [I]
+             BOR A, 0xf000
+             STI [J], A
+             SET PC, str
+
+:hex         SET C, 12                  ; ...and line number in hex
+:digit       SET A, Y
+             SHR A, C
+             AND A, 0xf
+             ADD A, hexchars
+             SET A, [A]
+             BOR A, 0xe100
+             SET [J], A
+             ADD J, 1
+             SUB C, 4
+             IFN C, 0xfffc
+                 SET PC, digit
+
+             ADD Y, 1
+             ADD [rounds], 1
+             SET PC, line
+
+:message     DAT "Benchmark line 0x", 0
+:hexchars    DAT "0123456789abcdef"
+:mon_hw      DAT 0
+:rounds      DAT 0
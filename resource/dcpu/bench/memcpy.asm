@@ -0,0 +1,45 @@
+; Benchmark: 4K word block copies with unrolled STI (forward) and STD (backward) loops
+; [rounds] counts forward+backward pairs, [failures] counts copies with wrong last word
+
+             SET I, 0x1000              ; fill source with a pattern
+:fill        SET [I], I
+             XOR [I], 0x5a5a
+             ADD I, 1
+             IFN I, 0x2000
+                 SET PC, fill
+
+:round       SET I, 0x1000              ; forward: 0x1000..0x1fff -> 0x3000..0x3fff
+             SET J, 0x3000
+:fwd         STI [J], [I]
+             STI [J], [I]
+             STI [J], [I]
+             STI [J], [I]
+             STI [J], [I]
+             STI [J], [I]
+             STI [J], [I]
+             STI [J], [I]
+             IFN I, 0x2000
+                 SET PC, fwd
+
+             SET I, 0x3fff              ; backward: 0x3fff..0x3000 -> 0x5fff..0x5000
+             SET J, 0x5fff
+:back        STD [J], [I]
+             STD [J], [I]
+             STD [J], [I]
+             STD [J], [I]
+             STD [J], [I]
+             STD [J], [I]
+             STD [J], [I]
+             STD [J], [I]
+             IFN I, 0x2fff
+                 SET PC, back
+
+             SET A, 0x1fff
+             XOR A, 0x5a5a
+             IFN [0x5fff], A
+                 ADD [failures], 1
+             ADD [rounds], 1
+             SET PC, round
+
+:rounds      DAT 0
+:failures    DAT 0
@@ -0,0 +1,26 @@
+; Benchmark: JSR recursion - naive recursive Fibonacci
+; [rounds] counts computed fib(16), [failures] counts wrong results
+
+:start       SET A, 16
+             JSR fib
+             ADD [rounds], 1
+             IFN A, 987
+                 ADD [failures], 1
+             SET PC, start
+
+; A = fib(A), clobbers B
+:fib         IFL A, 2
+                 SET PC, POP
+             SET PUSH, A
+             SUB A, 1
+             JSR fib
+             SET B, POP                 ; n
+             SET PUSH, A                ; fib(n - 1)
+             SET A, B
+             SUB A, 2
+             JSR fib
+             ADD A, POP
+             SET PC, POP
+
+:rounds      DAT 0
+:failures    DAT 0
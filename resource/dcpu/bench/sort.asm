@@ -0,0 +1,45 @@
+; Benchmark: insertion sort of 256 pseudo-random words, forever
+; [rounds] counts sorted arrays, [failures] counts arrays found unsorted afterwards
+
+             SET X, 0x1234              ; LCG seed
+:round       SET I, 0
+:fill        MUL X, 25173               ; X = X * 25173 + 13849
+             ADD X, 13849
+             SET [array+I], X
+             ADD I, 1
+             IFN I, 256
+                 SET PC, fill
+
+             SET I, 1
+:outer       SET A, [array+I]           ; key
+             SET J, I
+             ADD J, array               ; J points to the hole
+:inner       IFE J, array
+                 SET PC, place
+             SET B, J
+             SUB B, 1
+             IFL A, [B]                 ; key < previous: shift previous up
+                 SET PC, shift
+             SET PC, place
+:shift       SET [J], [B]
+             SET J, B
+             SET PC, inner
+:place       SET [J], A
+             ADD I, 1
+             IFN I, 256
+                 SET PC, outer
+
+             SET J, array
+:check       ADD J, 1
+             IFE J, array_end
+                 SET PC, sorted
+             IFL [J], [J-1]
+                 ADD [failures], 1
+             SET PC, check
+:sorted      ADD [rounds], 1
+             SET PC, round
+
+:rounds      DAT 0
+:failures    DAT 0
+:array       RESERVE 256 dat 0
+:array_end   DAT 0
@@ -1,8 +1,12 @@
 package dcpu;
 
+import java.io.BufferedReader;
+import java.io.IOException;
 import java.util.BitSet;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Assembler map, which contains label-address and line-address maps, and also code/data bitmap
@@ -47,4 +51,33 @@ public class AsmMap {
     public Integer bin2src(char addr) {
         return binMap.get(addr);
     }
+
+    /**
+     * Reads map in the format written by ExtAsmDemo -M. Only the first address of each source line is stored there,
+     * so binMap is restored for those addresses only.
+     */
+    public static AsmMap read(BufferedReader in) throws IOException {
+        Pattern symbolPattern = Pattern.compile("^;; \"(.*)\"=0x(\\p{XDigit}+)$");
+        Pattern linePattern = Pattern.compile("^;; (\\d+)=0x(\\p{XDigit}+)$");
+        Pattern codePattern = Pattern.compile("^;; code 0x(\\p{XDigit}+)-0x(\\p{XDigit}+)$");
+        AsmMap map = new AsmMap();
+        String line;
+        while ((line = in.readLine()) != null) {
+            line = line.trim();
+            Matcher matcher;
+            if ((matcher = symbolPattern.matcher(line)).matches()) {
+                map.symbolMap.put(matcher.group(1), (char) Integer.parseInt(matcher.group(2), 16));
+            } else if ((matcher = linePattern.matcher(line)).matches()) {
+                int srcline = Integer.parseInt(matcher.group(1));
+                char addr = (char) Integer.parseInt(matcher.group(2), 16);
+                map.srcMap.put(srcline, addr);
+                if (!map.binMap.containsKey(addr)) map.binMap.put(addr, srcline);
+            } else if ((matcher = codePattern.matcher(line)).matches()) {
+                map.code.set(Integer.parseInt(matcher.group(1), 16), Integer.parseInt(matcher.group(2), 16) + 1);
+            } else if (line.length() > 0 && !line.startsWith(";;;;")) {
+                throw new IOException("Bad map line: " + line);
+            }
+        }
+        return map;
+    }
 }
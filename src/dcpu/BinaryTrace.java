@@ -0,0 +1,338 @@
+package dcpu;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.locks.LockSupport;
+
+import static dcpu.Dcpu.*;
+
+/**
+ * Traces executed instructions into a channel (usually FileChannel) in compact binary format, as a fast alternative
+ * to printing {@link Tracer}. {@link #decode} turns the file into Tracer's text later.
+ * <p/>
+ * CPU thread only stores fixed-width records into a ring of preallocated batches; a background thread passes full
+ * batches to {@link Sink}. Ring is single-producer single-consumer and synchronized by two volatile counters; when
+ * writer falls behind by the whole ring, CPU thread waits for it.
+ * <p/>
+ * Records are big-endian:
+ * <pre>
+ *  0 long    cycle counter before instruction started
+ *  8 char    PC
+ * 10 char[3] instruction word and the next two words, as executed
+ * 16 char[12] A, B, C, X, Y, Z, I, J, PC, SP, EX, IA after instruction
+ * 40 char    1 if instruction has written RAM, 0 otherwise
+ * 42 char    written address
+ * 44 char    written value
+ * 46 char    unused
+ * </pre>
+ * Default sink writes file which starts with 8-byte magic "DCPUTRC1" and record size (int), followed by the records;
+ * {@link IndexedTraceWriter} writes compressed and indexed file instead. Skipped instructions and interrupt dispatch
+ * are not recorded.
+ */
+public final class BinaryTrace {
+
+    public static final int RECORD_SIZE = 48;
+    public static final int DEFAULT_BATCH_RECORDS = 4096;
+    public static final int DEFAULT_BATCH_COUNT = 8;
+    private static final long MAGIC = 0x4443505554524331L; // DCPUTRC1
+    private static final int HEADER_SIZE = 12;
+    static final int REGS = 12;
+    static final int WRITE_OFFSET = 40;
+    private static final long WAIT_NANOS = 50L * 1000L;
+
+    /**
+     * Receives batches of records on writer thread
+     */
+    public interface Sink {
+        /**
+         * Called by {@link #install}, before any record
+         */
+        void open() throws IOException;
+
+        /**
+         * Called with whole records, between position and limit of buffer
+         */
+        void write(ByteBuffer records) throws IOException;
+
+        /**
+         * Called by {@link #uninstall}, after the last record
+         */
+        void close() throws IOException;
+    }
+
+    private final Sink sink;
+    private final ByteBuffer[] ring;
+    private final int batchBytes;
+    private volatile long published; // batches filled by CPU thread
+    private volatile long consumed; // batches written by writer thread
+    private volatile boolean closed;
+    private volatile IOException error;
+    private ByteBuffer current;
+    private boolean pending; // record is started by preExecute
+    private boolean written; // by instruction of pending record
+    private char writtenAddress;
+    private char writtenValue;
+    private long records;
+    private volatile long waits;
+    private Thread writer;
+    private Dcpu cpu;
+
+    /**
+     * Trace which writes records as they are
+     */
+    public BinaryTrace(WritableByteChannel channel) {
+        this(new RawSink(channel), DEFAULT_BATCH_RECORDS, DEFAULT_BATCH_COUNT);
+    }
+
+    public BinaryTrace(Sink sink) {
+        this(sink, DEFAULT_BATCH_RECORDS, DEFAULT_BATCH_COUNT);
+    }
+
+    public BinaryTrace(WritableByteChannel channel, int batchRecords, int batchCount) {
+        this(new RawSink(channel), batchRecords, batchCount);
+    }
+
+    public BinaryTrace(Sink sink, int batchRecords, int batchCount) {
+        if (batchRecords <= 0 || batchCount <= 0) throw new IllegalArgumentException("Bad batch size or count");
+        this.sink = sink;
+        batchBytes = batchRecords * RECORD_SIZE;
+        ring = new ByteBuffer[batchCount];
+        for (int i = 0; i < batchCount; i++) {
+            ring[i] = ByteBuffer.allocate(batchBytes);
+        }
+    }
+
+    /**
+     * Opens sink and starts tracing on a new writer thread
+     */
+    public void install(Dcpu cpu) throws IOException {
+        sink.open();
+        this.cpu = cpu;
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "BinaryTrace-writer");
+        writer.setDaemon(true);
+        writer.start();
+        cpu.stepListener.addListener(listener);
+        cpu.addMemoryTraps(writeTraps);
+    }
+
+    /**
+     * Stops tracing, waits until every record is written, and closes sink. Channel of default sink is left open
+     *
+     * @throws IOException if writing has failed (records after the failure are lost)
+     */
+    public void uninstall() throws IOException {
+        if (cpu != null) {
+            cpu.stepListener.removeListener(listener);
+            cpu.removeMemoryTraps(writeTraps);
+        }
+        cpu = null;
+        if (current != null && current.position() > 0) publish();
+        closed = true;
+        if (writer != null) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        writer = null;
+        if (error != null) throw error;
+        sink.close();
+    }
+
+    /**
+     * Number of records traced so far
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    /**
+     * Number of times CPU thread had to wait for writer
+     */
+    public long getWaits() {
+        return waits;
+    }
+
+    private final CharListener listener = new CharListener() {
+        @Override
+        public void preExecute(char pc) {
+            if (current == null && !acquire()) return;
+            char[] mem = cpu.mem;
+            ByteBuffer b = current;
+            b.putLong(cpu.cycles - 1); // step has counted the fetch already
+            b.putChar(pc);
+            b.putChar(mem[pc]);
+            b.putChar(mem[(pc + 1) & 0xffff]);
+            b.putChar(mem[(pc + 2) & 0xffff]);
+            pending = true;
+        }
+
+        @Override
+        public void postExecute(char pc) {
+            if (!pending) return;
+            pending = false;
+            char[] mem = cpu.mem;
+            ByteBuffer b = current;
+            for (int i = 0; i < REGS; i++) {
+                b.putChar(mem[M_A + i]);
+            }
+            if (written) {
+                b.putChar((char) 1).putChar(writtenAddress).putChar(writtenValue).putChar((char) 0);
+                written = false;
+            } else {
+                b.putLong(0);
+            }
+            records++;
+            if (b.position() == batchBytes) publish();
+        }
+    };
+
+    // every RAM write of instructions, at most one per instruction
+    private final MemoryTraps writeTraps = new MemoryTraps() {
+        {
+            trap(writePages, 0, RAM_SIZE - 1);
+        }
+
+        @Override
+        void read(char pc, int addr, char value) {
+        }
+
+        @Override
+        void written(char pc, int addr, char old, char value) {
+            if (!pending) return;
+            written = true;
+            writtenAddress = (char) addr;
+            writtenValue = value;
+        }
+    };
+
+    private void publish() {
+        current.flip();
+        current = null;
+        published++;
+    }
+
+    /**
+     * Takes the next batch of the ring, waiting for writer to free it. Returns false if writer has failed
+     */
+    private boolean acquire() {
+        boolean waited = false;
+        while (published - consumed >= ring.length) {
+            if (error != null) return false;
+            if (!waited) waits++;
+            waited = true;
+            LockSupport.parkNanos(WAIT_NANOS);
+        }
+        if (error != null) return false;
+        current = ring[(int) (published % ring.length)];
+        current.clear();
+        return true;
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                if (consumed < published) {
+                    sink.write(ring[(int) (consumed % ring.length)]);
+                    consumed++;
+                } else if (closed) {
+                    if (consumed == published) return;
+                } else {
+                    LockSupport.parkNanos(WAIT_NANOS);
+                }
+            }
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static final class RawSink implements Sink {
+        private final WritableByteChannel channel;
+
+        RawSink(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void open() throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putLong(MAGIC).putInt(RECORD_SIZE).flip();
+            writeFully(channel, header);
+        }
+
+        @Override
+        public void write(ByteBuffer records) throws IOException {
+            writeFully(channel, records);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Prints trace in the format of {@link Tracer}: disassembled instructions, and registers after each one if
+     * requested
+     *
+     * @throws IOException if trace is not in this format, or can't be read
+     */
+    public static void decode(ReadableByteChannel in, PrintStream out, boolean registers) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (!readFully(in, header) || header.getLong(0) != MAGIC) throw new IOException("Not a binary trace");
+        int recordSize = header.getInt(8);
+        if (recordSize < WRITE_OFFSET) throw new IOException("Bad record size " + recordSize);
+        ByteBuffer batch = ByteBuffer.allocate(recordSize * 1024);
+        char[] instruction = new char[3];
+        char[] regs = new char[REGS];
+        Disassembler disassembler = new Disassembler();
+        disassembler.init(instruction);
+        while (true) {
+            batch.clear();
+            boolean end = !readFully(in, batch);
+            batch.flip();
+            if (batch.remaining() % recordSize != 0) throw new EOFException("Truncated record");
+            for (int at = 0; at < batch.limit(); at += recordSize) {
+                char pc = batch.getChar(at + 8);
+                for (int i = 0; i < 3; i++) {
+                    instruction[i] = batch.getChar(at + 10 + 2 * i);
+                }
+                disassembler.setAddress(0);
+                out.printf("%04x: %s\n", (int) pc, disassembler.next(true));
+                if (registers) {
+                    for (int i = 0; i < REGS; i++) {
+                        regs[i] = batch.getChar(at + 16 + 2 * i);
+                    }
+                    Tracer.outputRegisters(out, regs[0], regs[1], regs[2], regs[3], regs[4], regs[5], regs[6],
+                            regs[7], regs[M_SP - M_A], regs[M_EX - M_A]);
+                }
+            }
+            if (end) return;
+        }
+    }
+
+    /**
+     * Fills buffer, returns false if end of input was reached first
+     */
+    private static boolean readFully(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) < 0) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,184 @@
+package dcpu;
+
+/**
+ * Options of breakpoint, managed by {@link Debugger}: condition, ignore count and log message.
+ * <p/>
+ * Each time the instruction is about to be executed, condition is evaluated (it is compiled once, when set). If it is
+ * false, nothing happens. Otherwise hit counter is incremented, and the first {@link #getIgnoreCount()} hits are
+ * ignored. After that breakpoint fires: a breakpoint with log message is a tracepoint, which prints the message and
+ * lets CPU run; otherwise CPU is stopped as usual.
+ */
+public final class Breakpoint {
+
+    public final char address;
+    private volatile Expression condition;
+    private String conditionSource;
+    private volatile long ignoreCount;
+    private volatile long hits;
+    private volatile Expression.Template log;
+    private String logSource;
+
+    Breakpoint(char address) {
+        this.address = address;
+    }
+
+    /**
+     * @param source expression (see {@link Expression}), or null to fire unconditionally
+     * @param map    labels of the program, may be null
+     * @throws IllegalArgumentException if condition can't be compiled; old condition is kept then
+     */
+    public void setCondition(String source, AsmMap map) {
+        if (source == null || source.trim().length() == 0) {
+            condition = null;
+            conditionSource = null;
+        } else {
+            condition = Expression.compile(source, map);
+            conditionSource = source.trim();
+        }
+    }
+
+    public String getCondition() {
+        return conditionSource;
+    }
+
+    /**
+     * Number of hits (with condition true) to ignore before breakpoint fires
+     */
+    public void setIgnoreCount(long ignoreCount) {
+        if (ignoreCount < 0) throw new IllegalArgumentException("Ignore count must not be negative");
+        this.ignoreCount = ignoreCount;
+    }
+
+    public long getIgnoreCount() {
+        return ignoreCount;
+    }
+
+    /**
+     * Makes breakpoint a tracepoint
+     *
+     * @param source message with {expr} and {expr:d} parts, or null to stop CPU
+     * @param map    labels of the program, may be null
+     * @throws IllegalArgumentException if expressions of the message can't be compiled
+     */
+    public void setLog(String source, AsmMap map) {
+        if (source == null || source.length() == 0) {
+            log = null;
+            logSource = null;
+        } else {
+            log = Expression.compileTemplate(source, map);
+            logSource = source;
+        }
+    }
+
+    public String getLog() {
+        return logSource;
+    }
+
+    public boolean isTracepoint() {
+        return log != null;
+    }
+
+    /**
+     * Number of times instruction was reached with condition true
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    public void resetHits() {
+        hits = 0;
+    }
+
+    /**
+     * Sets options from text "[if CONDITION] [ignore N] [log MESSAGE]", as typed in debugger UI. Options not mentioned
+     * are cleared. MESSAGE extends to the end of text
+     *
+     * @throws IllegalArgumentException on syntax error; breakpoint is not changed then
+     */
+    public void configure(String options, AsmMap map) {
+        String rest = options.trim();
+        String logText = null;
+        int logAt = keyword(rest, "log");
+        if (logAt >= 0) {
+            logText = rest.substring(Math.min(logAt + 4, rest.length())).trim();
+            rest = rest.substring(0, logAt).trim();
+        }
+        long ignore = 0;
+        int ignoreAt = keyword(rest, "ignore");
+        if (ignoreAt >= 0) {
+            String count = rest.substring(ignoreAt + "ignore".length()).trim();
+            try {
+                ignore = Long.parseLong(count);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad ignore count '" + count + "'");
+            }
+            rest = rest.substring(0, ignoreAt).trim();
+        }
+        String conditionText = null;
+        if (rest.length() > 0) {
+            if (keyword(rest, "if") != 0) throw new IllegalArgumentException("Expected if, ignore or log: " + rest);
+            conditionText = rest.substring(2).trim();
+            if (conditionText.length() == 0) throw new IllegalArgumentException("Missing condition");
+        }
+        // compile everything before changing anything
+        Expression newCondition = conditionText == null ? null : Expression.compile(conditionText, map);
+        Expression.Template newLog = logText == null || logText.length() == 0 ? null
+                : Expression.compileTemplate(logText, map);
+        if (ignore < 0) throw new IllegalArgumentException("Ignore count must not be negative");
+        condition = newCondition;
+        conditionSource = conditionText;
+        ignoreCount = ignore;
+        log = newLog;
+        logSource = newLog == null ? null : logText;
+    }
+
+    /**
+     * Position of word in text, or -1
+     */
+    private static int keyword(String text, String word) {
+        int at = -1;
+        while ((at = text.indexOf(word, at + 1)) >= 0) {
+            boolean before = at == 0 || Character.isWhitespace(text.charAt(at - 1));
+            int end = at + word.length();
+            boolean after = end == text.length() || Character.isWhitespace(text.charAt(end));
+            if (before && after) return at;
+        }
+        return -1;
+    }
+
+    /**
+     * Called when instruction is about to be executed
+     *
+     * @return true if breakpoint fires
+     */
+    boolean hit(Dcpu cpu) {
+        Expression c = condition;
+        if (c != null && !c.test(cpu)) return false;
+        return ++hits > ignoreCount;
+    }
+
+    /**
+     * Message of tracepoint, formatted for current CPU state
+     */
+    String message(Dcpu cpu) {
+        Expression.Template t = log;
+        return t == null ? "" : t.format(cpu);
+    }
+
+    /**
+     * Options in the form accepted by {@link #configure}
+     */
+    public String options() {
+        StringBuilder sb = new StringBuilder();
+        if (conditionSource != null) sb.append("if ").append(conditionSource);
+        if (ignoreCount > 0) sb.append(sb.length() > 0 ? " " : "").append("ignore ").append(ignoreCount);
+        if (logSource != null) sb.append(sb.length() > 0 ? " " : "").append("log ").append(logSource);
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        String options = options();
+        return String.format("0x%04x%s%s, hits %d", (int) address, options.length() > 0 ? " " : "", options, hits);
+    }
+}
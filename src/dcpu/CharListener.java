@@ -0,0 +1,11 @@
+package dcpu;
+
+import java.util.EventListener;
+
+/**
+ * {@link Listener} of char events, such as PC of executed instruction, which doesn't box its argument
+ */
+public interface CharListener extends EventListener {
+    public void preExecute(char pc);
+    public void postExecute(char pc);
+}
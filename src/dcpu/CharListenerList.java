@@ -0,0 +1,95 @@
+package dcpu;
+
+import java.util.Arrays;
+
+/**
+ * Copy-on-write list of {@link CharListener}s, used to notify about executed instructions without boxing PC.
+ * Listeners may be added and removed from any thread (e.g. UI) while CPU thread dispatches events; dispatch sees the
+ * list as it was when the event started, and costs one volatile read when the list is empty.
+ * <p/>
+ * {@link Listener Listener&lt;Character&gt;} can be added too, through an adapter which boxes PC for it only.
+ * Listeners are removed by identity, as in {@link ListenerList}.
+ */
+public class CharListenerList implements CharListener {
+
+    private static final CharListener[] EMPTY = new CharListener[0];
+
+    private volatile CharListener[] listeners = EMPTY;
+
+    /**
+     * Adapts boxed listener to char events
+     */
+    private static final class Adapter implements CharListener {
+        final Listener<Character> listener;
+
+        Adapter(Listener<Character> listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void preExecute(char pc) {
+            listener.preExecute(pc);
+        }
+
+        @Override
+        public void postExecute(char pc) {
+            listener.postExecute(pc);
+        }
+    }
+
+    @Override
+    public void preExecute(char pc) {
+        CharListener[] snapshot = listeners;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i].preExecute(pc);
+        }
+    }
+
+    @Override
+    public void postExecute(char pc) {
+        CharListener[] snapshot = listeners;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i].postExecute(pc);
+        }
+    }
+
+    public synchronized void addListener(CharListener listener) {
+        CharListener[] copy = Arrays.copyOf(listeners, listeners.length + 1);
+        copy[listeners.length] = listener;
+        listeners = copy;
+    }
+
+    public void addListener(Listener<Character> listener) {
+        addListener(new Adapter(listener));
+    }
+
+    public synchronized void removeListener(CharListener listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                remove(i);
+                return;
+            }
+        }
+    }
+
+    public synchronized void removeListener(Listener<Character> listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] instanceof Adapter && ((Adapter) listeners[i]).listener == listener) {
+                remove(i);
+                return;
+            }
+        }
+    }
+
+    private void remove(int index) {
+        CharListener[] copy = listeners.length == 1 ? EMPTY : new CharListener[listeners.length - 1];
+        System.arraycopy(listeners, 0, copy, 0, index);
+        System.arraycopy(listeners, index + 1, copy, index, listeners.length - index - 1);
+        listeners = copy;
+    }
+
+    public boolean isEmpty() {
+        return listeners.length == 0;
+    }
+
+}
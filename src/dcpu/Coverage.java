@@ -0,0 +1,156 @@
+package dcpu;
+
+import java.io.PrintStream;
+import java.util.*;
+
+import static dcpu.Dcpu.BasicOp;
+import static dcpu.Dcpu.RAM_SIZE;
+
+/**
+ * Execution coverage: how many times instruction at each address was executed, and which RAM words were read or
+ * written by instructions (operands, and stack of JSR, RFI and interrupt dispatch; not DMA of devices).
+ * <p/>
+ * Collecting is a counter increment per step and a bit set per memory operand, so it can stay on for every run.
+ * Skipped instructions are not counted as executed. While coverage is installed, compiled code (JIT, static
+ * recompiler) is not used.
+ * <p/>
+ * With {@link AsmMap} of the program, counters are mapped to source lines: a line is executable if it assembled to
+ * code (data lines are ignored), and its hit count is the count of its most executed instruction. Line coverage can be
+ * exported in LCOV tracefile format, for genhtml and CI coverage tools.
+ */
+public final class Coverage {
+
+    private static final boolean[] READS_B = new boolean[1 << Dcpu.C_O_BITLEN]; // by basic opcode
+
+    static {
+        Arrays.fill(READS_B, true);
+        READS_B[BasicOp.SET.code] = READS_B[BasicOp.STI.code] = READS_B[BasicOp.STD.code] = false;
+    }
+
+    final long[] executions = new long[RAM_SIZE];
+    // bits cover registers and constants too, so marking needs no range check
+    private final long[] reads = new long[(Dcpu.M_CV + 32 + 63) / 64];
+    private final long[] writes = new long[(Dcpu.M_CV + 32 + 63) / 64];
+
+    private Dcpu cpu;
+
+    public void install(Dcpu cpu) {
+        this.cpu = cpu;
+        cpu.setCoverage(this);
+    }
+
+    public void uninstall() {
+        if (cpu != null) cpu.setCoverage(null);
+        cpu = null;
+    }
+
+    /**
+     * Operands of executed basic instruction, as addresses in Dcpu.mem
+     */
+    void accessed(BasicOp op, int aa, int ba) {
+        reads[aa >>> 6] |= 1L << aa;
+        if (READS_B[op.code]) reads[ba >>> 6] |= 1L << ba;
+        if (op.modb) writes[ba >>> 6] |= 1L << ba;
+    }
+
+    void read(int addr) {
+        reads[addr >>> 6] |= 1L << addr;
+    }
+
+    void written(int addr) {
+        writes[addr >>> 6] |= 1L << addr;
+    }
+
+    public void reset() {
+        Arrays.fill(executions, 0);
+        Arrays.fill(reads, 0);
+        Arrays.fill(writes, 0);
+    }
+
+    public long getExecutions(int addr) {
+        return executions[addr];
+    }
+
+    public boolean isRead(int addr) {
+        return (reads[addr >>> 6] & (1L << addr)) != 0;
+    }
+
+    public boolean isWritten(int addr) {
+        return (writes[addr >>> 6] & (1L << addr)) != 0;
+    }
+
+    /**
+     * Hit counts of executable source lines, in line order
+     */
+    public SortedMap<Integer, Long> lines(AsmMap map) {
+        SortedMap<Integer, Long> lines = new TreeMap<Integer, Long>();
+        for (Map.Entry<Character, Integer> entry : map.binMap.entrySet()) {
+            int addr = entry.getKey();
+            if (!map.code(addr)) continue;
+            Long hits = lines.get(entry.getValue());
+            if (hits == null || executions[addr] > hits) lines.put(entry.getValue(), executions[addr]);
+        }
+        return lines;
+    }
+
+    /**
+     * Writes line coverage as LCOV tracefile record for one source file
+     *
+     * @param testName test name (TN), may be null
+     */
+    public void writeLcov(PrintStream out, AsmMap map, String sourceFile, String testName) {
+        out.println("TN:" + (testName == null ? "" : testName));
+        out.println("SF:" + sourceFile);
+        int hit = 0;
+        SortedMap<Integer, Long> lines = lines(map);
+        for (Map.Entry<Integer, Long> line : lines.entrySet()) {
+            out.println("DA:" + line.getKey() + "," + line.getValue());
+            if (line.getValue() > 0) hit++;
+        }
+        out.println("LF:" + lines.size());
+        out.println("LH:" + hit);
+        out.println("end_of_record");
+    }
+
+    /**
+     * Prints line coverage (if map is given), memory access summary and top most executed addresses
+     */
+    public void printReport(PrintStream out, AsmMap map, int top) {
+        if (map != null) {
+            SortedMap<Integer, Long> lines = lines(map);
+            int hit = 0;
+            for (Long hits : lines.values()) {
+                if (hits > 0) hit++;
+            }
+            out.printf("lines %d of %d (%.1f%%)%n", hit, lines.size(), lines.isEmpty() ? 0.0 : hit * 100.0 / lines.size());
+        }
+        int executed = 0, read = 0, written = 0, codeWritten = 0;
+        for (int addr = 0; addr < RAM_SIZE; addr++) {
+            if (executions[addr] != 0) executed++;
+            if (isRead(addr)) read++;
+            if (isWritten(addr)) {
+                written++;
+                if (map != null ? map.code(addr) : executions[addr] != 0) codeWritten++;
+            }
+        }
+        out.printf("instructions executed at %d addresses, words read %d, written %d (%d of them code)%n", executed,
+                read, written, codeWritten);
+
+        Integer[] hot = new Integer[executed];
+        for (int addr = 0, i = 0; addr < RAM_SIZE; addr++) {
+            if (executions[addr] != 0) hot[i++] = addr;
+        }
+        Arrays.sort(hot, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                long e1 = executions[o1], e2 = executions[o2];
+                return e1 > e2 ? -1 : e1 < e2 ? 1 : o1.compareTo(o2);
+            }
+        });
+        out.printf("%-6s %14s %8s%n", "addr", "executions", "line");
+        for (int i = 0; i < hot.length && i < top; i++) {
+            Integer line = map == null ? null : map.bin2src((char) (int) hot[i]);
+            out.printf("%04x   %14d %8s%n", hot[i], executions[hot[i]], line == null ? "" : line.toString());
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package dcpu;
+
+/**
+ * Binary min-heap of devices keyed on the cycle they want to be woken up at (see {@link Dcpu.Device#schedule}).
+ * Every device is in the heap at most once and knows its position, so rescheduling and cancelling take O(log n).
+ */
+final class CycleScheduler {
+
+    private Dcpu.Device[] heap = new Dcpu.Device[4];
+    private int size;
+
+    /**
+     * Cycle of the earliest wakeup, Long.MAX_VALUE if nothing is scheduled
+     */
+    long nextDue() {
+        return size == 0 ? Long.MAX_VALUE : heap[0].dueCycle;
+    }
+
+    void schedule(Dcpu.Device device, long cycle) {
+        if (device.heapIndex >= 0) {
+            long old = device.dueCycle;
+            device.dueCycle = cycle;
+            if (cycle < old) {
+                siftUp(device.heapIndex);
+            } else {
+                siftDown(device.heapIndex);
+            }
+            return;
+        }
+        if (size == heap.length) {
+            Dcpu.Device[] nheap = new Dcpu.Device[size * 2];
+            System.arraycopy(heap, 0, nheap, 0, size);
+            heap = nheap;
+        }
+        device.dueCycle = cycle;
+        device.heapIndex = size;
+        heap[size++] = device;
+        siftUp(size - 1);
+    }
+
+    void cancel(Dcpu.Device device) {
+        int index = device.heapIndex;
+        if (index < 0) return;
+        device.heapIndex = -1;
+        Dcpu.Device last = heap[--size];
+        heap[size] = null;
+        if (index == size) return;
+        place(last, index);
+        siftUp(index);
+        siftDown(last.heapIndex);
+    }
+
+    /**
+     * Removes and returns device due at cycles, or null if there is none
+     */
+    Dcpu.Device pollDue(long cycles) {
+        if (size == 0 || heap[0].dueCycle > cycles) return null;
+        Dcpu.Device device = heap[0];
+        cancel(device);
+        return device;
+    }
+
+    private void siftUp(int index) {
+        Dcpu.Device device = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >> 1;
+            if (heap[parent].dueCycle <= device.dueCycle) break;
+            place(heap[parent], index);
+            index = parent;
+        }
+        place(device, index);
+    }
+
+    private void siftDown(int index) {
+        Dcpu.Device device = heap[index];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) break;
+            if (child + 1 < size && heap[child + 1].dueCycle < heap[child].dueCycle) child++;
+            if (device.dueCycle <= heap[child].dueCycle) break;
+            place(heap[child], index);
+            index = child;
+        }
+        place(device, index);
+    }
+
+    private void place(Dcpu.Device device, int index) {
+        heap[index] = device;
+        device.heapIndex = index;
+    }
+}
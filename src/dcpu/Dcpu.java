@@ -1,6 +1,10 @@
 package dcpu;
 
+import dcpu.aot.CompiledProgram;
+import dcpu.jit.Jit;
+
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -71,14 +75,15 @@ public final class Dcpu {
         ADX("ADX", 0x1a, 3, true), SBX("SBX", 0x1b, 3, true),
         STI("STI", 0x1e, 2, true), STD("STD", 0x1f, 2, true);
 
-        private static final Map<Integer, BasicOp> CODE_LOOKUP = new HashMap<Integer, BasicOp>();
+        // indexed by opcode, so the interpreter can look operations up without boxing
+        private static final BasicOp[] CODE_LOOKUP = new BasicOp[1 << C_O_BITLEN];
         private static final Map<String, BasicOp> NAME_LOOKUP = new HashMap<String, BasicOp>();
 
         public static final Set<BasicOp> OPS_IF;
 
         static {
             for (BasicOp op : values()) {
-                CODE_LOOKUP.put(op.code, op);
+                CODE_LOOKUP[op.code] = op;
                 NAME_LOOKUP.put(op.name, op);
             }
             EnumSet<BasicOp> _ops_if = EnumSet.noneOf(BasicOp.class);
@@ -99,7 +104,7 @@ public final class Dcpu {
         public final boolean modb;///< true if operation is of "b = f(a,b)" kind
 
         public static BasicOp l(int code) {
-            return CODE_LOOKUP.get(code);
+            return (code >= 0 && code < CODE_LOOKUP.length) ? CODE_LOOKUP[code] : null;
         }
 
         BasicOp(String name, int code, int cycles, boolean modb) {
@@ -125,11 +130,11 @@ public final class Dcpu {
         public final int cycles;
         public final boolean moda;
 
-        private static final Map<Integer, SpecialOp> CODE_LOOKUP = new HashMap<Integer, SpecialOp>();
+        private static final SpecialOp[] CODE_LOOKUP = new SpecialOp[1 << C_NBI_O_BITLEN];
         private static final Map<String, SpecialOp> NAME_LOOKUP = new HashMap<String, SpecialOp>();
 
         public static SpecialOp l(int code) {
-            return CODE_LOOKUP.get(code);
+            return (code >= 0 && code < CODE_LOOKUP.length) ? CODE_LOOKUP[code] : null;
         }
 
         public static SpecialOp byName(String name) {
@@ -138,7 +143,7 @@ public final class Dcpu {
 
         static {
             for (SpecialOp op : values()) {
-                CODE_LOOKUP.put(op.code, op);
+                CODE_LOOKUP[op.code] = op;
                 NAME_LOOKUP.put(op.name, op);
             }
         }
@@ -155,94 +160,17 @@ public final class Dcpu {
         BASIC, SPECIAL, INVALID;
 
         public static OpType getOpType(int cmd) {
-            int o = (cmd & C_O_MASK);
-            if (BasicOp.l(o) != null) return BASIC;
-
-            int b = (cmd & C_NBI_O_MASK) >> C_NBI_O_SHIFT;
-            if (o == O_NBI && SpecialOp.l(b) != null) return SPECIAL;
-
-            return INVALID;
-        }
-    }
-
-    abstract static class Operation {
-        int cmd;
-        Character pc;
-        int opcode;
-        int a;
-        int b;
-        OpType type;
-
-        Operation(int cmd, Character pc) {
-            this.cmd = cmd;
-            this.pc = pc;
-        }
-
-        abstract int getCycles();
-
-        static Operation createOperation(int cmd, char pc) {
-            OpType opType = OpType.getOpType(cmd);
-            switch (opType) {
-                case BASIC:
-                    return new BasicOperation(cmd, pc);
-                case SPECIAL:
-                    return new SpecialOperation(cmd, pc);
+            switch (Decoder.type(Decoder.decode(cmd))) {
+                case Decoder.T_BASIC:
+                    return BASIC;
+                case Decoder.T_SPECIAL:
+                    return SPECIAL;
                 default:
-                    return new InvalidOperation(cmd, pc);
+                    return INVALID;
             }
         }
     }
 
-    static class BasicOperation extends Operation {
-        BasicOp op;
-
-        BasicOperation(int cmd, Character pc) {
-            super(cmd, pc);
-            type = OpType.BASIC;
-            opcode = cmd & C_O_MASK;
-            op = BasicOp.l(opcode);
-            a = (cmd & C_A_MASK) >> C_A_SHIFT;
-            b = (cmd & C_B_MASK) >> C_B_SHIFT;
-        }
-
-        @Override
-        int getCycles() {
-            return op.cycles;
-        }
-    }
-
-    static class SpecialOperation extends Operation {
-        SpecialOp op;
-
-        SpecialOperation(int cmd, Character pc) {
-            super(cmd, pc);
-            type = OpType.SPECIAL;
-            opcode = (cmd & C_NBI_O_MASK) >> C_NBI_O_SHIFT;
-            op = SpecialOp.l(opcode);
-            a = (cmd & C_NBI_A_MASK) >> C_NBI_A_SHIFT;
-            b = opcode;
-        }
-
-        @Override
-        int getCycles() {
-            return op.cycles;
-        }
-    }
-
-    static class InvalidOperation extends Operation {
-
-        InvalidOperation(int cmd, Character pc) {
-            super(cmd, pc);
-            type = OpType.INVALID;
-        }
-
-        @Override
-        int getCycles() {
-            return 0;
-        }
-
-    }
-
     //////
     // Opcode constants
     public static final int O_NBI = 0x00;
@@ -409,35 +337,23 @@ public final class Dcpu {
     public long cycles = 0;
     private long frequency = DEFAULT_CPU_FREQUENCY;
     private long cyclesPerFrame = frequency / FRAMES_PER_SECOND;
-    private long nanosPerFrame = 1000L * 1000L * 1000L / FRAMES_PER_SECOND;
     private boolean turboMode = false;
+    private final Throttle throttle = new Throttle();
 
     /**
-     * Runs until hitting Opcode 0
+     * Runs until hitting Opcode 0. Unless in turbo mode, execution is paced to the configured frequency (see
+     * {@link Throttle})
      */
     public void run() {
-        long nextTime = System.nanoTime();
         halt = false;
-        long nextCyclesFrame = cycles + cyclesPerFrame;
+        throttle.start(cycles, frequency);
         while (!halt) {
-            sleepUntil(nextTime);
-            while (!halt && (cycles < nextCyclesFrame)) {
-                step(false);
-            }
-            nextCyclesFrame += cyclesPerFrame;
-            nextTime += nanosPerFrame;
-        }
-    }
-
-    private void sleepUntil(long nextTime) {
-        if (!turboMode) {
-            while (System.nanoTime() < nextTime) {
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                }
+            long frameEnd = throttle.nextFrame(cycles, frequency, turboMode);
+            while (!halt && cycles < frameEnd) {
+                execute(Integer.MAX_VALUE);
             }
         }
+        if (stream != null) stream.flush();
     }
 
     /**
@@ -451,71 +367,202 @@ public final class Dcpu {
      * Executes specified number of steps - doesn't sleep
      */
     public void run(int nsteps) {
-        while (nsteps-- > 0) {
-            step(false);
+        while (nsteps > 0) {
+            nsteps -= execute(nsteps);
+        }
+        if (stream != null) stream.flush();
+    }
+
+    /**
+     * Executes until cycle counter reaches targetCycles or CPU halts - doesn't sleep. Compiled blocks may overshoot
+     * target by a few instructions.
+     *
+     * @return true if CPU has halted
+     */
+    public boolean runUntil(long targetCycles) {
+        while (!halt && cycles < targetCycles) {
+            execute(Integer.MAX_VALUE);
+        }
+        if (stream != null) stream.flush();
+        return halt;
+    }
+
+    /**
+     * Executes compiled block of at most maxSteps instructions, if compiled program or JIT has one at PC, or one
+     * step otherwise. Compiled blocks are used only when nothing observes single instructions (see
+     * {@link #isObserved()}) and there is no interrupt to dispatch. Devices are ticked once per block;
+     * history copies code words of the block before it and records its instructions after it.
+     *
+     * @return number of executed instructions
+     */
+    private int execute(int maxSteps) {
+        if ((jit != null || compiledProgram != null) && !isObserved() && !hasInterrupt()) {
+            char entry = mem[M_PC];
+            long entryCycles = cycles;
+            if (history != null) history.enterBlock(mem, entry);
+            int n = (compiledProgram != null) ? compiledProgram.execute(this, mem, maxSteps) : 0;
+            if (n == 0 && jit != null) n = jit.execute(maxSteps);
+            if (n > 0) {
+                if (history != null) history.recordBlock(mem, entry, entryCycles, n);
+                tickDevices();
+                if (history != null && halt) history.halted(this);
+                return n;
+            }
         }
+        step(false);
+        return 1;
     }
 
-    public final ListenerList<Character> stepListener = new ListenerList<Character>();
+    /**
+     * true if there are step listeners, breakpoints, watchpoints, profilers, coverage or execution stream, which need
+     * every instruction to be interpreted. {@link ExecutionHistory} isn't one of them: compiled blocks are recorded
+     * after they exit
+     */
+    public boolean isObserved() {
+        return !stepListener.isEmpty() || breakpoints != null || traps != null || profiler != null || sampler != null
+                || coverage != null || stream != null;
+    }
+
+    private volatile long[] breakpoints = null;
+    private volatile CharListener breakpointHandler = null;
+
+    /**
+     * Use {@link Debugger#setBreakpoint}. Handler is called before executing instruction at address which has its bit
+     * set in the bitmap; null bitmap means no breakpoints, and costs nothing
+     */
+    void setBreakpoints(long[] bitmap, CharListener handler) {
+        if (bitmap != null) breakpointHandler = handler;
+        breakpoints = bitmap;
+    }
+
+    private void hitBreakpoint(char pc) {
+        CharListener handler = breakpointHandler;
+        if (handler != null) handler.preExecute(pc);
+    }
+
+    private volatile MemoryTraps traps = null;
+    private final List<MemoryTraps> trapList = new ArrayList<MemoryTraps>();
+
+    /**
+     * Use {@link Debugger#addWatchpoint}. Instructions report reads and writes of RAM words in pages which have their
+     * trap bit set; without traps, this costs one null check per instruction
+     */
+    synchronized void addMemoryTraps(MemoryTraps t) {
+        if (trapList.contains(t)) return;
+        trapList.add(t);
+        traps = MemoryTraps.combine(trapList);
+    }
+
+    synchronized void removeMemoryTraps(MemoryTraps t) {
+        if (trapList.remove(t)) traps = MemoryTraps.combine(trapList);
+    }
+
+    public final CharListenerList stepListener = new CharListenerList();
 
     /**
      * Execute one operation (skip = false) or skip one operation.
      * <p/>
      * If there is an interrupt pending, jump to IA, but don't execute any instruction
+     * <p/>
+     * Instruction is decoded into primitive locals and dispatched through opcode-indexed tables, so steady-state
+     * execution doesn't allocate anything. PC is boxed only for step listeners added as Listener&lt;Character&gt;.
      */
     public void step(boolean skip) {
-        if (hasInterrupt() && mem[M_IA] != 0) {
+        if (hasInterrupt()) {
             char msg = popIntMsg();
-            // TODO maybe call some interrupt listener?
-            // TODO does interrupt cost any cycles?
-            mem[--mem[M_SP]] = mem[M_PC];
-            mem[--mem[M_SP]] = mem[M_A];
-            mem[M_PC] = mem[M_IA];
-            mem[M_A] = msg;
-            return; // so we can catch the stepping into interrupt
+            if (mem[M_IA] != 0) {
+                // TODO maybe call some interrupt listener?
+                // TODO does interrupt cost any cycles?
+                setIntQueuing(true);
+                MemoryTraps mt = traps;
+                if (mt != null) {
+                    trapWrite(mt, mem[M_PC], (mem[M_SP] - 1) & 0xffff, mem[M_PC]);
+                    trapWrite(mt, mem[M_PC], (mem[M_SP] - 2) & 0xffff, mem[M_A]);
+                }
+                mem[--mem[M_SP]] = mem[M_PC];
+                mem[--mem[M_SP]] = mem[M_A];
+                mem[M_PC] = mem[M_IA];
+                mem[M_A] = msg;
+                if (coverage != null) {
+                    coverage.written(mem[M_SP]);
+                    coverage.written((mem[M_SP] + 1) & 0xffff);
+                }
+                if (sampler != null) sampler.called(mem[M_IA], mem[M_SP], true);
+                return; // so we can catch the stepping into interrupt
+            }
+            interrupts.drop(); // IA was cleared while it was queued
         }
 
+        if (sampler != null && !skip && cycles >= sampler.nextSample) sampler.sample(mem[M_PC]);
+        long startCycles = cycles;
         cycles++;
         char ppc = mem[M_PC];
-        if (!skip && stepListener != null) stepListener.preExecute(ppc);
+        if (coverage != null && !skip) coverage.executions[ppc]++;
+        boolean notify = !skip && !stepListener.isEmpty();
+        if (notify) stepListener.preExecute(ppc);
+        long[] bp = breakpoints;
+        if (bp != null && !skip && (bp[ppc >>> 6] & (1L << ppc)) != 0) hitBreakpoint(ppc);
 
         int cmd = mem[mem[M_PC]++]; // command value
+        int info = (decodeCache != null) ? decodeCache.lookup(ppc, cmd) : Decoder.decode(cmd);
 
-        Operation op = Operation.createOperation(cmd, ppc);
+        int type = Decoder.type(info);
         boolean postExecuteCalled = false;
-        switch (op.type) {
-            case BASIC:
-                postExecuteCalled = handleBasicOp((BasicOperation) op, skip);
-                break;
-            case SPECIAL:
-                handleSpecialOp((SpecialOperation) op, skip);
-                break;
-            case INVALID:
-                reserved = true;
-                halt = true;
-                break;
+        if (type == Decoder.T_BASIC) {
+            postExecuteCalled = handleBasicOp(BasicOp.l(Decoder.opcode(info)), Decoder.b(info), Decoder.a(info), ppc, skip);
+        } else if (type == Decoder.T_SPECIAL) {
+            handleSpecialOp(SpecialOp.l(Decoder.opcode(info)), Decoder.a(info), ppc, skip);
+        } else {
+            reserved = true;
+            halt = true;
         }
 
-        for (Device device : devices) {
-            device.tick();
+        tickDevices();
+        if (!postExecuteCalled && notify) stepListener.postExecute(ppc);
+        cycles += postExecuteCalled ? 1 : Decoder.cycles(info);
+        if (profiler != null) profiler.executed(cmd, info, cycles - startCycles, skip);
+        if (stream != null && !skip) stream.record(ppc, startCycles, (char) cmd);
+        if (history != null && !skip) {
+            history.record(ppc, startCycles, (char) cmd);
+            if (halt) history.halted(this);
+        }
+    }
+
+    private void tickDevices() {
+        for (int i = 0, n = tickingDevices.size(); i < n; i++) {
+            tickingDevices.get(i).tick();
         }
-        if (!postExecuteCalled && !skip && stepListener != null) stepListener.postExecute(ppc);
-        cycles += postExecuteCalled ? 1 : op.getCycles();
+        if (cycles >= scheduler.nextDue()) wakeDueDevices();
     }
 
-    private boolean handleBasicOp(BasicOperation op, boolean skip) {
+    /**
+     * Wakes up every scheduled device which is due, in order of attachment. Each one is woken at most once per call,
+     * even if it reschedules itself into the past.
+     */
+    private void wakeDueDevices() {
+        Device device;
+        while ((device = scheduler.pollDue(cycles)) != null) {
+            dueDevices.add(device);
+        }
+        if (dueDevices.size() > 1) Collections.sort(dueDevices, DEVICE_ORDER);
+        for (int i = 0, n = dueDevices.size(); i < n; i++) {
+            dueDevices.get(i).wakeup();
+        }
+        dueDevices.clear();
+    }
+
+    private boolean handleBasicOp(BasicOp op, int opb, int opa, char ppc, boolean skip) {
         boolean postExecuteCalled = false;
-        Character ppc = op.pc;
         char psp = mem[M_SP];
 
         int aa, ba, av, bv, asv, bsv;
-        aa = getaddr(op.a, true) & 0x1ffff;
-        ba = getaddr(op.b, false) & 0x1ffff;
+        aa = getaddr(opa, true) & 0x1ffff;
+        ba = getaddr(opb, false) & 0x1ffff;
 
         if (skip) {
             cycles++;
             mem[M_SP] = psp;
-            if (BasicOp.OPS_IF.contains(op.op)) {
+            if (BasicOp.OPS_IF.contains(op)) {
                 // Chaining IF - skip one more instruction
                 step(true);
             }
@@ -524,15 +571,22 @@ public final class Dcpu {
 
         av = memget(aa);
         bv = memget(ba);
+        if (coverage != null) coverage.accessed(op, aa, ba);
+        MemoryTraps mt = traps;
+        if (mt != null) {
+            if (mt.reads(aa)) mt.read(ppc, aa, (char) av);
+            if (op != BasicOp.SET && op != BasicOp.STI && op != BasicOp.STD && mt.reads(ba)) mt.read(ppc, ba, (char) bv);
+        }
         asv = (short) av;
         bsv = (short) bv;
 
         int rslt = mem[ba]; // new 'b' value
         int exreg = mem[M_EX]; // new 'EX' value
         boolean conditionalOpMiss = false;
-        switch (op.op) {
+        switch (op) {
             case SET:
                 rslt = av;
+                if (sampler != null && ba == M_PC && opa == A_PUSHPOP) sampler.returned(psp);
                 break;
             case ADD:
                 rslt = bv + av;
@@ -646,17 +700,21 @@ public final class Dcpu {
                 mem[M_J]--;
                 break;
             default:
-                throw new RuntimeException("DCPU Opcode not implemented: " + op.op);
+                throw new RuntimeException("DCPU Opcode not implemented: " + op);
         }
         if (conditionalOpMiss) {
+            if (profiler != null) profiler.ifMissed(op.code);
             cycles++;
             postExecuteCalled = true;
-            if (!skip && stepListener != null) stepListener.postExecute(ppc);
+            if (!stepListener.isEmpty()) stepListener.postExecute(ppc);
             step(true);
         }
 
         // overwrite 'b' unless it is constant
-        if (ba < M_CV && op.op.modb) memset(ba, (char) rslt);
+        if (ba < M_CV && op.modb) {
+            if (mt != null) trapWrite(mt, ppc, ba, (char) rslt);
+            memset(ba, (char) rslt);
+        }
 
         // only overwrite EX if it wasn't being changed itself with (e.g.) "SET EX, ..."
         if (ba != M_EX) mem[M_EX] = (char) exreg;
@@ -664,13 +722,13 @@ public final class Dcpu {
         return postExecuteCalled;
     }
 
-    private void handleSpecialOp(SpecialOperation op, boolean skip) {
+    private void handleSpecialOp(SpecialOp op, int opa, char ppc, boolean skip) {
         // a,b: raw codes, addresses, values, signed values
         // in NBI: b stores NBO
         int aa, ba, av, bv, asv, bsv;
         char psp = mem[M_SP];
 
-        aa = getaddr(op.a, true);
+        aa = getaddr(opa, true);
         if (skip) {
             mem[M_SP] = psp;
             return;
@@ -679,12 +737,24 @@ public final class Dcpu {
         av = memget(aa);
         asv = (short) av;
         bv = bsv = 0;
+        if (coverage != null) {
+            if (op.moda) {
+                coverage.written(aa);
+            } else {
+                coverage.read(aa);
+            }
+        }
+        MemoryTraps mt = traps;
+        if (mt != null && !op.moda && mt.reads(aa)) mt.read(ppc, aa, (char) av);
 
         int rslt = mem[aa]; // new 'a' value
-        switch (op.op) {
+        switch (op) {
             case JSR:
+                if (mt != null) trapWrite(mt, ppc, (mem[M_SP] - 1) & 0xffff, mem[M_PC]);
                 mem[(--mem[M_SP])] = mem[M_PC];
                 mem[M_PC] = (char) av;
+                if (coverage != null) coverage.written(mem[M_SP]);
+                if (sampler != null) sampler.called((char) av, mem[M_SP], false);
                 break;
             case HCF:
                 halt = true;
@@ -699,6 +769,15 @@ public final class Dcpu {
                 mem[M_IA] = (char) av;
                 break;
             case RFI:
+                if (coverage != null) {
+                    coverage.read(mem[M_SP]);
+                    coverage.read((mem[M_SP] + 1) & 0xffff);
+                }
+                if (sampler != null) sampler.returned(mem[M_SP]);
+                if (mt != null) {
+                    trapRead(mt, ppc, mem[M_SP]);
+                    trapRead(mt, ppc, (mem[M_SP] + 1) & 0xffff);
+                }
                 setIntQueuing(false);
                 mem[M_A] = mem[(mem[M_SP]++)];
                 mem[M_PC] = mem[(mem[M_SP]++)];
@@ -730,8 +809,19 @@ public final class Dcpu {
                 break;
         }
         // overwrite 'a' unless it is constant
-        if (aa < M_CV && op.op.moda) memset(aa, (char) rslt);
+        if (aa < M_CV && op.moda) {
+            if (mt != null) trapWrite(mt, ppc, aa, (char) rslt);
+            memset(aa, (char) rslt);
+        }
+
+    }
+
+    private void trapRead(MemoryTraps mt, char pc, int addr) {
+        if (mt.reads(addr)) mt.read(pc, addr, mem[addr]);
+    }
 
+    private void trapWrite(MemoryTraps mt, char pc, int addr, char value) {
+        if (mt.writes(addr)) mt.written(pc, addr, mem[addr], value);
     }
 
     /**
@@ -739,6 +829,14 @@ public final class Dcpu {
      */
     public void memset(int addr, char value) {
         mem[addr] = value;
+        if (decodeCache != null && addr < RAM_SIZE) decodeCache.invalidate(addr);
+    }
+
+    /**
+     * Should be called by devices after they have written directly to RAM region (wrapping around end of memory)
+     */
+    public void memoryChanged(int addr, int len) {
+        if (decodeCache != null) decodeCache.invalidate(addr, len);
     }
 
     public char memget(int addr) {
@@ -749,6 +847,9 @@ public final class Dcpu {
     public void reset() {
         reserved = false;
         halt = false;
+        onFire = false;
+        intQueuing = false;
+        interrupts.clear();
         for (int i = 0; i < M_CV - M_A; i++) mem[M_A + i] = 0;
         for (int i = 0; i < 32; i++) {
             mem[M_CV + i] = (char) ((i - 1) & 0xffff);
@@ -760,6 +861,7 @@ public final class Dcpu {
      */
     public void memzero() {
         Arrays.fill(mem, 0, RAM_SIZE, (char) 0);
+        if (decodeCache != null) decodeCache.clear();
     }
 
     public Dcpu() {
@@ -875,6 +977,7 @@ public final class Dcpu {
         if (srcoff < 0 || len < 0 || srcoff + len >= RAM_SIZE)
             throw new IllegalArgumentException("Bad offset/length");
         System.arraycopy(buffer, srcoff, mem, dstoff, len);
+        memoryChanged(dstoff, len);
     }
 
     public void upload(char[] buffer) {
@@ -920,71 +1023,271 @@ public final class Dcpu {
 
     public void setFrequency(long frequency) {
         this.frequency = frequency;
-        this.cyclesPerFrame = frequency / 60;
-        this.nanosPerFrame = frequency * 10000 / 60;
+        this.cyclesPerFrame = frequency / FRAMES_PER_SECOND;
+        for (Device device : devices) {
+            device.frequencyChanged();
+        }
     }
 
     public long getFrequency() {
         return frequency;
     }
 
-    // Placeholder interrupt handler (no queueing).
-    // TODO proper queueing
+    /**
+     * Pacing state of {@link #run()}, with achieved frequency
+     */
+    public Throttle getThrottle() {
+        return throttle;
+    }
+
+    /**
+     * Number of cycles executed in one 1/{@link #FRAMES_PER_SECOND} second frame at current frequency
+     */
+    public long getCyclesPerFrame() {
+        return cyclesPerFrame;
+    }
+
+    private OpcodeProfiler profiler = null;
+
+    /**
+     * Use {@link OpcodeProfiler#install(Dcpu)}
+     */
+    void setProfiler(OpcodeProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    public OpcodeProfiler getProfiler() {
+        return profiler;
+    }
+
+    private SamplingProfiler sampler = null;
+
+    /**
+     * Use {@link SamplingProfiler#install(Dcpu)}
+     */
+    void setSampler(SamplingProfiler sampler) {
+        this.sampler = sampler;
+    }
+
+    public SamplingProfiler getSampler() {
+        return sampler;
+    }
+
+    private Coverage coverage = null;
+
+    /**
+     * Use {@link Coverage#install(Dcpu)}
+     */
+    void setCoverage(Coverage coverage) {
+        this.coverage = coverage;
+    }
+
+    public Coverage getCoverage() {
+        return coverage;
+    }
+
+    private ExecutionStream stream = null;
+
+    /**
+     * Use {@link ExecutionStream#install(Dcpu)}
+     */
+    void setStream(ExecutionStream stream) {
+        this.stream = stream;
+    }
+
+    public ExecutionStream getStream() {
+        return stream;
+    }
+
+    private ExecutionHistory history = null;
+
+    /**
+     * Use {@link ExecutionHistory#install(Dcpu)}
+     */
+    void setHistory(ExecutionHistory history) {
+        this.history = history;
+    }
+
+    public ExecutionHistory getHistory() {
+        return history;
+    }
+
+    private DecodeCache decodeCache = null;
+
+    /**
+     * Enables or disables per-address cache of decoded instructions. Statistics are available through
+     * {@link #getDecodeCache()}
+     */
+    public void setDecodeCacheEnabled(boolean enabled) {
+        if (enabled == (decodeCache != null)) return;
+        decodeCache = enabled ? new DecodeCache() : null;
+    }
+
+    public boolean isDecodeCacheEnabled() {
+        return decodeCache != null;
+    }
+
+    /**
+     * Returns decode cache, or null if it is disabled
+     */
+    public DecodeCache getDecodeCache() {
+        return decodeCache;
+    }
+
+    private Jit jit = null;
+
+    /**
+     * Enables or disables compilation of hot basic blocks to JVM bytecode. It is used by {@link #run()} and
+     * {@link #run(int)} only, and falls back to the interpreter whenever there are step listeners. Statistics are
+     * available through {@link #getJit()}
+     */
+    public void setJitEnabled(boolean enabled) {
+        if (enabled == (jit != null)) return;
+        jit = enabled ? new Jit(this) : null;
+    }
+
+    public boolean isJitEnabled() {
+        return jit != null;
+    }
 
-    private boolean intFlag = false;
-    private char intMsg;
+    /**
+     * Returns JIT, or null if it is disabled
+     */
+    public Jit getJit() {
+        return jit;
+    }
 
+    private CompiledProgram compiledProgram = null;
+
+    /**
+     * Installs program translated by {@link dcpu.aot.StaticRecompiler} (null to uninstall). Like JIT, it is used by
+     * {@link #run()} and {@link #run(int)} only, and the interpreter executes everything it has no block for.
+     */
+    public void setCompiledProgram(CompiledProgram compiledProgram) {
+        this.compiledProgram = compiledProgram;
+    }
+
+    public CompiledProgram getCompiledProgram() {
+        return compiledProgram;
+    }
+
+    // Interrupt handling (v1.7): interrupts are queued, and the one at the head is triggered before the next
+    // instruction unless queueing is enabled. Triggering enables queueing, RFI disables it.
+
+    private final InterruptQueue interrupts = new InterruptQueue();
+    private boolean intQueuing = false;
+    private volatile boolean onFire = false;
+
+    /**
+     * true if an interrupt will be triggered before next instruction
+     */
     private boolean hasInterrupt() {
-        return intFlag;
+        return !intQueuing && !interrupts.isEmpty();
     }
 
     private void setIntQueuing(boolean queuing) {
-        // TODO setIntQueuing
+        intQueuing = queuing;
+    }
+
+    public boolean isIntQueuing() {
+        return intQueuing;
     }
 
     /**
      * Dequeue interrupt and return its message.
      */
     private char popIntMsg() {
-        intFlag = false;
-        return intMsg;
+        return (char) interrupts.poll();
     }
 
     /**
-     * Enqueue interrupt
+     * Enqueue interrupt. Safe to call from any thread. Interrupts are discarded while IA is 0; if the queue
+     * overflows, DCPU catches fire (halts with {@link #isOnFire()} set).
      */
     public void interrupt(char message) {
-        if (intFlag) {
-            System.err.println("Interrupt ignored");
+        if (mem[M_IA] == 0) {
+            interrupts.drop();
             return;
         }
-        intFlag = true;
-        intMsg = message;
+        if (!interrupts.offer(message)) {
+            onFire = true;
+            halt = true;
+        }
+    }
+
+    /**
+     * true if interrupt queue has overflowed since last reset
+     */
+    public boolean isOnFire() {
+        return onFire;
+    }
+
+    /**
+     * Replaces interrupt state with the one saved by {@link Snapshot}. Must be called from the CPU thread, or while CPU
+     * is stopped
+     */
+    void restoreInterrupts(boolean queuing, boolean onFire, char[] messages, int count) {
+        interrupts.clear();
+        for (int i = 0; i < count; i++) {
+            interrupts.offer(messages[i]);
+        }
+        intQueuing = queuing;
+        this.onFire = onFire;
+    }
+
+    /**
+     * Interrupt queue, for its metrics
+     */
+    public InterruptQueue getInterruptQueue() {
+        return interrupts;
     }
 
     // end of interrupt handler
 
     public final ArrayList<Device> devices = new ArrayList<Device>();
+    private final ArrayList<Device> tickingDevices = new ArrayList<Device>(); // the ones overriding tick()
+    private final ArrayList<Device> dueDevices = new ArrayList<Device>();
+    private final CycleScheduler scheduler = new CycleScheduler();
+
+    private static final Comparator<Device> DEVICE_ORDER = new Comparator<Device>() {
+        @Override
+        public int compare(Device o1, Device o2) {
+            return o1.index - o2.index;
+        }
+    };
 
     public void attach(Device device) {
         device.cpu = this;
         device.index = devices.size();
         devices.add(device);
+        if (overridesTick(device)) tickingDevices.add(device);
         device.attached();
     }
 
     public void detach(Device device) {
         devices.remove(device);
+        tickingDevices.remove(device);
+        scheduler.cancel(device);
         device.cpu = null;
         device.index = 0;
         device.detached();
     }
 
+    private static boolean overridesTick(Device device) {
+        try {
+            return device.getClass().getMethod("tick").getDeclaringClass() != Device.class;
+        } catch (NoSuchMethodException e) {
+            return true;
+        }
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     //// DEVICE (new Peripheral)
     public abstract static class Device {
         protected Dcpu cpu;
         protected int index;
+        long dueCycle; // managed by CycleScheduler
+        int heapIndex = -1;
 
         public void attached() {
         }
@@ -1008,16 +1311,55 @@ public final class Dcpu {
         public abstract int getManufacturerId();
 
         /**
-         * This method is called every CPU instruction
+         * This method is called every CPU instruction, if device overrides it. Devices which need attention only at
+         * certain cycles should use {@link #schedule} instead.
          */
         public void tick() {
         }
 
+        /**
+         * Asks to be woken up at the first point where devices are ticked with cpu.cycles >= cycle. Replaces previous
+         * schedule, if any.
+         */
+        protected final void schedule(long cycle) {
+            cpu.scheduler.schedule(this, cycle);
+        }
+
+        protected final void cancelSchedule() {
+            cpu.scheduler.cancel(this);
+        }
+
+        /**
+         * This method is called when cycle given to {@link #schedule} is reached. Schedule is cleared before that.
+         */
+        public void wakeup() {
+        }
+
+        /**
+         * This method is called when CPU frequency changes, so devices can recompute their schedules
+         */
+        public void frequencyChanged() {
+        }
+
         /**
          * HWI
          */
         public abstract void interrupt();
 
+        /**
+         * Writes internal state of device for {@link Snapshot}: everything which {@link #interrupt} and
+         * {@link #wakeup} depend on. Schedule is saved by snapshot itself. Devices without such state don't override
+         * this
+         */
+        public void saveState(ByteBuffer out) {
+        }
+
+        /**
+         * Reads state written by {@link #saveState} and replaces current state with it
+         */
+        public void restoreState(ByteBuffer in) {
+        }
+
         // handy method for generating hardware/manufacturer ids from 4-char strings
         public static int str2id(String str) {
             if (str == null || str.length() != 4) throw new IllegalArgumentException();
@@ -0,0 +1,289 @@
+package dcpu;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs many independent machines on a small work-stealing pool instead of one thread per {@link Dcpu#run()}.
+ * <p/>
+ * Every machine executes in slices of {@link #getQuantum()} cycles; a slice which didn't finish the machine forks
+ * the next one, so all machines get a fair share and idle workers steal slices from the busy ones. Machines run
+ * at full speed (no frequency pacing), until they halt, exhaust their cycle budget or are cancelled.
+ * <p/>
+ * Slices of one machine never overlap, so devices and listeners attached to it run in one thread at a time
+ * (though not always the same thread).
+ */
+public class DcpuFarm {
+
+    public static final long DEFAULT_QUANTUM = 10000;
+    public static final long UNLIMITED = Long.MAX_VALUE;
+
+    public enum Status {
+        RUNNING, HALTED, BUDGET_EXHAUSTED, CANCELLED, FAILED
+    }
+
+    public interface CompletionListener {
+        /**
+         * Called from worker thread when machine stops running
+         */
+        public void completed(Machine machine);
+    }
+
+    /**
+     * Handle of machine submitted to the farm
+     */
+    public final class Machine {
+        private final Dcpu cpu;
+        private final long budget;
+        private final long startCycles;
+        private final CompletionListener listener;
+        private volatile Status status = Status.RUNNING;
+        private volatile boolean cancelled;
+        private volatile long usedCycles;
+        private volatile Throwable error;
+
+        private Machine(Dcpu cpu, long budget, CompletionListener listener) {
+            this.cpu = cpu;
+            this.budget = budget;
+            this.startCycles = cpu.cycles;
+            this.listener = listener;
+        }
+
+        public Dcpu getCpu() {
+            return cpu;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public boolean isDone() {
+            return status != Status.RUNNING;
+        }
+
+        /**
+         * Cycles executed in the farm so far
+         */
+        public long getUsedCycles() {
+            return usedCycles;
+        }
+
+        /**
+         * Exception thrown by machine, if status is FAILED
+         */
+        public Throwable getError() {
+            return error;
+        }
+
+        /**
+         * Stops machine before its next slice
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        private long target() {
+            long left = budget - usedCycles;
+            long slice = Math.min(quantum, left);
+            return cpu.cycles + slice;
+        }
+
+        private boolean runSlice() {
+            if (cancelled) return finish(Status.CANCELLED);
+            long before = cpu.cycles;
+            boolean halted;
+            try {
+                halted = cpu.runUntil(target());
+            } catch (Throwable e) {
+                // an Error of device or listener must not leave the machine pending forever
+                error = e;
+                return finish(Status.FAILED);
+            } finally {
+                totalCycles.addAndGet(cpu.cycles - before);
+                totalSlices.incrementAndGet();
+                usedCycles = cpu.cycles - startCycles;
+            }
+            if (halted) return finish(Status.HALTED);
+            if (usedCycles >= budget) return finish(Status.BUDGET_EXHAUSTED);
+            return false;
+        }
+
+        private boolean finish(Status status) {
+            this.status = status;
+            try {
+                if (listener != null) listener.completed(this);
+            } finally {
+                machineDone();
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Machine %s cycles=%d", status, usedCycles);
+        }
+    }
+
+    private static class Slice extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Machine machine;
+
+        private Slice(Machine machine) {
+            this.machine = machine;
+        }
+
+        @Override
+        protected void compute() {
+            if (!machine.runSlice()) new Slice(machine).fork();
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private volatile long quantum = DEFAULT_QUANTUM;
+
+    private final Object lock = new Object();
+    private int running;
+
+    private final AtomicLong totalCycles = new AtomicLong();
+    private final AtomicLong totalSlices = new AtomicLong();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final long startTime = System.nanoTime();
+
+    /**
+     * Creates farm using all available processors
+     */
+    public DcpuFarm() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public DcpuFarm(int parallelism) {
+        // async mode: forked slices are taken in FIFO order, so machines are round-robined
+        pool = new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+    }
+
+    /**
+     * Sets number of cycles machine runs before yielding worker to other machines
+     */
+    public void setQuantum(long quantum) {
+        if (quantum < 1) throw new IllegalArgumentException("Quantum must be positive");
+        this.quantum = quantum;
+    }
+
+    public long getQuantum() {
+        return quantum;
+    }
+
+    /**
+     * Starts machine, which runs until it halts
+     */
+    public Machine submit(Dcpu cpu) {
+        return submit(cpu, UNLIMITED, null);
+    }
+
+    /**
+     * Starts machine, which runs until it halts or executes cycleBudget cycles. Listener (may be null) is called
+     * when machine stops.
+     */
+    public Machine submit(Dcpu cpu, long cycleBudget, CompletionListener listener) {
+        if (cycleBudget < 0) throw new IllegalArgumentException("Negative cycle budget");
+        Machine machine = new Machine(cpu, cycleBudget, listener);
+        cpu.halt = false;
+        synchronized (lock) {
+            running++;
+        }
+        submitted.incrementAndGet();
+        pool.execute(new Slice(machine));
+        return machine;
+    }
+
+    private void machineDone() {
+        completed.incrementAndGet();
+        synchronized (lock) {
+            if (--running == 0) lock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until all submitted machines stop
+     */
+    public void awaitCompletion() throws InterruptedException {
+        synchronized (lock) {
+            while (running > 0) lock.wait();
+        }
+    }
+
+    /**
+     * Waits until all submitted machines stop, or timeout expires
+     *
+     * @return true if all machines stopped
+     */
+    public boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (lock) {
+            while (running > 0) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) return false;
+                TimeUnit.NANOSECONDS.timedWait(lock, left);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops worker threads. Machines which are still running are abandoned.
+     */
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    ////////////////
+    // Stats
+
+    public int getRunning() {
+        synchronized (lock) {
+            return running;
+        }
+    }
+
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * Cycles executed by all machines
+     */
+    public long getTotalCycles() {
+        return totalCycles.get();
+    }
+
+    public long getTotalSlices() {
+        return totalSlices.get();
+    }
+
+    /**
+     * Aggregate speed since farm creation, in cycles per second
+     */
+    public double getThroughput() {
+        long nanos = System.nanoTime() - startTime;
+        return nanos <= 0 ? 0 : totalCycles.get() * 1e9 / nanos;
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DcpuFarm workers=%d running=%d completed=%d cycles=%d slices=%d (%.1f Mcycles/s)",
+                getParallelism(), getRunning(), getCompleted(), getTotalCycles(), getTotalSlices(),
+                getThroughput() / 1e6);
+    }
+}
@@ -1,8 +1,11 @@
 package dcpu;
 
+import java.io.PrintStream;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collections;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 
 import static dcpu.Dcpu.*;
@@ -19,13 +22,18 @@ public class Debugger {
     public boolean breakpointsHalt = true;
 
     /**
-     * Executed each step. Argument = PC of the instruction
+     * Executed each step. Argument = PC of the instruction. Takes effect on the next {@link #run()} or {@link #step()}
      */
     public Listener<Character> stepListener = null;
     /**
-     * Executed when breakpoint is hit. Argument = PC of the instruction
+     * Executed when breakpoint or watchpoint is hit. Argument = PC of the instruction. For watchpoint, it is called
+     * before the access, and {@link #getLastWatchpoint()} tells which one was hit
      */
     public Listener<Character> breakpointListener = null;
+    /**
+     * Where tracepoints print their messages
+     */
+    public PrintStream traceOut = System.out;
     /**
      * Calculate modregs on each manual step
      */
@@ -35,12 +43,10 @@ public class Debugger {
      */
     public boolean modregsOnBreakpoint = true;
     /**
-     * Calculate modregs on each CPU instruction
+     * Calculate modregs on each CPU instruction. Takes effect on the next {@link #run()} or {@link #step()}
      */
     public boolean modregsOnRun = false;
 
-    private boolean onehitModregs;
-
     /**
      * Returns set of registers, modified on previous saved point. For indices see DREG_xxx constants.
      * <p/>
@@ -68,23 +74,159 @@ public class Debugger {
     private char[] oldRegs = new char[REGS_COUNT];
     private BitSet modifiedRegisters = new BitSet(REGS_COUNT);
     private Dcpu cpu;
-    private Set<Character> breakpoints = new LinkedHashSet<Character>();
+    // bitmap by address, checked by CPU before each instruction while there are any
+    private final long[] breakpoints = new long[RAM_SIZE / 64];
+    private int breakpointCount = 0;
+    // options of breakpoints which have them, by address; allocated on first use
+    private volatile Breakpoint[] options;
+    private volatile Watchpoint[] watchpoints = new Watchpoint[0];
+    private volatile Watchpoint lastWatchpoint;
+    private MemoryTraps memoryTraps = null;
 
     /**
      * Sets (brk=true) or releases (brk=false) breakpoint on instruction with specific address.
      * <p/>
-     * Breakpoints will fire BEFORE the execution of instruction
+     * Breakpoints will fire BEFORE the execution of instruction. While there are none, CPU doesn't check them at all,
+     * and between them it runs without calling any listener (unless {@link #stepListener} or {@link #modregsOnRun} is
+     * set)
      */
-    public void setBreakpoint(Character address, boolean brk) {
+    public synchronized void setBreakpoint(Character address, boolean brk) {
+        int addr = address;
+        long bit = 1L << addr;
+        boolean set = (breakpoints[addr >>> 6] & bit) != 0;
+        if (brk == set) return;
         if (brk) {
-            breakpoints.add(address);
+            breakpoints[addr >>> 6] |= bit;
+            breakpointCount++;
         } else {
-            breakpoints.remove(address);
+            breakpoints[addr >>> 6] &= ~bit;
+            breakpointCount--;
+            if (options != null) options[addr] = null;
         }
+        updateHooks();
     }
 
-    public Set<Character> getBreakpoints() {
-        return Collections.unmodifiableSet(breakpoints);
+    /**
+     * Sets breakpoint at address, if it isn't set yet, and returns its options (condition, ignore count, log), which
+     * may be changed any time
+     */
+    public synchronized Breakpoint addBreakpoint(char address) {
+        setBreakpoint(address, true);
+        if (options == null) options = new Breakpoint[RAM_SIZE];
+        Breakpoint breakpoint = options[address];
+        if (breakpoint == null) options[address] = breakpoint = new Breakpoint(address);
+        return breakpoint;
+    }
+
+    /**
+     * Options of breakpoint at address, or null if there is no breakpoint or it was set by
+     * {@link #setBreakpoint(Character, boolean)} and has none
+     */
+    public Breakpoint getBreakpoint(char address) {
+        Breakpoint[] o = options;
+        return o == null ? null : o[address];
+    }
+
+    public boolean isBreakpoint(int address) {
+        return (breakpoints[address >>> 6] & (1L << address)) != 0;
+    }
+
+    /**
+     * Snapshot of breakpoint addresses, in address order
+     */
+    public synchronized Set<Character> getBreakpoints() {
+        Set<Character> result = new LinkedHashSet<Character>();
+        for (int i = 0; i < breakpoints.length; i++) {
+            long bits = breakpoints[i];
+            while (bits != 0) {
+                result.add((char) (i * 64 + Long.numberOfTrailingZeros(bits)));
+                bits &= bits - 1;
+            }
+        }
+        return Collections.unmodifiableSet(result);
+    }
+
+    /**
+     * Sets watchpoint on RAM words start..end (inclusive). Accesses to pages (256 words) without watchpoints cost a
+     * bitmap check per memory operand; while there are no watchpoints at all, CPU doesn't check anything.
+     * <p/>
+     * Watchpoint fires while instruction is executed, before memory is changed; CPU is halted after the instruction
+     * (if {@link #breakpointsHalt} is set)
+     */
+    public synchronized Watchpoint addWatchpoint(char start, char end, Watchpoint.Kind kind) {
+        Watchpoint watchpoint = new Watchpoint(kind, start, end);
+        Watchpoint[] w = Arrays.copyOf(watchpoints, watchpoints.length + 1);
+        w[w.length - 1] = watchpoint;
+        setWatchpoints(w);
+        return watchpoint;
+    }
+
+    public synchronized void removeWatchpoint(Watchpoint watchpoint) {
+        for (int i = 0; i < watchpoints.length; i++) {
+            if (watchpoints[i] != watchpoint) continue;
+            Watchpoint[] w = new Watchpoint[watchpoints.length - 1];
+            System.arraycopy(watchpoints, 0, w, 0, i);
+            System.arraycopy(watchpoints, i + 1, w, i, w.length - i);
+            setWatchpoints(w);
+            return;
+        }
+    }
+
+    public List<Watchpoint> getWatchpoints() {
+        return Collections.unmodifiableList(Arrays.asList(watchpoints));
+    }
+
+    /**
+     * Watchpoint which fired last, or null if the last hit was a breakpoint
+     */
+    public Watchpoint getLastWatchpoint() {
+        return lastWatchpoint;
+    }
+
+    private void setWatchpoints(Watchpoint[] w) {
+        // traps are replaced, not modified, as CPU thread may be checking them
+        MemoryTraps traps = w.length == 0 ? null : new WatchTraps(w);
+        watchpoints = w;
+        if (cpu != null) {
+            if (memoryTraps != null) cpu.removeMemoryTraps(memoryTraps);
+            if (traps != null) cpu.addMemoryTraps(traps);
+        }
+        memoryTraps = traps;
+    }
+
+    private final class WatchTraps extends MemoryTraps {
+        private final Watchpoint[] watchpoints;
+
+        WatchTraps(Watchpoint[] watchpoints) {
+            this.watchpoints = watchpoints;
+            for (Watchpoint w : watchpoints) {
+                trap(w.kind == Watchpoint.Kind.READ ? readPages : writePages, w.start, w.end);
+            }
+        }
+
+        @Override
+        void read(char pc, int addr, char value) {
+            for (Watchpoint w : watchpoints) {
+                if (w.kind == Watchpoint.Kind.READ && w.covers(addr)) watchHandler(w, pc, addr, value, value);
+            }
+        }
+
+        @Override
+        void written(char pc, int addr, char old, char value) {
+            for (Watchpoint w : watchpoints) {
+                if (w.kind == Watchpoint.Kind.READ || !w.covers(addr)) continue;
+                if (w.kind == Watchpoint.Kind.WRITE || old != value) watchHandler(w, pc, addr, old, value);
+            }
+        }
+    }
+
+    private void watchHandler(Watchpoint watchpoint, char pc, int addr, char old, char value) {
+        if (!breakpointsEnabled) return;
+        watchpoint.hit(pc, addr, old, value);
+        lastWatchpoint = watchpoint;
+        if (modregsOnBreakpoint) updModRegs();
+        if (breakpointListener != null) breakpointListener.preExecute(pc);
+        cpu.halt = breakpointsHalt;
     }
 
     public void resetSession() {
@@ -94,24 +236,56 @@ public class Debugger {
     }
 
     public void step() {
-        onehitModregs = modregsOnStep;
+        updateHooks();
+        if (modregsOnStep && !modregsOnRun) updModRegs();
         cpu.step(false);
     }
 
     public void run() {
+        updateHooks();
         cpu.run();
     }
 
-    private void stepHandler(Character pc) {
-        if (onehitModregs || modregsOnRun) updModRegs();
-        if (breakpointsEnabled && breakpoints.contains(pc)) {
-            if (modregsOnBreakpoint) updModRegs();
-            if (breakpointListener != null) breakpointListener.preExecute(pc);
-            cpu.halt = breakpointsHalt;
-        }
+    private void stepHandler(char pc) {
+        if (modregsOnRun) updModRegs();
         if (stepListener != null) stepListener.preExecute(pc);
     }
 
+    private void breakpointHandler(char pc) {
+        if (!breakpointsEnabled) return;
+        Breakpoint[] o = options;
+        Breakpoint breakpoint = o == null ? null : o[pc];
+        if (breakpoint != null) {
+            if (!breakpoint.hit(cpu)) return;
+            if (breakpoint.isTracepoint()) {
+                traceOut.println(breakpoint.message(cpu));
+                return;
+            }
+        }
+        lastWatchpoint = null;
+        if (modregsOnBreakpoint) updModRegs();
+        if (breakpointListener != null) breakpointListener.preExecute(pc);
+        cpu.halt = breakpointsHalt;
+    }
+
+    /**
+     * Installs breakpoint check and step listener into CPU only when they are needed
+     */
+    private synchronized void updateHooks() {
+        if (cpu == null) return;
+        boolean stepping = modregsOnRun || stepListener != null;
+        if (stepping != listenerInstalled) {
+            if (stepping) {
+                cpu.stepListener.addListener(listener);
+            } else {
+                cpu.stepListener.removeListener(listener);
+            }
+            listenerInstalled = stepping;
+        }
+        cpu.setBreakpoints(breakpointCount > 0 ? breakpoints : null, breakpointCount > 0 ? breakpointHook : null);
+        if (memoryTraps != null) cpu.addMemoryTraps(memoryTraps);
+    }
+
     private void updModRegs() {
         modifiedRegisters.clear();
         for (int i = 0; i < REGS_COUNT; i++) {
@@ -122,22 +296,40 @@ public class Debugger {
         }
     }
 
-    private PreListener<Character> listener;
+    private final CharListener listener = new CharListener() {
+        @Override
+        public void preExecute(char pc) {
+            stepHandler(pc);
+        }
+
+        @Override
+        public void postExecute(char pc) {
+        }
+    };
+    private final CharListener breakpointHook = new CharListener() {
+        @Override
+        public void preExecute(char pc) {
+            breakpointHandler(pc);
+        }
+
+        @Override
+        public void postExecute(char pc) {
+        }
+    };
+    private boolean listenerInstalled = false;
 
     public void attachTo(Dcpu cpu) {
         if (this.cpu != null) detach();
         this.cpu = cpu;
-        listener = new PreListener<Character>() {
-            @Override
-            public void preExecute(Character arg) {
-                Debugger.this.stepHandler(arg);
-            }
-        };
-        cpu.stepListener.addListener(listener);
+        updateHooks();
     }
 
-    public void detach() {
+    public synchronized void detach() {
         cpu.stepListener.removeListener(listener);
+        listenerInstalled = false;
+        cpu.setBreakpoints(null, null);
+        if (memoryTraps != null) cpu.removeMemoryTraps(memoryTraps);
+        cpu = null;
     }
 
 }
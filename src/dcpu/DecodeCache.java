@@ -0,0 +1,99 @@
+package dcpu;
+
+import java.util.Arrays;
+
+import static dcpu.Dcpu.RAM_SIZE;
+
+/**
+ * Per-address cache of decoded instructions (see {@link Decoder} for descriptor format).
+ * <p/>
+ * Every entry remembers the word it was decoded from, and lookup compares it with the word actually fetched, so
+ * stores which bypass {@link Dcpu#memset} (self-modifying code, devices writing to cpu.mem) can never produce stale
+ * results - they are just counted as invalidations. Writes through memset/upload invalidate entries eagerly.
+ */
+public final class DecodeCache {
+
+    private static final int EMPTY = -1;
+
+    private final int[] words = new int[RAM_SIZE];
+    private final int[] infos = new int[RAM_SIZE];
+
+    private long hits;
+    private long misses;
+    private long invalidations;
+
+    public DecodeCache() {
+        Arrays.fill(words, EMPTY);
+    }
+
+    /**
+     * Returns descriptor of instruction word, which was fetched from address addr
+     */
+    public int lookup(int addr, int word) {
+        int cached = words[addr];
+        if (cached == word) {
+            hits++;
+            return infos[addr];
+        }
+        if (cached == EMPTY) {
+            misses++;
+        } else {
+            invalidations++; // memory was rewritten behind our back
+        }
+        words[addr] = word;
+        return infos[addr] = Decoder.decode(word);
+    }
+
+    /**
+     * Drops cached instruction at address
+     */
+    public void invalidate(int addr) {
+        if (words[addr] != EMPTY) {
+            words[addr] = EMPTY;
+            invalidations++;
+        }
+    }
+
+    /**
+     * Drops cached instructions in range, wrapping around end of memory
+     */
+    public void invalidate(int addr, int len) {
+        for (int i = 0; i < len; i++) {
+            invalidate((addr + i) & 0xffff);
+        }
+    }
+
+    /**
+     * Drops all entries, keeping statistics
+     */
+    public void clear() {
+        Arrays.fill(words, EMPTY);
+    }
+
+    public void resetStats() {
+        hits = misses = invalidations = 0;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getInvalidations() {
+        return invalidations;
+    }
+
+    public double getHitRate() {
+        long total = hits + misses + invalidations;
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DecodeCache hits=%d misses=%d invalidations=%d hit rate=%.2f%%",
+                hits, misses, invalidations, getHitRate() * 100);
+    }
+}
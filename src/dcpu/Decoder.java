@@ -0,0 +1,131 @@
+package dcpu;
+
+import static dcpu.Dcpu.*;
+
+/**
+ * Decodes instruction words into packed int descriptors.
+ * <p/>
+ * There are only 0x10000 possible instruction words, so descriptors for all of them are precomputed once per JVM into
+ * an immutable table, which is shared by all {@link Dcpu} instances, {@link DecodeCache} and {@link Disassembler}.
+ * <p/>
+ * Descriptor layout:
+ * <pre>
+ *  bits  0-4   opcode (basic opcode, or special opcode for non-basic instructions)
+ *  bits  5-10  'a' operand code
+ *  bits 11-15  'b' operand code (basic instructions only)
+ *  bits 16-17  instruction type (T_xxx)
+ *  bits 18-19  number of next words taken by operands
+ *  bits 20-23  base cost in cycles
+ * </pre>
+ * Reserved instructions have type T_INVALID, no next words and zero cost, but still carry their opcode and operand
+ * codes.
+ */
+public final class Decoder {
+
+    public static final int T_INVALID = 0;
+    public static final int T_BASIC = 1;
+    public static final int T_SPECIAL = 2;
+
+    private static final int D_OPCODE_MASK = 0x1f;
+    private static final int D_A_SHIFT = 5;
+    private static final int D_A_MASK = 0x3f;
+    private static final int D_B_SHIFT = 11;
+    private static final int D_B_MASK = 0x1f;
+    private static final int D_TYPE_SHIFT = 16;
+    private static final int D_TYPE_MASK = 0x3;
+    private static final int D_NW_SHIFT = 18;
+    private static final int D_NW_MASK = 0x3;
+    private static final int D_CYCLES_SHIFT = 20;
+    private static final int D_CYCLES_MASK = 0xf;
+
+    private static final int[] TABLE = new int[RAM_SIZE];
+
+    static {
+        for (int word = 0; word < TABLE.length; word++) {
+            TABLE[word] = compute(word);
+        }
+    }
+
+    private Decoder() {
+    }
+
+    /**
+     * Returns descriptor for instruction word
+     */
+    public static int decode(int word) {
+        return TABLE[word & 0xffff];
+    }
+
+    private static int compute(int word) {
+        int opcode = word & C_O_MASK;
+        if (opcode != O_NBI) {
+            BasicOp op = BasicOp.l(opcode);
+            int a = (word & C_A_MASK) >> C_A_SHIFT;
+            int b = (word & C_B_MASK) >> C_B_SHIFT;
+            if (op == null) return pack(T_INVALID, opcode, a, b, 0, 0);
+            return pack(T_BASIC, opcode, a, b, nextWords(a) + nextWords(b), op.cycles);
+        } else {
+            opcode = (word & C_NBI_O_MASK) >> C_NBI_O_SHIFT;
+            SpecialOp op = SpecialOp.l(opcode);
+            int a = (word & C_NBI_A_MASK) >> C_NBI_A_SHIFT;
+            if (op == null) return pack(T_INVALID, opcode, a, 0, 0, 0);
+            return pack(T_SPECIAL, opcode, a, 0, nextWords(a), op.cycles);
+        }
+    }
+
+    private static int pack(int type, int opcode, int a, int b, int nw, int cycles) {
+        return opcode | a << D_A_SHIFT | b << D_B_SHIFT | type << D_TYPE_SHIFT | nw << D_NW_SHIFT | cycles << D_CYCLES_SHIFT;
+    }
+
+    /**
+     * Number of next words used by operand code
+     */
+    public static int nextWords(int code) {
+        return ((code >= A_M_NW_REG && code < A_PUSHPOP) || code == A_PICK || code == A_M_NW || code == A_NW) ? 1 : 0;
+    }
+
+    public static int type(int info) {
+        return (info >> D_TYPE_SHIFT) & D_TYPE_MASK;
+    }
+
+    public static int opcode(int info) {
+        return info & D_OPCODE_MASK;
+    }
+
+    public static int a(int info) {
+        return (info >> D_A_SHIFT) & D_A_MASK;
+    }
+
+    public static int b(int info) {
+        return (info >> D_B_SHIFT) & D_B_MASK;
+    }
+
+    public static int nextWordCount(int info) {
+        return (info >> D_NW_SHIFT) & D_NW_MASK;
+    }
+
+    /**
+     * Instruction length in words (1 for reserved instructions)
+     */
+    public static int length(int info) {
+        return 1 + nextWordCount(info);
+    }
+
+    public static int cycles(int info) {
+        return (info >> D_CYCLES_SHIFT) & D_CYCLES_MASK;
+    }
+
+    /**
+     * Basic operation of descriptor, or null if it is not a basic instruction
+     */
+    public static BasicOp basicOp(int info) {
+        return type(info) == T_BASIC ? BasicOp.l(opcode(info)) : null;
+    }
+
+    /**
+     * Special operation of descriptor, or null if it is not a special instruction
+     */
+    public static SpecialOp specialOp(int info) {
+        return type(info) == T_SPECIAL ? SpecialOp.l(opcode(info)) : null;
+    }
+}
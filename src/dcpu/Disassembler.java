@@ -28,11 +28,11 @@ public class Disassembler {
     public String next(boolean incrementMemory) {
         List<String> nextWords = new ArrayList<String>();
         int instr = (incrementMemory ? mem[address++] : mem[address]);
-        int opcode = instr & C_O_MASK;
-        if (opcode != O_NBI) {
-            int a = (instr & C_A_MASK) >> C_A_SHIFT;
-            int b = (instr & C_B_MASK) >> C_B_SHIFT;
-            BasicOp bop = BasicOp.l(opcode);
+        int info = Decoder.decode(instr);
+        if ((instr & C_O_MASK) != O_NBI) {
+            int a = Decoder.a(info);
+            int b = Decoder.b(info);
+            BasicOp bop = Decoder.basicOp(info);
 
             // Words come in order : OPERATION_WORD NW_A NW_B
             // but we print B first, so need to store up the NW_ values before printing them in case there's multiple
@@ -49,9 +49,8 @@ public class Disassembler {
             }
             return line;
         } else {
-            int a = (instr & C_NBI_A_MASK) >> C_NBI_A_SHIFT;
-            opcode = (instr & C_NBI_O_MASK) >> C_NBI_O_SHIFT;
-            SpecialOp sop = SpecialOp.l(opcode);
+            int a = Decoder.a(info);
+            SpecialOp sop = Decoder.specialOp(info);
             if (sop == null) return String.format("DAT 0x%04x", instr);
 
             StringBuilder sb = new StringBuilder();
@@ -0,0 +1,241 @@
+package dcpu;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static dcpu.Dcpu.RAM_SIZE;
+
+/**
+ * Ring of the last {@link #getCapacity()} executed instructions: PC, first word and cycle counter at instruction
+ * start, kept in primitive arrays, so recording is three stores per step. Meant to be left on, to find out how the
+ * program got into a crash.
+ * <p/>
+ * History may be dumped any time, and is dumped automatically when CPU halts, depending on {@link Dump}. Dump shows
+ * instructions disassembled from recorded first word (next words are taken from current memory), with nearest code
+ * label of {@link AsmMap}. Skipped instructions are not recorded.
+ * <p/>
+ * History doesn't turn off compiled code (JIT, static recompiler): blocks are straight runs of instructions, so code
+ * words at block entry are copied before the block runs, and after it exits its instructions are recorded by walking
+ * the copy, with start cycles counted from their costs. A block which rewrites its own instructions is recorded as
+ * it was executed.
+ */
+public final class ExecutionHistory {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    /**
+     * Code words copied at block entry - enough for blocks of JIT and static recompiler, which are at most 64
+     * instructions of up to 3 words. Longer blocks are walked in memory past the copy
+     */
+    static final int BLOCK_WORDS = 256;
+
+    public enum Dump {
+        NEVER,
+        /**
+         * When CPU halts on reserved opcode or catches fire
+         */
+        ON_CRASH,
+        /**
+         * Whenever CPU halts (HCF, crash, breakpoint, pause)
+         */
+        ON_HALT
+    }
+
+    private final char[] pcs;
+    private final char[] words;
+    private final long[] cycles;
+    private final int mask;
+    private long count;
+    private final char[] blockWords = new char[BLOCK_WORDS];
+
+    private Dump dump = Dump.ON_CRASH;
+    private PrintStream dumpOut = System.err;
+    private int dumpLength;
+    private long dumpedAt = -1;
+    private AsmMap map;
+    private final TreeMap<Integer, String> labels = new TreeMap<Integer, String>();
+
+    private Dcpu cpu;
+
+    public ExecutionHistory() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity number of instructions to keep, rounded up to power of 2
+     */
+    public ExecutionHistory(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 24) throw new IllegalArgumentException("Bad capacity " + capacity);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        pcs = new char[size];
+        words = new char[size];
+        cycles = new long[size];
+        mask = size - 1;
+        dumpLength = size;
+    }
+
+    public void install(Dcpu cpu) {
+        this.cpu = cpu;
+        cpu.setHistory(this);
+    }
+
+    public void uninstall() {
+        if (cpu != null) cpu.setHistory(null);
+        cpu = null;
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Number of instructions recorded since install or reset (not all of them are kept)
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Number of instructions kept
+     */
+    public int size() {
+        return (int) Math.min(count, mask + 1);
+    }
+
+    /**
+     * PC of instruction executed back instructions ago (0 is the last one)
+     */
+    public char pc(int back) {
+        return pcs[index(back)];
+    }
+
+    /**
+     * First word of instruction, as executed
+     */
+    public char word(int back) {
+        return words[index(back)];
+    }
+
+    /**
+     * Cycle counter before instruction started
+     */
+    public long cycles(int back) {
+        return cycles[index(back)];
+    }
+
+    private int index(int back) {
+        if (back < 0 || back >= size()) throw new IndexOutOfBoundsException("No instruction " + back + " back");
+        return (int) (count - 1 - back) & mask;
+    }
+
+    public void reset() {
+        count = 0;
+        dumpedAt = -1;
+    }
+
+    /**
+     * Sets when history is dumped automatically, where, and how many last instructions
+     */
+    public void setDump(Dump dump, PrintStream out, int length) {
+        this.dump = dump;
+        this.dumpOut = out;
+        this.dumpLength = length;
+    }
+
+    public Dump getDump() {
+        return dump;
+    }
+
+    /**
+     * Sets map of the program to name addresses after
+     */
+    public void setMap(AsmMap map) {
+        this.map = map;
+        labels.clear();
+        if (map != null) {
+            for (Map.Entry<String, Character> symbol : map.symbolMap.entrySet()) {
+                int addr = symbol.getValue();
+                if (map.code(addr) && !labels.containsKey(addr)) labels.put(addr, symbol.getKey());
+            }
+        }
+    }
+
+    void record(char pc, long cycles, char word) {
+        int i = (int) count & mask;
+        pcs[i] = pc;
+        this.cycles[i] = cycles;
+        words[i] = word;
+        count++;
+    }
+
+    /**
+     * Copies code words of compiled block which is about to be entered at pc
+     */
+    void enterBlock(char[] mem, char pc) {
+        int head = Math.min(BLOCK_WORDS, RAM_SIZE - pc);
+        System.arraycopy(mem, pc, blockWords, 0, head);
+        System.arraycopy(mem, 0, blockWords, head, BLOCK_WORDS - head);
+    }
+
+    /**
+     * Records n instructions of compiled block entered at pc at cycle counter value cycles, from words copied by
+     * {@link #enterBlock}
+     */
+    void recordBlock(char[] mem, char pc, long cycles, int n) {
+        int offset = 0;
+        for (int i = 0; i < n; i++) {
+            char word = offset < BLOCK_WORDS ? blockWords[offset] : mem[pc];
+            int info = Decoder.decode(word);
+            record(pc, cycles, word);
+            cycles += 1 + Decoder.cycles(info);
+            pc += Decoder.length(info);
+            offset += Decoder.length(info);
+        }
+    }
+
+    /**
+     * Called after instruction which left CPU halted
+     */
+    void halted(Dcpu cpu) {
+        if (dumpedAt == count) return;
+        if (dump == Dump.ON_HALT || (dump == Dump.ON_CRASH && (cpu.reserved || cpu.isOnFire()))) {
+            dumpedAt = count;
+            String reason = cpu.reserved ? "reserved opcode" : cpu.isOnFire() ? "fire" : "halt";
+            dumpOut.printf("%s at 0x%04x, last instructions:%n", reason, (int) pc(0));
+            dump(dumpOut, dumpLength);
+        }
+    }
+
+    /**
+     * Prints last instructions, the oldest first
+     *
+     * @param last maximal number of instructions to print
+     */
+    public void dump(PrintStream out, int last) {
+        char[] instruction = new char[3];
+        Disassembler disassembler = new Disassembler();
+        disassembler.init(instruction);
+        for (int back = Math.min(last, size()) - 1; back >= 0; back--) {
+            char pc = pc(back);
+            instruction[0] = word(back);
+            instruction[1] = cpu == null ? 0 : cpu.mem[(pc + 1) & 0xffff];
+            instruction[2] = cpu == null ? 0 : cpu.mem[(pc + 2) & 0xffff];
+            disassembler.setAddress(0);
+            String modified = cpu != null && cpu.mem[pc] != instruction[0] ? " ; overwritten since" : "";
+            out.printf("%12d %04x %-20s %s%s%n", cycles(back), (int) pc, name(pc), disassembler.next(true), modified);
+        }
+    }
+
+    /**
+     * Nearest code label at or before addr with offset, and source line, or empty string without map
+     */
+    private String name(int addr) {
+        if (map == null) return "";
+        Map.Entry<Integer, String> label = labels.floorEntry(addr);
+        String name = label == null ? "" : label.getKey() == addr ? label.getValue()
+                : String.format("%s+0x%x", label.getValue(), addr - label.getKey());
+        Integer line = map.bin2src((char) addr);
+        return line == null ? name : name + ":" + line;
+    }
+}
@@ -0,0 +1,306 @@
+package dcpu;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Publishes executed instructions in batches, as an alternative to per-instruction {@link Dcpu#stepListener}.
+ * <p/>
+ * CPU thread writes (PC, cycle counter at instruction start, instruction word) records into a ring of
+ * {@link #getBatchCount()} preallocated batches of {@link #getBatchSize()} records. A batch is published when it is
+ * full, or when {@link Dcpu#run()}, {@link Dcpu#run(int)} or {@link Dcpu#runUntil(long)} returns (halt, breakpoint,
+ * end of frame). Subscribers receive batches on their own executor, as many as they have requested, so they may be
+ * slower than the CPU: when the ring is full, CPU thread waits for the slowest subscriber (backpressure). Without
+ * subscribers, batches are dropped.
+ * <p/>
+ * {@link Subscriber} and {@link Subscription} follow java.util.concurrent.Flow (which is not available on Java 6/7),
+ * and may be adapted to it one-to-one. While stream is installed, compiled code (JIT, static recompiler) is not used.
+ */
+public final class ExecutionStream {
+
+    public static final int DEFAULT_BATCH_SIZE = 1024;
+    public static final int DEFAULT_BATCH_COUNT = 16;
+    private static final long WAIT_NANOS = 50L * 1000L;
+
+    /**
+     * Executed instructions. Batch is owned by subscriber only during {@link Subscriber#onNext}, and is reused after
+     * that, so records which are needed later must be copied.
+     */
+    public static final class Batch {
+        private final char[] pcs;
+        private final long[] cycles;
+        private final char[] words;
+        private int size;
+        private long sequence;
+
+        private Batch(int capacity) {
+            pcs = new char[capacity];
+            cycles = new long[capacity];
+            words = new char[capacity];
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Number of batch in the stream, starting with 0
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        public char pc(int i) {
+            return pcs[i];
+        }
+
+        /**
+         * Cycle counter before instruction started
+         */
+        public long cycles(int i) {
+            return cycles[i];
+        }
+
+        /**
+         * First word of instruction
+         */
+        public char word(int i) {
+            return words[i];
+        }
+    }
+
+    public interface Subscription {
+        /**
+         * Allows delivery of n more batches
+         */
+        void request(long n);
+
+        void cancel();
+    }
+
+    public interface Subscriber {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(Batch batch);
+
+        void onError(Throwable error);
+
+        void onComplete();
+    }
+
+    private final Batch[] ring;
+    private final int batchSize;
+    private final List<Sub> subscriptions = new CopyOnWriteArrayList<Sub>();
+    private volatile long published;
+    private volatile boolean completed;
+    private Batch current;
+    private int position;
+    private volatile long waits;
+    private Dcpu cpu;
+
+    public ExecutionStream() {
+        this(DEFAULT_BATCH_SIZE, DEFAULT_BATCH_COUNT);
+    }
+
+    public ExecutionStream(int batchSize, int batchCount) {
+        if (batchSize <= 0 || batchCount <= 0) throw new IllegalArgumentException("Bad batch size or count");
+        this.batchSize = batchSize;
+        ring = new Batch[batchCount];
+        for (int i = 0; i < batchCount; i++) {
+            ring[i] = new Batch(batchSize);
+        }
+    }
+
+    public void install(Dcpu cpu) {
+        this.cpu = cpu;
+        cpu.setStream(this);
+    }
+
+    /**
+     * Detaches from CPU, publishes the last batch and completes subscribers, after they receive all batches
+     */
+    public void uninstall() {
+        if (cpu != null) cpu.setStream(null);
+        cpu = null;
+        flush();
+        completed = true;
+        for (Sub sub : subscriptions) {
+            sub.signal();
+        }
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getBatchCount() {
+        return ring.length;
+    }
+
+    /**
+     * Number of batches published so far
+     */
+    public long getPublished() {
+        return published;
+    }
+
+    /**
+     * Number of times CPU thread had to wait for subscribers
+     */
+    public long getWaits() {
+        return waits;
+    }
+
+    void record(char pc, long cycles, char word) {
+        if (current == null) acquire();
+        current.pcs[position] = pc;
+        current.cycles[position] = cycles;
+        current.words[position] = word;
+        if (++position == batchSize) publish();
+    }
+
+    /**
+     * Publishes partially filled batch, if any
+     */
+    void flush() {
+        if (current != null && position > 0) publish();
+    }
+
+    private void publish() {
+        current.size = position;
+        current.sequence = published;
+        current = null;
+        position = 0;
+        published++;
+        for (Sub sub : subscriptions) {
+            sub.signal();
+        }
+    }
+
+    /**
+     * Takes the next batch of the ring, waiting until every subscriber has received the batch it held before
+     */
+    private void acquire() {
+        long reused = published - ring.length;
+        boolean waited = false;
+        while (minDelivered() <= reused) {
+            if (!waited) waits++;
+            waited = true;
+            LockSupport.parkNanos(WAIT_NANOS);
+        }
+        current = ring[(int) (published % ring.length)];
+    }
+
+    private long minDelivered() {
+        long min = Long.MAX_VALUE;
+        for (Sub sub : subscriptions) {
+            min = Math.min(min, sub.delivered);
+        }
+        return min;
+    }
+
+    /**
+     * Subscribes to batches published from now on, delivered on the executor
+     */
+    public void subscribe(Subscriber subscriber, Executor executor) {
+        Sub sub = new Sub(subscriber, executor, null);
+        subscriptions.add(sub);
+        subscriber.onSubscribe(sub);
+    }
+
+    /**
+     * Subscribes to batches published from now on, delivered on a new daemon thread
+     */
+    public void subscribe(Subscriber subscriber) {
+        ExecutorService thread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ExecutionStream-subscriber");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        Sub sub = new Sub(subscriber, thread, thread);
+        subscriptions.add(sub);
+        subscriber.onSubscribe(sub);
+    }
+
+    private final class Sub implements Subscription, Runnable {
+        private final Subscriber subscriber;
+        private final Executor executor;
+        private final ExecutorService ownExecutor;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile long delivered = published;
+        private volatile boolean done;
+
+        private Sub(Subscriber subscriber, Executor executor, ExecutorService ownExecutor) {
+            this.subscriber = subscriber;
+            this.executor = executor;
+            this.ownExecutor = ownExecutor;
+        }
+
+        @Override
+        public void request(long n) {
+            if (done) return;
+            if (n <= 0) {
+                terminate();
+                subscriber.onError(new IllegalArgumentException("Non-positive request " + n));
+                return;
+            }
+            long old, sum;
+            do {
+                old = demand.get();
+                sum = old + n < 0 ? Long.MAX_VALUE : old + n;
+            } while (!demand.compareAndSet(old, sum));
+            signal();
+        }
+
+        @Override
+        public void cancel() {
+            terminate();
+        }
+
+        private void terminate() {
+            done = true;
+            subscriptions.remove(this);
+            if (ownExecutor != null) ownExecutor.shutdown();
+        }
+
+        private boolean ready() {
+            return !done && ((delivered < published && demand.get() > 0) || (completed && delivered == published));
+        }
+
+        void signal() {
+            if (ready() && scheduled.compareAndSet(false, true)) executor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            do {
+                try {
+                    while (!done && delivered < published && demand.get() > 0) {
+                        subscriber.onNext(ring[(int) (delivered % ring.length)]);
+                        demand.decrementAndGet();
+                        delivered++;
+                    }
+                    if (!done && completed && delivered == published) {
+                        terminate();
+                        subscriber.onComplete();
+                    }
+                } catch (RuntimeException e) {
+                    terminate();
+                    subscriber.onError(e);
+                }
+                scheduled.set(false);
+            } while (ready() && scheduled.compareAndSet(false, true));
+        }
+    }
+}
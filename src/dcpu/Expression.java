@@ -0,0 +1,497 @@
+package dcpu;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static dcpu.Dcpu.*;
+
+/**
+ * Expression over CPU state, used as breakpoint condition. Compiled once into a tree of small specialized nodes, so
+ * evaluation is a few virtual calls, without parsing or looking anything up.
+ * <p/>
+ * Syntax is C-like, over 64-bit integers:
+ * <ul>
+ * <li>operands: numbers (decimal, 0x hex, 0b binary, 'c'), registers A B C X Y Z I J SP PC EX IA, CYCLES (cycle
+ * counter), labels of {@link AsmMap}, [expr] (memory word at expr), (expr);</li>
+ * <li>unary - ~ !;</li>
+ * <li>binary operators by precedence: * / %, + -, &lt;&lt; &gt;&gt;, &lt; &lt;= &gt; &gt;=, == !=, &amp;, ^, |,
+ * &amp;&amp;, ||.</li>
+ * </ul>
+ * Comparisons and logical operators give 1 or 0. Names are case-insensitive. Parts with constant operands are
+ * evaluated at compile time.
+ */
+public abstract class Expression {
+
+    public abstract long eval(Dcpu cpu);
+
+    /**
+     * true if expression evaluates to non-zero
+     */
+    public boolean test(Dcpu cpu) {
+        return eval(cpu) != 0;
+    }
+
+    /**
+     * Compiles expression
+     *
+     * @param map labels to resolve, may be null
+     * @throws IllegalArgumentException on syntax error
+     */
+    public static Expression compile(String source, AsmMap map) {
+        Parser parser = new Parser(source, map);
+        Expression expression = parser.expression();
+        if (parser.pos < source.length()) throw parser.error("Unexpected '" + source.substring(parser.pos) + "'");
+        return expression;
+    }
+
+    /**
+     * Compiles message with {expr} parts, which are printed as 0x-prefixed hex, or as decimal with {expr:d}
+     */
+    public static Template compileTemplate(String source, AsmMap map) {
+        List<String> texts = new ArrayList<String>();
+        List<Expression> expressions = new ArrayList<Expression>();
+        List<Boolean> decimals = new ArrayList<Boolean>();
+        int start = 0;
+        int open;
+        while ((open = source.indexOf('{', start)) >= 0) {
+            int close = source.indexOf('}', open);
+            if (close < 0) throw new IllegalArgumentException("Unclosed { at " + open + " in \"" + source + "\"");
+            texts.add(source.substring(start, open));
+            String expr = source.substring(open + 1, close);
+            boolean decimal = expr.endsWith(":d");
+            if (decimal) expr = expr.substring(0, expr.length() - 2);
+            expressions.add(compile(expr, map));
+            decimals.add(decimal);
+            start = close + 1;
+        }
+        texts.add(source.substring(start));
+        return new Template(texts.toArray(new String[texts.size()]),
+                expressions.toArray(new Expression[expressions.size()]), decimals);
+    }
+
+    public static final class Template {
+        private final String[] texts;
+        private final Expression[] expressions;
+        private final boolean[] decimal;
+
+        private Template(String[] texts, Expression[] expressions, List<Boolean> decimal) {
+            this.texts = texts;
+            this.expressions = expressions;
+            this.decimal = new boolean[expressions.length];
+            for (int i = 0; i < expressions.length; i++) {
+                this.decimal[i] = decimal.get(i);
+            }
+        }
+
+        public String format(Dcpu cpu) {
+            StringBuilder sb = new StringBuilder(texts[0]);
+            for (int i = 0; i < expressions.length; i++) {
+                long value = expressions[i].eval(cpu);
+                sb.append(decimal[i] ? Long.toString(value) : "0x" + Long.toHexString(value));
+                sb.append(texts[i + 1]);
+            }
+            return sb.toString();
+        }
+    }
+
+    ////////////////////////////////
+    // Nodes
+
+    private static final class Const extends Expression {
+        final long value;
+
+        Const(long value) {
+            this.value = value;
+        }
+
+        @Override
+        public long eval(Dcpu cpu) {
+            return value;
+        }
+    }
+
+    /**
+     * Register, or memory word at constant address
+     */
+    private static final class Cell extends Expression {
+        final int address;
+
+        Cell(int address) {
+            this.address = address;
+        }
+
+        @Override
+        public long eval(Dcpu cpu) {
+            return cpu.mem[address];
+        }
+    }
+
+    /**
+     * reg + offset
+     */
+    private static final class RegPlus extends Expression {
+        final int register;
+        final int offset;
+
+        RegPlus(int register, int offset) {
+            this.register = register;
+            this.offset = offset;
+        }
+
+        @Override
+        public long eval(Dcpu cpu) {
+            return cpu.mem[register] + (long) offset;
+        }
+    }
+
+    /**
+     * [reg + offset]
+     */
+    private static final class RegOffset extends Expression {
+        final int register;
+        final int offset;
+
+        RegOffset(int register, int offset) {
+            this.register = register;
+            this.offset = offset;
+        }
+
+        @Override
+        public long eval(Dcpu cpu) {
+            return cpu.mem[(cpu.mem[register] + offset) & 0xffff];
+        }
+    }
+
+    private static final class Memory extends Expression {
+        final Expression address;
+
+        Memory(Expression address) {
+            this.address = address;
+        }
+
+        @Override
+        public long eval(Dcpu cpu) {
+            return cpu.mem[(int) address.eval(cpu) & 0xffff];
+        }
+    }
+
+    private static final class Cycles extends Expression {
+        @Override
+        public long eval(Dcpu cpu) {
+            return cpu.cycles;
+        }
+    }
+
+    private abstract static class Unary extends Expression {
+        final Expression e;
+
+        Unary(Expression e) {
+            this.e = e;
+        }
+    }
+
+    private abstract static class Binary extends Expression {
+        final Expression l, r;
+
+        Binary(Expression l, Expression r) {
+            this.l = l;
+            this.r = r;
+        }
+    }
+
+    private static Expression unary(char op, Expression e) {
+        Expression result;
+        if (op == '-') {
+            result = new Unary(e) {
+                @Override
+                public long eval(Dcpu cpu) {
+                    return -e.eval(cpu);
+                }
+            };
+        } else if (op == '~') {
+            result = new Unary(e) {
+                @Override
+                public long eval(Dcpu cpu) {
+                    return ~e.eval(cpu);
+                }
+            };
+        } else {
+            result = new Unary(e) {
+                @Override
+                public long eval(Dcpu cpu) {
+                    return e.eval(cpu) == 0 ? 1 : 0;
+                }
+            };
+        }
+        return (e instanceof Const) ? new Const(result.eval(null)) : result;
+    }
+
+    private static Expression binary(String op, Expression l, Expression r) {
+        Expression result;
+        if (op.equals("*")) {
+            result = new Binary(l, r) {
+                @Override
+                public long eval(Dcpu cpu) {
+                    return l.eval(cpu) * r.eval(cpu);
+                }
+            };
+        } else if (op.equals("/")) {
+            result = new Binary(l, r) {
+                @Override
+                public long eval(Dcpu cpu) {
+                    long d = r.eval(cpu);
+                    return d == 0 ? 0 : l.eval(cpu) / d; // like DIV
+                }
+            };
+        } else if (op.equals("%")) {
+            result = new Binary(l, r) {
+                @Override
+                public long eval(Dcpu cpu) {
+                    long d = r.eval(cpu);
+                    return d == 0 ? 0 : l.eval(cpu) % d;
+                }
+            };
+        } else if (op.equals("+")) {
+            if (r instanceof Const && l instanceof Cell && ((Cell) l).address >= M_A) {
+                return new RegPlus(((Cell) l).address, (int) ((Const) r).value);
+            }
+            result = new Binary(l, r) {
+                @Override
+                public long eval(Dcpu cpu) {
+                    return l.eval(cpu) + r.eval(cpu);
+                }
+            };
+        } else if (op.equals("-")) {
+            result = new Binary(l, r) {
+                @Override
+                public long eval(Dcpu cpu) {
+                    return l.eval(cpu) - r.eval(cpu);
+                }
+            };
+        } else if (op.equals("<<")) {
+            result = new Binary(l, r) {
+                @Override
+                public long eval(Dcpu cpu) {
+                    return l.eval(cpu) << r.eval(cpu);
+                }
+            };
+        } else if (op.equals(">>")) {
+            result = new Binary(l, r) {
+                @Override
+                public long eval(Dcpu cpu) {
+                    return l.eval(cpu) >> r.eval(cpu);
+                }
+            };
+        } else if (op.equals("<")) {
+            result = new Binary(l, r) {
+                @Override
+                public long eval(Dcpu cpu) {
+                    return l.eval(cpu) < r.eval(cpu) ? 1 : 0;
+                }
+            };
+        } else if (op.equals("<=")) {
+            result = new Binary(l, r) {
+                @Override
+                public long eval(Dcpu cpu) {
+                    return l.eval(cpu) <= r.eval(cpu) ? 1 : 0;
+                }
+            };
+        } else if (op.equals(">")) {
+            result = new Binary(l, r) {
+                @Override
+                public long eval(Dcpu cpu) {
+                    return l.eval(cpu) > r.eval(cpu) ? 1 : 0;
+                }
+            };
+        } else if (op.equals(">=")) {
+            result = new Binary(l, r) {
+                @Override
+                public long eval(Dcpu cpu) {
+                    return l.eval(cpu) >= r.eval(cpu) ? 1 : 0;
+                }
+            };
+        } else if (op.equals("==")) {
+            result = new Binary(l, r) {
+                @Override
+                public long eval(Dcpu cpu) {
+                    return l.eval(cpu) == r.eval(cpu) ? 1 : 0;
+                }
+            };
+        } else if (op.equals("!=")) {
+            result = new Binary(l, r) {
+                @Override
+                public long eval(Dcpu cpu) {
+                    return l.eval(cpu) != r.eval(cpu) ? 1 : 0;
+                }
+            };
+        } else if (op.equals("&")) {
+            result = new Binary(l, r) {
+                @Override
+                public long eval(Dcpu cpu) {
+                    return l.eval(cpu) & r.eval(cpu);
+                }
+            };
+        } else if (op.equals("^")) {
+            result = new Binary(l, r) {
+                @Override
+                public long eval(Dcpu cpu) {
+                    return l.eval(cpu) ^ r.eval(cpu);
+                }
+            };
+        } else if (op.equals("|")) {
+            result = new Binary(l, r) {
+                @Override
+                public long eval(Dcpu cpu) {
+                    return l.eval(cpu) | r.eval(cpu);
+                }
+            };
+        } else if (op.equals("&&")) {
+            result = new Binary(l, r) {
+                @Override
+                public long eval(Dcpu cpu) {
+                    return l.eval(cpu) != 0 && r.eval(cpu) != 0 ? 1 : 0;
+                }
+            };
+        } else {
+            result = new Binary(l, r) {
+                @Override
+                public long eval(Dcpu cpu) {
+                    return l.eval(cpu) != 0 || r.eval(cpu) != 0 ? 1 : 0;
+                }
+            };
+        }
+        return (l instanceof Const && r instanceof Const) ? new Const(result.eval(null)) : result;
+    }
+
+    private static Expression memory(Expression address) {
+        if (address instanceof Const) return new Cell((int) ((Const) address).value & 0xffff);
+        if (address instanceof Cell && ((Cell) address).address >= M_A) {
+            return new RegOffset(((Cell) address).address, 0);
+        }
+        if (address instanceof RegPlus) return new RegOffset(((RegPlus) address).register, ((RegPlus) address).offset);
+        return new Memory(address);
+    }
+
+    ////////////////////////////////
+    // Parser
+
+    private static final String[][] LEVELS = {
+            {"||"}, {"&&"}, {"|"}, {"^"}, {"&"}, {"==", "!="}, {"<=", ">=", "<", ">"},
+            {"<<", ">>"}, {"+", "-"}, {"*", "/", "%"}};
+
+    private static class Parser {
+        final String source;
+        final AsmMap map;
+        int pos = 0;
+
+        Parser(String source, AsmMap map) {
+            this.source = source;
+            this.map = map;
+            skipSpaces();
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at " + pos + " in \"" + source + "\"");
+        }
+
+        void skipSpaces() {
+            while (pos < source.length() && Character.isWhitespace(source.charAt(pos))) pos++;
+        }
+
+        boolean accept(String token) {
+            if (!source.startsWith(token, pos)) return false;
+            pos += token.length();
+            skipSpaces();
+            return true;
+        }
+
+        Expression expression() {
+            return level(0);
+        }
+
+        Expression level(int level) {
+            if (level == LEVELS.length) return unary();
+            Expression left = level(level + 1);
+            while (true) {
+                String op = operator(level);
+                if (op == null) return left;
+                left = binary(op, left, level(level + 1));
+            }
+        }
+
+        String operator(int level) {
+            for (String op : LEVELS[level]) {
+                if (!source.startsWith(op, pos)) continue;
+                // don't take & of &&, | of ||, < of << and <=, and so on
+                String rest = source.substring(pos + op.length());
+                if (op.length() == 1 && rest.length() > 0 && "&|<>=".indexOf(rest.charAt(0)) >= 0
+                        && (rest.charAt(0) == op.charAt(0) || rest.charAt(0) == '=')) {
+                    continue;
+                }
+                accept(op);
+                return op;
+            }
+            return null;
+        }
+
+        Expression unary() {
+            if (accept("-")) return Expression.unary('-', unary());
+            if (accept("~")) return Expression.unary('~', unary());
+            if (accept("!")) return Expression.unary('!', unary());
+            return primary();
+        }
+
+        Expression primary() {
+            if (accept("(")) {
+                Expression e = expression();
+                if (!accept(")")) throw error("Expected )");
+                return e;
+            }
+            if (accept("[")) {
+                Expression e = expression();
+                if (!accept("]")) throw error("Expected ]");
+                return memory(e);
+            }
+            if (pos >= source.length()) throw error("Unexpected end");
+            char c = source.charAt(pos);
+            if (c == '\'' && pos + 2 < source.length() && source.charAt(pos + 2) == '\'') {
+                char value = source.charAt(pos + 1);
+                pos += 3;
+                skipSpaces();
+                return new Const(value);
+            }
+            int start = pos;
+            while (pos < source.length()
+                    && (Character.isLetterOrDigit(source.charAt(pos)) || source.charAt(pos) == '_'
+                    || source.charAt(pos) == '.')) {
+                pos++;
+            }
+            if (start == pos) throw error("Unexpected '" + c + "'");
+            String word = source.substring(start, pos);
+            skipSpaces();
+            if (Character.isDigit(c)) return new Const(number(word, start));
+            String name = word.toLowerCase();
+            Reg reg = Reg.byName(word.toUpperCase());
+            if (reg != null && reg.offset <= Reg.IA.offset) return new Cell(reg.address);
+            if (name.equals("cycles")) return new Cycles();
+            Character symbol = map == null ? null : map.symbol(name);
+            if (symbol == null) {
+                pos = start;
+                throw error("Unknown name " + word);
+            }
+            return new Const(symbol);
+        }
+
+        long number(String word, int start) {
+            try {
+                String lower = word.toLowerCase();
+                if (lower.startsWith("0x")) return Long.parseLong(word.substring(2), 16);
+                if (lower.startsWith("0b")) return Long.parseLong(word.substring(2), 2);
+                return Long.parseLong(word);
+            } catch (NumberFormatException e) {
+                pos = start;
+                throw error("Bad number " + word);
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package dcpu;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces many real-time machines from one timer thread, instead of every {@link Dcpu#run()} sleeping on its own.
+ * <p/>
+ * Every 1/{@link Dcpu#FRAMES_PER_SECOND} second the timer hands each machine its frame budget of
+ * {@link Dcpu#getCyclesPerFrame()} cycles, executed on a worker pool. Frame deadlines are absolute, so timer jitter
+ * doesn't accumulate, and each machine runs to an absolute cycle target, so cycles it couldn't execute in one frame
+ * are caught up in the next ones (at most {@link #MAX_CATCHUP_FRAMES} frames behind).
+ * <p/>
+ * Per-machine stats: frames which finished after their deadline (late), frames which weren't started because the
+ * previous one was still running (overruns), and achieved frequency. Machines leave the clock when they halt.
+ */
+public class FrameClock {
+
+    public static final long FRAME_NANOS = 1000L * 1000L * 1000L / Dcpu.FRAMES_PER_SECOND;
+    public static final int MAX_CATCHUP_FRAMES = 2;
+
+    public final class Machine implements Runnable {
+        private final Dcpu cpu;
+        private final AtomicBoolean busy = new AtomicBoolean();
+        private final long startTime = System.nanoTime();
+        private final long startCycles;
+        private long targetCycles;
+        private long deadline;
+
+        private volatile long frames;
+        private volatile long lateFrames;
+        private volatile long overruns;
+        private volatile long executedCycles;
+
+        private Machine(Dcpu cpu) {
+            this.cpu = cpu;
+            this.startCycles = targetCycles = cpu.cycles;
+        }
+
+        /**
+         * Called by timer thread at the start of frame
+         */
+        private void tick(long frameDeadline) {
+            if (!busy.compareAndSet(false, true)) {
+                overruns++;
+                return;
+            }
+            long frameCycles = cpu.getCyclesPerFrame();
+            targetCycles = Math.min(targetCycles + frameCycles, cpu.cycles + MAX_CATCHUP_FRAMES * frameCycles);
+            deadline = frameDeadline;
+            workers.execute(this);
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (cpu.runUntil(targetCycles)) machines.remove(this);
+            } finally {
+                frames++;
+                if (System.nanoTime() > deadline) lateFrames++;
+                executedCycles = cpu.cycles - startCycles;
+                busy.set(false);
+            }
+        }
+
+        public Dcpu getCpu() {
+            return cpu;
+        }
+
+        public long getFrames() {
+            return frames;
+        }
+
+        /**
+         * Frames which finished after the start of the next frame
+         */
+        public long getLateFrames() {
+            return lateFrames;
+        }
+
+        /**
+         * Frames skipped because the previous frame was still running
+         */
+        public long getOverruns() {
+            return overruns;
+        }
+
+        public long getExecutedCycles() {
+            return executedCycles;
+        }
+
+        /**
+         * Average frequency since machine was added, in Hz
+         */
+        public double getAchievedFrequency() {
+            long nanos = System.nanoTime() - startTime;
+            return nanos <= 0 ? 0 : executedCycles * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Machine frames=%d late=%d overruns=%d freq=%.0f/%d", frames, lateFrames, overruns,
+                    getAchievedFrequency(), cpu.getFrequency());
+        }
+    }
+
+    private final List<Machine> machines = new CopyOnWriteArrayList<Machine>();
+    private final ExecutorService workers;
+    private volatile Thread timer;
+    private volatile long lateTicks;
+
+    /**
+     * Creates clock with worker thread per processor
+     */
+    public FrameClock() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public FrameClock(int nworkers) {
+        workers = Executors.newFixedThreadPool(nworkers, new ThreadFactory() {
+            private int seq = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "FrameClock-worker-" + (seq++));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Adds machine, which starts running on the next frame
+     */
+    public Machine add(Dcpu cpu) {
+        cpu.halt = false;
+        Machine machine = new Machine(cpu);
+        machines.add(machine);
+        return machine;
+    }
+
+    /**
+     * Removes machine. Its current frame, if any, still runs to the end
+     */
+    public void remove(Machine machine) {
+        machines.remove(machine);
+    }
+
+    public List<Machine> getMachines() {
+        return machines;
+    }
+
+    public synchronized void start() {
+        if (timer != null) return;
+        timer = new Thread("FrameClock-timer") {
+            @Override
+            public void run() {
+                timerLoop(this);
+            }
+        };
+        timer.setDaemon(true);
+        timer.start();
+    }
+
+    /**
+     * Stops the timer and worker threads. Clock can not be restarted after that
+     */
+    public synchronized void stop() {
+        Thread t = timer;
+        timer = null;
+        if (t != null) {
+            LockSupport.unpark(t);
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        workers.shutdown();
+    }
+
+    private void timerLoop(Thread self) {
+        long nextTime = System.nanoTime();
+        while (timer == self) {
+            long now;
+            while ((now = System.nanoTime()) < nextTime) {
+                LockSupport.parkNanos(nextTime - now);
+                if (timer != self) return;
+            }
+            if (now - nextTime > FRAME_NANOS) {
+                // woke up more than a frame late (suspended, overloaded) - drop missed frames instead of bursting
+                lateTicks++;
+                nextTime = now;
+            }
+            nextTime += FRAME_NANOS;
+            for (Machine machine : machines) {
+                machine.tick(nextTime);
+            }
+        }
+    }
+
+    /**
+     * Number of times the timer itself woke up more than a frame late and skipped frames
+     */
+    public long getLateTicks() {
+        return lateTicks;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FrameClock machines=%d lateTicks=%d", machines.size(), lateTicks);
+    }
+}
@@ -0,0 +1,347 @@
+package dcpu;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+import static dcpu.Dcpu.RAM_SIZE;
+import static dcpu.IndexedTraceWriter.*;
+
+/**
+ * Memory-mapped reader of trace written by {@link IndexedTraceWriter}. Finds record by number, cycle counter, PC or
+ * written address by binary search in the index, and then decodes at most one block from its keyframe, so files of
+ * any size are read without scanning them.
+ * <p/>
+ * File format (big-endian):
+ * <pre>
+ * header:  long magic "DCPUTRX1", int keyframe interval, int 0
+ * blocks:  keyframe record, then delta records
+ * index:   per block: long file offset, long number of the first record, long cycle counter of the first record
+ *          int[0x10001] starts and int[] lists of blocks where each PC occurs
+ *          int[0x10001] starts and int[] lists of blocks where each address is written
+ * footer:  long index offset, long number of records, int number of blocks, int 0, long magic
+ *
+ * keyframe record: byte flags, long cycles, char PC, instruction and next words, char[12] registers,
+ *                  [char written address, char written value]
+ * delta record:    byte flags, varint cycles since previous record, [char PC], instruction and next words,
+ *                  varint mask of changed registers, changed registers, [char written address, char written value]
+ * </pre>
+ * Registers are A, B, C, X, Y, Z, I, J, PC, SP, EX, IA after instruction; PC of delta record is present only if it is
+ * not PC after previous instruction, and PC after instruction counts as changed only if it isn't the next instruction.
+ * Only next words which instruction takes are stored.
+ */
+public final class IndexedTrace {
+
+    private static final long SEGMENT = 1L << 30;
+
+    private final RandomAccessFile file;
+    private final ByteBuffer[] segments; // overlapping by the longest block
+    private final LongBuffer blockTable;
+    private final IntBuffer pcStarts, pcLists, writeStarts, writeLists;
+    private final long records;
+    private final int blocks;
+
+    private IndexedTrace(RandomAccessFile file) throws IOException {
+        this.file = file;
+        FileChannel channel = file.getChannel();
+        long size = channel.size();
+        if (size < HEADER_SIZE + FOOTER_SIZE) throw new IOException("Not an indexed trace");
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+        ByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY, size - FOOTER_SIZE, FOOTER_SIZE);
+        if (header.getLong(0) != MAGIC || footer.getLong(24) != MAGIC) throw new IOException("Not an indexed trace");
+        int keyframeInterval = header.getInt(8);
+        long indexOffset = footer.getLong(0);
+        records = footer.getLong(8);
+        blocks = footer.getInt(16);
+
+        long dataEnd = indexOffset;
+        long overlap = (long) keyframeInterval * MAX_RECORD_SIZE;
+        segments = new ByteBuffer[(int) ((dataEnd + SEGMENT - 1) / SEGMENT)];
+        for (int i = 0; i < segments.length; i++) {
+            long start = i * SEGMENT;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT + overlap, dataEnd - start));
+        }
+
+        ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, size - FOOTER_SIZE - indexOffset);
+        index.limit(24 * blocks);
+        blockTable = index.slice().asLongBuffer();
+        int at = 24 * blocks;
+        pcStarts = ints(index, at, RAM_SIZE + 1);
+        at += 4 * (RAM_SIZE + 1);
+        pcLists = ints(index, at, pcStarts.get(RAM_SIZE));
+        at += 4 * pcStarts.get(RAM_SIZE);
+        writeStarts = ints(index, at, RAM_SIZE + 1);
+        at += 4 * (RAM_SIZE + 1);
+        writeLists = ints(index, at, writeStarts.get(RAM_SIZE));
+    }
+
+    private static IntBuffer ints(ByteBuffer index, int at, int count) {
+        index.limit(at + 4 * count).position(at);
+        return index.slice().asIntBuffer();
+    }
+
+    public static IndexedTrace open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return new IndexedTrace(raf);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        } catch (RuntimeException e) {
+            raf.close();
+            throw new IOException("Corrupted indexed trace", e);
+        }
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    public int getBlocks() {
+        return blocks;
+    }
+
+    private long firstRecord(int block) {
+        return block == blocks ? records : blockTable.get(3 * block + 1);
+    }
+
+    private long firstCycles(int block) {
+        return blockTable.get(3 * block + 2);
+    }
+
+    /**
+     * Last block whose first record is at or before record
+     */
+    private int blockOfRecord(long record) {
+        int lo = 0, hi = blocks - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (firstRecord(mid) <= record) lo = mid;
+            else hi = mid - 1;
+        }
+        return lo;
+    }
+
+    /**
+     * First block in list (of starts/lists) which is at or after block, or -1
+     */
+    private static int nextBlock(IntBuffer starts, IntBuffer lists, char addr, int block) {
+        int lo = starts.get(addr), hi = starts.get(addr + 1);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (lists.get(mid) < block) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo < starts.get(addr + 1) ? lists.get(lo) : -1;
+    }
+
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Position in trace, with the decoded record. New cursor is before the first record
+     */
+    public final class Cursor {
+        private int block = -1;
+        private long index = -1;
+        private ByteBuffer data;
+
+        private long cycles;
+        private char pc;
+        private final char[] words = new char[3];
+        private final char[] regs = new char[BinaryTrace.REGS];
+        private boolean wrote;
+        private char writeAddress;
+        private char writeValue;
+
+        /**
+         * Moves to the next record, returns false at end of trace
+         */
+        public boolean next() {
+            if (index + 1 >= records) {
+                index = records;
+                return false;
+            }
+            index++;
+            if (block < 0 || index == firstRecord(block + 1)) {
+                loadBlock(block + 1);
+            } else {
+                readDelta();
+            }
+            return true;
+        }
+
+        private void loadBlock(int b) {
+            block = b;
+            long offset = blockTable.get(3 * b);
+            data = segments[(int) (offset / SEGMENT)].duplicate();
+            data.position((int) (offset % SEGMENT));
+            index = firstRecord(b);
+            int flags = data.get();
+            cycles = data.getLong();
+            pc = data.getChar();
+            readWords();
+            for (int i = 0; i < regs.length; i++) {
+                regs[i] = data.getChar();
+            }
+            readWrite(flags);
+        }
+
+        private void readDelta() {
+            int flags = data.get();
+            cycles += getVarint(data);
+            pc = (flags & F_PC) != 0 ? data.getChar() : regs[R_PC];
+            int next = readWords();
+            regs[R_PC] = (char) (pc + 1 + next);
+            int mask = (int) getVarint(data);
+            for (int i = 0; i < regs.length; i++) {
+                if ((mask & (1 << i)) != 0) regs[i] = data.getChar();
+            }
+            readWrite(flags);
+        }
+
+        private int readWords() {
+            words[0] = data.getChar();
+            int next = nextWords(words[0]);
+            words[1] = next > 0 ? data.getChar() : 0;
+            words[2] = next > 1 ? data.getChar() : 0;
+            return next;
+        }
+
+        private void readWrite(int flags) {
+            wrote = (flags & F_WRITE) != 0;
+            if (wrote) {
+                writeAddress = data.getChar();
+                writeValue = data.getChar();
+            }
+        }
+
+        /**
+         * Moves to record by number, returns false if there is no such record
+         */
+        public boolean seek(long record) {
+            if (record < 0 || record >= records) return false;
+            loadBlock(blockOfRecord(record));
+            while (index < record) next();
+            return true;
+        }
+
+        /**
+         * Moves to the first record which started at or after cycle counter value, returns false if there is none
+         */
+        public boolean seekCycles(long targetCycles) {
+            if (records == 0) return false;
+            int lo = 0, hi = blocks - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (firstCycles(mid) <= targetCycles) lo = mid;
+                else hi = mid - 1;
+            }
+            loadBlock(lo);
+            while (cycles < targetCycles) {
+                if (!next()) return false;
+            }
+            return true;
+        }
+
+        /**
+         * Moves to the first record at or after current one which executed instruction at pc, returns false if there
+         * is none
+         */
+        public boolean seekPc(char pc) {
+            return seekIndexed(pcStarts, pcLists, pc, false);
+        }
+
+        /**
+         * Moves to the first record at or after current one which has written RAM at addr, returns false if there is
+         * none
+         */
+        public boolean seekWrite(char addr) {
+            return seekIndexed(writeStarts, writeLists, addr, true);
+        }
+
+        private boolean seekIndexed(IntBuffer starts, IntBuffer lists, char addr, boolean write) {
+            if (index < 0 && !next()) return false;
+            if (index >= records) return false;
+            while (true) {
+                if (write ? wrote && writeAddress == addr : pc == addr) return true;
+                // rest of current block, then the next block where it occurs
+                if (index + 1 < firstRecord(block + 1)) {
+                    next();
+                    continue;
+                }
+                int b = nextBlock(starts, lists, addr, block + 1);
+                if (b < 0) {
+                    index = records;
+                    return false;
+                }
+                loadBlock(b);
+            }
+        }
+
+        /**
+         * Number of current record
+         */
+        public long getIndex() {
+            return index;
+        }
+
+        /**
+         * Cycle counter before instruction started
+         */
+        public long getCycles() {
+            return cycles;
+        }
+
+        public char getPc() {
+            return pc;
+        }
+
+        /**
+         * Instruction word (i = 0) and next words (zero if instruction doesn't take them)
+         */
+        public char getWord(int i) {
+            return words[i];
+        }
+
+        /**
+         * Register value after instruction
+         */
+        public char getRegister(Dcpu.Reg reg) {
+            return regs[reg.offset];
+        }
+
+        public boolean hasWritten() {
+            return wrote;
+        }
+
+        public char getWriteAddress() {
+            return writeAddress;
+        }
+
+        public char getWriteValue() {
+            return writeValue;
+        }
+
+        public String disassemble() {
+            Disassembler disassembler = new Disassembler();
+            disassembler.init(words.clone());
+            return disassembler.next(true);
+        }
+
+        @Override
+        public String toString() {
+            String line = String.format("%d %12d %04x: %s", index, cycles, (int) pc, disassemble());
+            return wrote ? line + String.format(" ; [0x%04x] = 0x%04x", (int) writeAddress, (int) writeValue) : line;
+        }
+    }
+}
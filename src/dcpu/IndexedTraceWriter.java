@@ -0,0 +1,239 @@
+package dcpu;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import static dcpu.Dcpu.*;
+
+/**
+ * Sink of {@link BinaryTrace}, which writes records delta-encoded, in blocks which start with a keyframe, followed by
+ * index of blocks by record number, cycle counter, PC and written address. See {@link IndexedTrace} for reading and
+ * for the file format.
+ * <p/>
+ * Index of PCs and written addresses is kept in memory until the trace is closed, one int per block in which each of
+ * them occurs.
+ */
+public final class IndexedTraceWriter implements BinaryTrace.Sink {
+
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 1024;
+    static final long MAGIC = 0x4443505554525831L; // DCPUTRX1
+    static final int HEADER_SIZE = 16;
+    static final int FOOTER_SIZE = 32;
+    static final int MAX_KEYFRAME_INTERVAL = 1 << 16;
+    static final int MAX_RECORD_SIZE = 1 + 10 + 2 + 6 + 3 + 2 * BinaryTrace.REGS + 4;
+    static final int F_PC = 1; // delta record: PC is not PC after previous instruction
+    static final int F_WRITE = 2;
+    static final int R_PC = M_PC - M_A;
+
+    private final FileChannel channel;
+    private final int keyframeInterval;
+    private final ByteBuffer block;
+    private long position;
+
+    private long records;
+    private int blocks;
+    private long[] blockTable = new long[3 * 64]; // offset, first record, first cycles
+    private int inBlock;
+
+    private final char[] regs = new char[BinaryTrace.REGS];
+    private long cycles;
+    private final char[] words = new char[3];
+
+    private final Postings pcPostings = new Postings();
+    private final Postings writePostings = new Postings();
+
+    public IndexedTraceWriter(FileChannel channel) {
+        this(channel, DEFAULT_KEYFRAME_INTERVAL);
+    }
+
+    /**
+     * @param channel          empty file
+     * @param keyframeInterval number of records in block. Longer blocks make smaller file and index, and slower seek
+     */
+    public IndexedTraceWriter(FileChannel channel, int keyframeInterval) {
+        if (keyframeInterval <= 0 || keyframeInterval > MAX_KEYFRAME_INTERVAL) {
+            throw new IllegalArgumentException("Bad keyframe interval " + keyframeInterval);
+        }
+        this.channel = channel;
+        this.keyframeInterval = keyframeInterval;
+        block = ByteBuffer.allocate(keyframeInterval * MAX_RECORD_SIZE);
+    }
+
+    @Override
+    public void open() throws IOException {
+        if (channel.position() != 0) throw new IOException("Trace must be written from start of file");
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putLong(MAGIC).putInt(keyframeInterval).putInt(0).flip();
+        BinaryTrace.writeFully(channel, header);
+        position = HEADER_SIZE;
+    }
+
+    @Override
+    public void write(ByteBuffer batch) throws IOException {
+        for (int at = batch.position(); at < batch.limit(); at += BinaryTrace.RECORD_SIZE) {
+            if (inBlock == keyframeInterval) flushBlock();
+            encode(batch, at);
+            records++;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flushBlock();
+        long indexOffset = position;
+        ByteBuffer table = ByteBuffer.allocate(24 * blocks);
+        for (int i = 0; i < 3 * blocks; i++) {
+            table.putLong(blockTable[i]);
+        }
+        table.flip();
+        BinaryTrace.writeFully(channel, table);
+        pcPostings.write(channel);
+        writePostings.write(channel);
+        ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+        footer.putLong(indexOffset).putLong(records).putInt(blocks).putInt(0).putLong(MAGIC).flip();
+        BinaryTrace.writeFully(channel, footer);
+    }
+
+    private void encode(ByteBuffer in, int at) {
+        long recordCycles = in.getLong(at);
+        char pc = in.getChar(at + 8);
+        char word = in.getChar(at + 10);
+        int next = nextWords(word);
+        boolean write = in.getChar(at + BinaryTrace.WRITE_OFFSET) != 0;
+        char writeAddress = in.getChar(at + BinaryTrace.WRITE_OFFSET + 2);
+        int flags = write ? F_WRITE : 0;
+
+        if (inBlock == 0) {
+            if (blocks * 3 == blockTable.length) blockTable = Arrays.copyOf(blockTable, blockTable.length * 2);
+            blockTable[blocks * 3] = position;
+            blockTable[blocks * 3 + 1] = records;
+            blockTable[blocks * 3 + 2] = recordCycles;
+            block.put((byte) flags).putLong(recordCycles).putChar(pc);
+            putWords(in, at, word, next);
+            for (int i = 0; i < BinaryTrace.REGS; i++) {
+                regs[i] = in.getChar(at + 16 + 2 * i);
+                block.putChar(regs[i]);
+            }
+        } else {
+            if (pc != regs[R_PC]) flags |= F_PC;
+            block.put((byte) flags);
+            putVarint(block, recordCycles - cycles);
+            if ((flags & F_PC) != 0) block.putChar(pc);
+            putWords(in, at, word, next);
+            // PC after instruction is predicted to be the next one
+            regs[R_PC] = (char) (pc + 1 + next);
+            int mask = 0;
+            for (int i = 0; i < BinaryTrace.REGS; i++) {
+                if (in.getChar(at + 16 + 2 * i) != regs[i]) mask |= 1 << i;
+            }
+            putVarint(block, mask);
+            for (int i = 0; i < BinaryTrace.REGS; i++) {
+                if ((mask & (1 << i)) == 0) continue;
+                regs[i] = in.getChar(at + 16 + 2 * i);
+                block.putChar(regs[i]);
+            }
+        }
+        if (write) block.putChar(writeAddress).putChar(in.getChar(at + BinaryTrace.WRITE_OFFSET + 4));
+        cycles = recordCycles;
+        pcPostings.add(pc, blocks);
+        if (write) writePostings.add(writeAddress, blocks);
+        inBlock++;
+    }
+
+    private void putWords(ByteBuffer in, int at, char word, int next) {
+        block.putChar(word);
+        for (int i = 1; i <= next; i++) {
+            block.putChar(in.getChar(at + 10 + 2 * i));
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        if (inBlock == 0) return;
+        block.flip();
+        position += block.remaining();
+        BinaryTrace.writeFully(channel, block);
+        block.clear();
+        inBlock = 0;
+        blocks++;
+    }
+
+    /**
+     * Number of next words which Disassembler reads after instruction word
+     */
+    static int nextWords(char word) {
+        int info = Decoder.decode(word);
+        if (Decoder.type(info) != Decoder.T_INVALID) return Decoder.nextWordCount(info);
+        if ((word & C_O_MASK) == O_NBI) return 0;
+        return Decoder.nextWords(Decoder.a(info)) + Decoder.nextWords(Decoder.b(info));
+    }
+
+    static void putVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    static long getVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) return value;
+        }
+    }
+
+    /**
+     * Ascending block numbers for each of 0x10000 addresses
+     */
+    private static final class Postings {
+        private final int[][] lists = new int[RAM_SIZE][];
+        private final int[] sizes = new int[RAM_SIZE];
+        private long total;
+
+        void add(char addr, int block) {
+            int size = sizes[addr];
+            int[] list = lists[addr];
+            if (size > 0 && list[size - 1] == block) return;
+            if (list == null) {
+                lists[addr] = list = new int[4];
+            } else if (size == list.length) {
+                lists[addr] = list = Arrays.copyOf(list, size * 2);
+            }
+            list[size] = block;
+            sizes[addr] = size + 1;
+            total++;
+        }
+
+        /**
+         * Writes int[0x10001] starts, then int[] lists
+         */
+        void write(FileChannel channel) throws IOException {
+            if (total > Integer.MAX_VALUE) throw new IOException("Index is too large");
+            ByteBuffer starts = ByteBuffer.allocate(4 * (RAM_SIZE + 1));
+            int start = 0;
+            for (int addr = 0; addr < RAM_SIZE; addr++) {
+                starts.putInt(start);
+                start += sizes[addr];
+            }
+            starts.putInt(start).flip();
+            BinaryTrace.writeFully(channel, starts);
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            for (int addr = 0; addr < RAM_SIZE; addr++) {
+                for (int i = 0; i < sizes[addr]; i++) {
+                    if (!buffer.hasRemaining()) {
+                        buffer.flip();
+                        BinaryTrace.writeFully(channel, buffer);
+                        buffer.clear();
+                    }
+                    buffer.putInt(lists[addr][i]);
+                }
+            }
+            buffer.flip();
+            BinaryTrace.writeFully(channel, buffer);
+        }
+    }
+}
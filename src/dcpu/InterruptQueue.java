@@ -0,0 +1,164 @@
+package dcpu;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded queue of interrupt messages: lock-free for any number of producer threads (devices, AWT, timers), and
+ * contention-free for the single consumer, which is the CPU thread.
+ * <p/>
+ * This is D. Vyukov's bounded queue: every slot has a sequence number telling whether it is free for the producer
+ * which claimed position pos (sequence == pos) or holds message for the consumer (sequence == pos + 1). Producers
+ * claim positions with CAS, the consumer just advances its own counter.
+ */
+public final class InterruptQueue {
+
+    /**
+     * Queue length from the v1.7 spec - DCPU catches fire when it is exceeded
+     */
+    public static final int CAPACITY = 256;
+    private static final int MASK = CAPACITY - 1;
+
+    private final char[] messages = new char[CAPACITY];
+    private final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private final AtomicLong enqueuePos = new AtomicLong();
+    private volatile long dequeuePos; // written by consumer only
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+    private volatile int maxDepth;
+
+    public InterruptQueue() {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds message to the queue. Safe to call from any thread.
+     *
+     * @return false if queue is full
+     */
+    public boolean offer(char message) {
+        long pos = enqueuePos.get();
+        int index;
+        while (true) {
+            index = (int) (pos & MASK);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (enqueuePos.compareAndSet(pos, pos + 1)) break;
+                pos = enqueuePos.get();
+            } else if (diff < 0) {
+                overflows.incrementAndGet();
+                return false;
+            } else {
+                pos = enqueuePos.get();
+            }
+        }
+        messages[index] = message;
+        sequences.lazySet(index, pos + 1);
+        int depth = (int) (pos + 1 - dequeuePos);
+        if (depth > maxDepth) maxDepth = depth; // racy, but good enough for a metric
+        return true;
+    }
+
+    /**
+     * Removes oldest message. Must be called from the consumer thread only.
+     *
+     * @return message, or -1 if queue is empty
+     */
+    public int poll() {
+        long pos = dequeuePos;
+        int index = (int) (pos & MASK);
+        if (sequences.get(index) != pos + 1) return -1;
+        char message = messages[index];
+        sequences.lazySet(index, pos + CAPACITY);
+        dequeuePos = pos + 1;
+        return message;
+    }
+
+    /**
+     * true if there is no message ready for the consumer
+     */
+    public boolean isEmpty() {
+        long pos = dequeuePos;
+        return sequences.get((int) (pos & MASK)) != pos + 1;
+    }
+
+    /**
+     * Drops all messages. Must be called from the consumer thread only.
+     */
+    public void clear() {
+        while (poll() >= 0) {
+        }
+    }
+
+    /**
+     * Copies queued messages, the oldest first, without removing them. Must be called from the consumer thread only.
+     *
+     * @return number of messages copied
+     */
+    int peekAll(char[] out) {
+        long pos = dequeuePos;
+        int count = 0;
+        while (count < out.length && sequences.get((int) ((pos + count) & MASK)) == pos + count + 1) {
+            out[count] = messages[(int) ((pos + count) & MASK)];
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Counts interrupt which was discarded without being queued (IA was 0)
+     */
+    void drop() {
+        dropped.incrementAndGet();
+    }
+
+    ////////////////
+    // Metrics
+
+    /**
+     * Number of queued messages (approximate while producers are active)
+     */
+    public int getDepth() {
+        return (int) Math.max(0, enqueuePos.get() - dequeuePos);
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Total number of messages ever queued
+     */
+    public long getEnqueued() {
+        return enqueuePos.get();
+    }
+
+    /**
+     * Number of interrupts discarded because IA was 0
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Number of interrupts rejected because queue was full
+     */
+    public long getOverflows() {
+        return overflows.get();
+    }
+
+    public void resetStats() {
+        dropped.set(0);
+        overflows.set(0);
+        maxDepth = getDepth();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("InterruptQueue depth=%d max=%d enqueued=%d dropped=%d overflows=%d",
+                getDepth(), getMaxDepth(), getEnqueued(), getDropped(), getOverflows());
+    }
+}
@@ -1,32 +1,53 @@
 package dcpu;
 
-import java.util.LinkedList;
-import java.util.List;
-
+import java.util.Arrays;
+
+/**
+ * Copy-on-write list of listeners, which notifies them in order of adding. Listeners may be added and removed from
+ * any thread while another one dispatches events; dispatch sees the list as it was when the event started.
+ * <p/>
+ * Listeners are removed by identity, as in {@link CharListenerList}.
+ */
 public class ListenerList<T> implements Listener<T> {
 
-    private final List<Listener<T>> listeners = new LinkedList<Listener<T>>();
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private volatile Listener<T>[] listeners = new Listener[0];
 
     @Override
     public void preExecute(T arg) {
-        for (Listener<T> listener : listeners) {
-            listener.preExecute(arg);
+        Listener<T>[] snapshot = listeners;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i].preExecute(arg);
         }
     }
 
     @Override
     public void postExecute(T arg) {
-        for (Listener<T> listener : listeners) {
-            listener.postExecute(arg);
+        Listener<T>[] snapshot = listeners;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i].postExecute(arg);
         }
     }
 
-    public void addListener(Listener<T> listener) {
-        listeners.add(listener);
+    public synchronized void addListener(Listener<T> listener) {
+        Listener<T>[] copy = Arrays.copyOf(listeners, listeners.length + 1);
+        copy[listeners.length] = listener;
+        listeners = copy;
+    }
+
+    public synchronized void removeListener(Listener<T> listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                Listener<T>[] copy = Arrays.copyOf(listeners, listeners.length - 1);
+                System.arraycopy(listeners, i + 1, copy, i, listeners.length - i - 1);
+                listeners = copy;
+                return;
+            }
+        }
     }
 
-    public void removeListener(Listener<T> listener) {
-        listeners.remove(listener);
+    public boolean isEmpty() {
+        return listeners.length == 0;
     }
 
 }
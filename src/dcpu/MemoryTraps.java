@@ -0,0 +1,76 @@
+package dcpu;
+
+import java.util.List;
+
+/**
+ * Memory accesses of instructions, trapped by pages. See {@link Dcpu#addMemoryTraps(MemoryTraps)}
+ */
+abstract class MemoryTraps {
+
+    static final int PAGE_BITS = 8;
+    // bits cover registers and constants too, so checking needs no range check
+    private static final int PAGES = ((Dcpu.M_CV + 32) >>> PAGE_BITS) + 1;
+
+    final long[] readPages = new long[(PAGES + 63) / 64];
+    final long[] writePages = new long[(PAGES + 63) / 64];
+
+    final boolean reads(int addr) {
+        int page = addr >>> PAGE_BITS;
+        return (readPages[page >>> 6] & (1L << page)) != 0;
+    }
+
+    final boolean writes(int addr) {
+        int page = addr >>> PAGE_BITS;
+        return (writePages[page >>> 6] & (1L << page)) != 0;
+    }
+
+    /**
+     * Sets trap bits of pages of addresses start..end (inclusive)
+     */
+    final void trap(long[] pages, int start, int end) {
+        for (int page = start >>> PAGE_BITS; page <= end >>> PAGE_BITS; page++) {
+            pages[page >>> 6] |= 1L << page;
+        }
+    }
+
+    /**
+     * Instruction at pc is reading value at addr, which is in trapped page
+     */
+    abstract void read(char pc, int addr, char value);
+
+    /**
+     * Instruction at pc is about to replace old value at addr, which is in trapped page
+     */
+    abstract void written(char pc, int addr, char old, char value);
+
+    /**
+     * Traps of all of the list, or null if it is empty
+     */
+    static MemoryTraps combine(List<MemoryTraps> list) {
+        if (list.isEmpty()) return null;
+        if (list.size() == 1) return list.get(0);
+        final MemoryTraps[] all = list.toArray(new MemoryTraps[list.size()]);
+        MemoryTraps combined = new MemoryTraps() {
+            @Override
+            void read(char pc, int addr, char value) {
+                for (MemoryTraps t : all) {
+                    if (t.reads(addr)) t.read(pc, addr, value);
+                }
+            }
+
+            @Override
+            void written(char pc, int addr, char old, char value) {
+                for (MemoryTraps t : all) {
+                    if (t.writes(addr)) t.written(pc, addr, old, value);
+                }
+            }
+        };
+        for (MemoryTraps t : all) {
+            for (int i = 0; i < t.readPages.length; i++) {
+                combined.readPages[i] |= t.readPages[i];
+                combined.writePages[i] |= t.writePages[i];
+            }
+        }
+        return combined;
+    }
+}
@@ -0,0 +1,223 @@
+package dcpu;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import static dcpu.Dcpu.*;
+
+/**
+ * Counts what guest code spends its cycles on: executions and cycles per operation, operand addressing modes, missed
+ * IFs and skipped instructions.
+ * <p/>
+ * To keep overhead low, the interpreter only bumps two counters indexed by instruction word per step (missed IFs and
+ * skipped instructions are rare enough to count separately); everything else is aggregated from the words when a
+ * report is made. Cycles of an IF include skipping the instructions after it. While profiler is installed, compiled
+ * code (JIT, static recompiler) is not used, so all instructions are seen.
+ * <p/>
+ * Overhead is small only against the plain interpreter: on the benchmark corpus it was within run-to-run noise
+ * (about 5-8%), so a bound under 5% is not established. Against a run with JIT, profiling costs the whole speedup of
+ * compiled code (10-40% on most of the corpus). To measure it, compare engines "profiled" and "interpreter" of
+ * RunBenchmark in bench/.
+ */
+public final class OpcodeProfiler {
+
+    // Addressing modes
+    public static final int MODE_REG = 0;
+    public static final int MODE_REG_MEM = 1;
+    public static final int MODE_REG_NW_MEM = 2;
+    public static final int MODE_PUSHPOP = 3;
+    public static final int MODE_PEEK = 4;
+    public static final int MODE_PICK = 5;
+    public static final int MODE_SP = 6;
+    public static final int MODE_PC = 7;
+    public static final int MODE_EX = 8;
+    public static final int MODE_NW_MEM = 9;
+    public static final int MODE_NW = 10;
+    public static final int MODE_LITERAL = 11;
+    public static final String[] MODE_NAMES = {"reg", "[reg]", "[reg+nw]", "push/pop", "peek", "pick", "sp", "pc",
+            "ex", "[nw]", "nw", "literal"};
+
+    private final long[] executions = new long[RAM_SIZE]; // by instruction word
+    private final long[] extraCycles = new long[RAM_SIZE];
+    private final long[] skips = new long[RAM_SIZE];
+    private final long[] ifMisses = new long[1 << C_O_BITLEN]; // by basic opcode
+
+    private Dcpu cpu;
+
+    public void install(Dcpu cpu) {
+        this.cpu = cpu;
+        cpu.setProfiler(this);
+    }
+
+    public void uninstall() {
+        if (cpu != null) cpu.setProfiler(null);
+        cpu = null;
+    }
+
+    void executed(int word, int info, long spent, boolean skip) {
+        if (skip) {
+            skips[word]++;
+            return;
+        }
+        executions[word]++;
+        // usually it is fetch cycle plus base cost; missed IFs and HWI to slow devices take more
+        long extra = spent - 1 - Decoder.cycles(info);
+        if (extra != 0) extraCycles[word] += extra;
+    }
+
+    void ifMissed(int opcode) {
+        ifMisses[opcode]++;
+    }
+
+    public void reset() {
+        Arrays.fill(executions, 0);
+        Arrays.fill(extraCycles, 0);
+        Arrays.fill(skips, 0);
+        Arrays.fill(ifMisses, 0);
+    }
+
+    /**
+     * Addressing mode (MODE_xxx) of operand code
+     */
+    public static int mode(int operand) {
+        if (operand <= 0x07) return MODE_REG;
+        if (operand <= 0x0f) return MODE_REG_MEM;
+        if (operand <= 0x17) return MODE_REG_NW_MEM;
+        if (operand >= 0x20) return MODE_LITERAL;
+        switch (operand) {
+            case A_PUSHPOP:
+                return MODE_PUSHPOP;
+            case A_PEEK:
+                return MODE_PEEK;
+            case A_PICK:
+                return MODE_PICK;
+            case A_SP:
+                return MODE_SP;
+            case A_PC:
+                return MODE_PC;
+            case A_EX:
+                return MODE_EX;
+            case A_M_NW:
+                return MODE_NW_MEM;
+            default:
+                return MODE_NW;
+        }
+    }
+
+    /**
+     * Counters aggregated by operation and addressing mode. Arrays of operations are indexed by opcode.
+     */
+    public static class Report {
+        public final long[] basicExecutions = new long[1 << C_O_BITLEN];
+        public final long[] basicCycles = new long[1 << C_O_BITLEN];
+        public final long[] basicSkips = new long[1 << C_O_BITLEN];
+        public final long[] ifMisses = new long[1 << C_O_BITLEN];
+        public final long[] specialExecutions = new long[1 << C_NBI_O_BITLEN];
+        public final long[] specialCycles = new long[1 << C_NBI_O_BITLEN];
+        public final long[] specialSkips = new long[1 << C_NBI_O_BITLEN];
+        public final long[] aModes = new long[MODE_NAMES.length];
+        public final long[] bModes = new long[MODE_NAMES.length];
+        public long reserved;
+        public long instructions;
+        public long cycles;
+        public long skips;
+
+        public void print(PrintStream out) {
+            out.printf("instructions %d, cycles %d (%.2f per instruction), skipped %d, reserved %d%n", instructions,
+                    cycles, instructions == 0 ? 0.0 : (double) cycles / instructions, skips, reserved);
+            out.printf("%-5s %14s %7s %14s %7s %12s %12s%n", "op", "executions", "%", "cycles", "%", "skipped",
+                    "IF missed");
+            for (BasicOp op : BasicOp.values()) {
+                printOp(out, op.name, basicExecutions[op.code], basicCycles[op.code], basicSkips[op.code],
+                        BasicOp.OPS_IF.contains(op) ? Long.toString(ifMisses[op.code]) : "");
+            }
+            for (SpecialOp op : SpecialOp.values()) {
+                printOp(out, op.name, specialExecutions[op.code], specialCycles[op.code], specialSkips[op.code], "");
+            }
+            out.printf("%-10s %14s %14s%n", "mode", "a", "b");
+            for (int i = 0; i < MODE_NAMES.length; i++) {
+                if (aModes[i] != 0 || bModes[i] != 0) out.printf("%-10s %14d %14d%n", MODE_NAMES[i], aModes[i], bModes[i]);
+            }
+        }
+
+        private void printOp(PrintStream out, String name, long count, long spent, long skipped, String missed) {
+            if (count == 0 && skipped == 0) return;
+            out.printf("%-5s %14d %6.2f%% %14d %6.2f%% %12d %12s%n", name, count, percent(count, instructions), spent,
+                    percent(spent, cycles), skipped, missed);
+        }
+
+        private static double percent(long part, long total) {
+            return total == 0 ? 0 : part * 100.0 / total;
+        }
+
+        public void printJson(PrintStream out) {
+            out.printf("{\"instructions\": %d, \"cycles\": %d, \"skipped\": %d, \"reserved\": %d,%n", instructions,
+                    cycles, skips, reserved);
+            out.print(" \"ops\": {");
+            String sep = "";
+            for (BasicOp op : BasicOp.values()) {
+                if (basicExecutions[op.code] == 0 && basicSkips[op.code] == 0) continue;
+                out.printf("%s%n  \"%s\": {\"executions\": %d, \"cycles\": %d, \"skipped\": %d", sep, op.name,
+                        basicExecutions[op.code], basicCycles[op.code], basicSkips[op.code]);
+                if (BasicOp.OPS_IF.contains(op)) out.printf(", \"ifMissed\": %d", ifMisses[op.code]);
+                out.print("}");
+                sep = ",";
+            }
+            for (SpecialOp op : SpecialOp.values()) {
+                if (specialExecutions[op.code] == 0 && specialSkips[op.code] == 0) continue;
+                out.printf("%s%n  \"%s\": {\"executions\": %d, \"cycles\": %d, \"skipped\": %d}", sep, op.name,
+                        specialExecutions[op.code], specialCycles[op.code], specialSkips[op.code]);
+                sep = ",";
+            }
+            out.printf("},%n \"modes\": {");
+            sep = "";
+            for (int i = 0; i < MODE_NAMES.length; i++) {
+                out.printf("%s%n  \"%s\": {\"a\": %d, \"b\": %d}", sep, MODE_NAMES[i], aModes[i], bModes[i]);
+                sep = ",";
+            }
+            out.printf("}}%n");
+        }
+    }
+
+    public Report report() {
+        Report report = new Report();
+        for (int word = 0; word < RAM_SIZE; word++) {
+            long count = executions[word];
+            long skipped = skips[word];
+            if (count == 0 && skipped == 0) continue;
+            int info = Decoder.decode(word);
+            int opcode = Decoder.opcode(info);
+            long spent = count * (1 + Decoder.cycles(info)) + extraCycles[word];
+            report.instructions += count;
+            report.cycles += spent;
+            report.skips += skipped;
+            switch (Decoder.type(info)) {
+                case Decoder.T_BASIC:
+                    report.basicExecutions[opcode] += count;
+                    report.basicCycles[opcode] += spent;
+                    report.basicSkips[opcode] += skipped;
+                    report.aModes[mode(Decoder.a(info))] += count;
+                    report.bModes[mode(Decoder.b(info))] += count;
+                    break;
+                case Decoder.T_SPECIAL:
+                    report.specialExecutions[opcode] += count;
+                    report.specialCycles[opcode] += spent;
+                    report.specialSkips[opcode] += skipped;
+                    report.aModes[mode(Decoder.a(info))] += count;
+                    break;
+                default:
+                    report.reserved += count;
+            }
+        }
+        System.arraycopy(ifMisses, 0, report.ifMisses, 0, ifMisses.length);
+        return report;
+    }
+
+    public void printReport(PrintStream out) {
+        report().print(out);
+    }
+
+    public void printJsonReport(PrintStream out) {
+        report().printJson(out);
+    }
+}
@@ -0,0 +1,242 @@
+package dcpu;
+
+import java.io.PrintStream;
+import java.util.*;
+
+import static dcpu.Dcpu.RAM_SIZE;
+
+/**
+ * Finds where guest program spends its time by sampling PC and call stack every {@link #getInterval()} cycles.
+ * <p/>
+ * The call stack is a shadow one: JSR and interrupt dispatch push a frame, SET PC, POP and RFI pop frames down to the
+ * guest stack pointer, and frames above SP are also discarded on the next call, so code which unwinds the stack by
+ * other means doesn't leave stale frames for long. Sampling is driven by the cycle counter, so it sees the same
+ * program in real-time and turbo mode, and costs one comparison per step between samples. While profiler is
+ * installed, compiled code (JIT, static recompiler) is not used, so no call is missed.
+ * <p/>
+ * Addresses are named after code labels of {@link AsmMap}, and leaf frames can show source line. Results are written
+ * in collapsed stack format ("frame;frame;frame count" lines), accepted by flamegraph.pl and most flame graph viewers.
+ */
+public final class SamplingProfiler {
+
+    public static final int DEFAULT_INTERVAL = 1009; // prime, so it doesn't follow loop periods
+
+    private final AsmMap map;
+    private final TreeMap<Integer, String> labels = new TreeMap<Integer, String>();
+    private int interval = DEFAULT_INTERVAL;
+    private boolean lines = true;
+
+    // shadow stack: entry address (with INT_FRAME bit for interrupt handlers) and SP after return address was pushed
+    private static final int INT_FRAME = RAM_SIZE;
+    private int[] frames = new int[64];
+    private char[] frameSp = new char[64];
+    private int depth;
+    private int maxDepth;
+    private char root;
+
+    long nextSample = Long.MAX_VALUE;
+    private final Map<String, long[]> stacks = new HashMap<String, long[]>();
+    private long samples;
+
+    private Dcpu cpu;
+
+    /**
+     * @param map map of the program to name frames after, or null to name them by address
+     */
+    public SamplingProfiler(AsmMap map) {
+        this.map = map;
+        if (map != null) {
+            for (Map.Entry<String, Character> symbol : map.symbolMap.entrySet()) {
+                int addr = symbol.getValue();
+                if (map.code(addr) && !labels.containsKey(addr)) labels.put(addr, symbol.getKey());
+            }
+        }
+    }
+
+    /**
+     * Starts profiling. Calls made before that are not known, so everything runs under the root frame named after
+     * current PC
+     */
+    public void install(Dcpu cpu) {
+        this.cpu = cpu;
+        root = cpu.mem[Dcpu.M_PC];
+        depth = 0;
+        nextSample = cpu.cycles + interval;
+        cpu.setSampler(this);
+    }
+
+    public void uninstall() {
+        if (cpu != null) cpu.setSampler(null);
+        cpu = null;
+        nextSample = Long.MAX_VALUE;
+    }
+
+    public AsmMap getMap() {
+        return map;
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    /**
+     * Sets number of cycles between samples, takes effect after the next sample
+     */
+    public void setInterval(int interval) {
+        if (interval <= 0) throw new IllegalArgumentException("Interval must be positive");
+        this.interval = interval;
+    }
+
+    /**
+     * Whether leaf frame is source line (label:line) of sampled PC. True by default
+     */
+    public void setLines(boolean lines) {
+        this.lines = lines;
+    }
+
+    void called(char entry, char sp, boolean interrupt) {
+        unwind(sp);
+        if (depth == frames.length) {
+            frames = Arrays.copyOf(frames, depth * 2);
+            frameSp = Arrays.copyOf(frameSp, depth * 2);
+        }
+        frames[depth] = interrupt ? entry | INT_FRAME : entry;
+        frameSp[depth++] = sp;
+        if (depth > maxDepth) maxDepth = depth;
+    }
+
+    /**
+     * Return address is about to be popped from sp
+     */
+    void returned(char sp) {
+        unwind(sp);
+    }
+
+    // stack grows down, so frames of callers have return address above sp, and frames at or below it are gone
+    private void unwind(char sp) {
+        while (depth > 0 && frameSp[depth - 1] <= sp) depth--;
+    }
+
+    void sample(char pc) {
+        nextSample = cpu.cycles + interval;
+        StringBuilder key = new StringBuilder(depth * 2 + 1);
+        for (int i = 0; i < depth; i++) {
+            key.append((char) (frames[i] >>> 16)).append((char) frames[i]);
+        }
+        key.append(pc);
+        String stack = key.toString();
+        long[] count = stacks.get(stack);
+        if (count == null) stacks.put(stack, count = new long[1]);
+        count[0]++;
+        samples++;
+    }
+
+    public void reset() {
+        stacks.clear();
+        samples = 0;
+        maxDepth = depth;
+    }
+
+    public long getSamples() {
+        return samples;
+    }
+
+    /**
+     * Maximal depth of shadow call stack seen since install or reset
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Label at addr, or nearest code label before it with offset, or hex address
+     */
+    public String name(int addr) {
+        Map.Entry<Integer, String> label = labels.floorEntry(addr);
+        if (label == null) return String.format("0x%04x", addr);
+        if (label.getKey() == addr) return label.getValue();
+        return String.format("%s+0x%x", label.getValue(), addr - label.getKey());
+    }
+
+    /**
+     * Source line of addr as label:line, or name(addr) if it is unknown
+     */
+    public String line(int addr) {
+        Integer line = map == null ? null : map.bin2src((char) addr);
+        if (line == null) return name(addr);
+        Map.Entry<Integer, String> label = labels.floorEntry(addr);
+        return (label == null ? "" : label.getValue()) + ":" + line;
+    }
+
+    private String frameName(int frame) {
+        return (frame & INT_FRAME) != 0 ? "[int " + name(frame & 0xffff) + "]" : name(frame);
+    }
+
+    /**
+     * Collapsed stacks with sample counts, outermost frame first
+     */
+    public Map<String, Long> collapse() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, long[]> entry : stacks.entrySet()) {
+            String stack = entry.getKey();
+            int n = (stack.length() - 1) / 2;
+            StringBuilder sb = new StringBuilder(name(root));
+            for (int i = 0; i < n; i++) {
+                sb.append(';').append(frameName((stack.charAt(2 * i) << 16) | stack.charAt(2 * i + 1)));
+            }
+            if (lines) sb.append(';').append(line(stack.charAt(stack.length() - 1)));
+            String collapsed = sb.toString();
+            Long count = result.get(collapsed);
+            result.put(collapsed, (count == null ? 0 : count) + entry.getValue()[0]);
+        }
+        return result;
+    }
+
+    /**
+     * Writes samples in collapsed stack format
+     */
+    public void writeCollapsed(PrintStream out) {
+        for (Map.Entry<String, Long> entry : collapse().entrySet()) {
+            out.println(entry.getKey() + " " + entry.getValue());
+        }
+    }
+
+    /**
+     * Prints functions (innermost frame) and source lines with most samples
+     */
+    public void printReport(PrintStream out, int top) {
+        Map<String, Long> functions = new HashMap<String, Long>();
+        Map<String, Long> sourceLines = new HashMap<String, Long>();
+        for (Map.Entry<String, long[]> entry : stacks.entrySet()) {
+            String stack = entry.getKey();
+            int n = (stack.length() - 1) / 2;
+            String function = n == 0 ? name(root)
+                    : frameName((stack.charAt(2 * n - 2) << 16) | stack.charAt(2 * n - 1));
+            add(functions, function, entry.getValue()[0]);
+            add(sourceLines, line(stack.charAt(stack.length() - 1)), entry.getValue()[0]);
+        }
+        out.printf("samples %d every %d cycles, max call depth %d%n", samples, interval, maxDepth);
+        printTop(out, "function", functions, top);
+        printTop(out, "line", sourceLines, top);
+    }
+
+    private static void add(Map<String, Long> counts, String key, long count) {
+        Long old = counts.get(key);
+        counts.put(key, (old == null ? 0 : old) + count);
+    }
+
+    private void printTop(PrintStream out, String title, Map<String, Long> counts, int top) {
+        List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(counts.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2) {
+                return o2.getValue().compareTo(o1.getValue());
+            }
+        });
+        out.printf("%-32s %10s %7s%n", title, "samples", "%");
+        for (int i = 0; i < entries.size() && i < top; i++) {
+            Map.Entry<String, Long> entry = entries.get(i);
+            out.printf("%-32s %10d %6.2f%%%n", entry.getKey(), entry.getValue(), entry.getValue() * 100.0 / samples);
+        }
+    }
+}
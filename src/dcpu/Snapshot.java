@@ -0,0 +1,216 @@
+package dcpu;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import static dcpu.Dcpu.*;
+
+/**
+ * Full state of {@link Dcpu} and its devices, to resume execution later or in another CPU with the same devices.
+ * <p/>
+ * Snapshot is kept in a direct buffer, which is reused by every {@link #save}, so taking one is a couple of bulk
+ * copies of RAM and no allocation. Save and restore must be called from the CPU thread, or while CPU is stopped.
+ * <p/>
+ * Format (big-endian):
+ * <pre>
+ * header:  long magic "DCPUSNP1", int version, int length of snapshot in bytes
+ * cpu:     long cycles, long frequency, byte flags (1 reserved, 2 interrupt queueing, 4 on fire), byte 0,
+ *          char[12] A, B, C, X, Y, Z, I, J, PC, SP, EX, IA, char[0x10000] RAM
+ * queue:   char number of queued interrupts, char[] messages, the oldest first
+ * devices: int number of devices, and for each in order of attachment: int hardware id, int manufacturer id,
+ *          long cycle of scheduled wakeup or -1, int length of state, state written by {@link Device#saveState}
+ * </pre>
+ * Listeners, breakpoints, profilers and compiled code are not part of the state.
+ */
+public final class Snapshot {
+
+    public static final int VERSION = 1;
+    private static final long MAGIC = 0x44435055534e5031L; // DCPUSNP1
+    private static final int HEADER_SIZE = 16;
+    private static final int INITIAL_SIZE = 2 * RAM_SIZE + 4096;
+    private static final int F_RESERVED = 1;
+    private static final int F_QUEUING = 2;
+    private static final int F_ON_FIRE = 4;
+
+    private ByteBuffer buffer; // snapshot between 0 and limit
+    private final char[] queue = new char[InterruptQueue.CAPACITY];
+
+    public Snapshot() {
+        buffer = ByteBuffer.allocateDirect(INITIAL_SIZE);
+        buffer.limit(0);
+    }
+
+    /**
+     * Replaces snapshot with current state of cpu
+     */
+    public void save(Dcpu cpu) {
+        while (true) {
+            try {
+                store(cpu);
+                return;
+            } catch (BufferOverflowException e) {
+                // device states don't fit
+                buffer = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+            }
+        }
+    }
+
+    private void store(Dcpu cpu) {
+        ByteBuffer b = buffer;
+        b.clear();
+        b.putLong(MAGIC).putInt(VERSION).putInt(0);
+        int flags = (cpu.reserved ? F_RESERVED : 0) | (cpu.isIntQueuing() ? F_QUEUING : 0)
+                | (cpu.isOnFire() ? F_ON_FIRE : 0);
+        b.putLong(cpu.cycles).putLong(cpu.getFrequency()).put((byte) flags).put((byte) 0);
+        putChars(b, cpu.mem, M_A, REGS_COUNT);
+        putChars(b, cpu.mem, 0, RAM_SIZE);
+        int count = cpu.getInterruptQueue().peekAll(queue);
+        b.putChar((char) count);
+        putChars(b, queue, 0, count);
+        b.putInt(cpu.devices.size());
+        for (Device device : cpu.devices) {
+            b.putInt(device.getHardwareId()).putInt(device.getManufacturerId());
+            b.putLong(device.heapIndex >= 0 ? device.dueCycle : -1);
+            int at = b.position();
+            b.putInt(0);
+            device.saveState(b);
+            b.putInt(at, b.position() - at - 4);
+        }
+        b.putInt(12, b.position());
+        b.flip();
+    }
+
+    /**
+     * Replaces state of cpu and its devices with the snapshot
+     *
+     * @throws IllegalStateException    if nothing was saved or read yet
+     * @throws IllegalArgumentException if devices of cpu are not the ones of snapshot; cpu is not changed then
+     */
+    public void restore(Dcpu cpu) {
+        checkSaved();
+        ByteBuffer b = buffer.duplicate();
+        b.position(HEADER_SIZE);
+        long cycles = b.getLong();
+        long frequency = b.getLong();
+        int flags = b.get();
+        b.get();
+        int stateAt = b.position();
+        b.position(stateAt + 2 * (REGS_COUNT + RAM_SIZE));
+        int count = b.getChar();
+        getChars(b, queue, 0, count);
+        int devices = b.getInt();
+        if (devices != cpu.devices.size()) {
+            throw new IllegalArgumentException("Snapshot has " + devices + " devices, CPU has " + cpu.devices.size());
+        }
+        int devicesAt = b.position();
+        for (int i = 0; i < devices; i++) {
+            Device device = cpu.devices.get(i);
+            int hardwareId = b.getInt();
+            int manufacturerId = b.getInt();
+            if (hardwareId != device.getHardwareId() || manufacturerId != device.getManufacturerId()) {
+                throw new IllegalArgumentException(String.format("Snapshot has device %08x:%08x at %d, CPU has %08x:%08x",
+                        manufacturerId, hardwareId, i, device.getManufacturerId(), device.getHardwareId()));
+            }
+            b.getLong();
+            b.position(b.getInt() + b.position());
+        }
+
+        b.position(stateAt);
+        getChars(b, cpu.mem, M_A, REGS_COUNT);
+        getChars(b, cpu.mem, 0, RAM_SIZE);
+        cpu.memoryChanged(0, RAM_SIZE);
+        cpu.cycles = cycles;
+        cpu.reserved = (flags & F_RESERVED) != 0;
+        if (cpu.getFrequency() != frequency) cpu.setFrequency(frequency);
+        cpu.restoreInterrupts((flags & F_QUEUING) != 0, (flags & F_ON_FIRE) != 0, queue, count);
+        b.position(devicesAt);
+        for (Device device : cpu.devices) {
+            b.position(b.position() + 8);
+            long wakeup = b.getLong();
+            int length = b.getInt();
+            ByteBuffer state = b.slice();
+            state.limit(length);
+            device.restoreState(state);
+            b.position(b.position() + length);
+            if (wakeup >= 0) {
+                device.schedule(wakeup);
+            } else {
+                device.cancelSchedule();
+            }
+        }
+    }
+
+    /**
+     * Cycle counter of saved CPU
+     */
+    public long getCycles() {
+        checkSaved();
+        return buffer.getLong(HEADER_SIZE);
+    }
+
+    /**
+     * Length of snapshot in bytes
+     */
+    public int size() {
+        return buffer.limit();
+    }
+
+    private void checkSaved() {
+        if (buffer.limit() == 0) throw new IllegalStateException("Empty snapshot");
+    }
+
+    /**
+     * Writes snapshot to channel, as described in class description
+     */
+    public void write(WritableByteChannel out) throws IOException {
+        checkSaved();
+        BinaryTrace.writeFully(out, buffer.duplicate());
+    }
+
+    /**
+     * Replaces snapshot with one read from channel
+     *
+     * @throws IOException if data is not a snapshot of this version, or can't be read. Snapshot may be left empty
+     */
+    public void read(ReadableByteChannel in) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(in, header);
+        if (header.getLong(0) != MAGIC) throw new IOException("Not a snapshot");
+        if (header.getInt(8) != VERSION) throw new IOException("Unsupported snapshot version " + header.getInt(8));
+        int length = header.getInt(12);
+        if (length < HEADER_SIZE + 2 * (REGS_COUNT + RAM_SIZE)) throw new IOException("Bad snapshot length " + length);
+        ByteBuffer b = length <= buffer.capacity() ? buffer : ByteBuffer.allocateDirect(length);
+        b.clear();
+        header.flip();
+        b.put(header);
+        b.limit(length);
+        try {
+            readFully(in, b);
+        } catch (IOException e) {
+            if (b == buffer) buffer.limit(0);
+            throw e;
+        }
+        b.flip();
+        buffer = b;
+    }
+
+    private static void readFully(ReadableByteChannel in, ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) {
+            if (in.read(b) < 0) throw new EOFException("Truncated snapshot");
+        }
+    }
+
+    private static void putChars(ByteBuffer b, char[] src, int offset, int length) {
+        b.asCharBuffer().put(src, offset, length);
+        b.position(b.position() + 2 * length);
+    }
+
+    private static void getChars(ByteBuffer b, char[] dst, int offset, int length) {
+        b.asCharBuffer().get(dst, offset, length);
+        b.position(b.position() + 2 * length);
+    }
+}
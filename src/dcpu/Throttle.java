@@ -0,0 +1,132 @@
+package dcpu;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Real-time pacing of {@link Dcpu#run()}.
+ * <p/>
+ * Execution is split into 1/{@link Dcpu#FRAMES_PER_SECOND} second frames. Frame k starts at startTime + k frames and
+ * ends when cycle counter reaches startCycles + (k + 1) * frequency / FRAMES_PER_SECOND, so neither timer jitter nor
+ * rounding of cycles per frame accumulates. Waiting parks the thread until {@link #SPIN_NANOS} before the deadline,
+ * and spins the rest, because parkNanos often oversleeps by tens of microseconds.
+ * <p/>
+ * When emulation falls more than {@link #MAX_CATCHUP_FRAMES} frames behind (host is oversubscribed, or thread was
+ * suspended), the timeline is restarted from now instead of running flat out to catch up; such frames are counted
+ * as lost. Achieved frequency is measured over {@link #WINDOW_NANOS} windows.
+ */
+public final class Throttle {
+
+    public static final long FRAME_NANOS = 1000L * 1000L * 1000L / Dcpu.FRAMES_PER_SECOND;
+    public static final long SPIN_NANOS = 100L * 1000L;
+    public static final int MAX_CATCHUP_FRAMES = 5;
+    public static final long WINDOW_NANOS = 1000L * 1000L * 1000L;
+
+    /**
+     * Source of time and way to wait, replaced in tests
+     */
+    interface Clock {
+        long nanoTime();
+
+        void sleepUntil(long deadline);
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void sleepUntil(long deadline) {
+            long left;
+            while ((left = deadline - System.nanoTime()) > SPIN_NANOS) {
+                LockSupport.parkNanos(left - SPIN_NANOS);
+            }
+            while (System.nanoTime() < deadline) {
+                // spin tail
+            }
+        }
+    };
+
+    private final Clock clock;
+
+    private long startTime;
+    private long startCycles;
+    private long frame;
+    private long frequency;
+
+    private long windowTime;
+    private long windowCycles;
+    private volatile double achievedFrequency;
+    private volatile long lostFrames;
+
+    Throttle() {
+        this(SYSTEM_CLOCK);
+    }
+
+    Throttle(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Starts new timeline at current time
+     */
+    void start(long cycles, long frequency) {
+        long now = clock.nanoTime();
+        rebase(now, cycles, frequency);
+        windowTime = now;
+        windowCycles = cycles;
+    }
+
+    private void rebase(long now, long cycles, long frequency) {
+        startTime = now;
+        startCycles = cycles;
+        frame = 0;
+        this.frequency = frequency;
+    }
+
+    /**
+     * Waits until the next frame starts (unless turbo) and returns cycle counter value it ends at
+     */
+    long nextFrame(long cycles, long frequency, boolean turbo) {
+        long now = clock.nanoTime();
+        if (now - windowTime >= WINDOW_NANOS) {
+            achievedFrequency = (cycles - windowCycles) * 1e9 / (now - windowTime);
+            windowTime = now;
+            windowCycles = cycles;
+        }
+        if (turbo || frequency != this.frequency) {
+            rebase(now, cycles, frequency);
+        }
+        long deadline = startTime + frame * FRAME_NANOS;
+        long lag = now - deadline;
+        if (lag > MAX_CATCHUP_FRAMES * FRAME_NANOS) {
+            lostFrames += lag / FRAME_NANOS;
+            rebase(now, cycles, frequency);
+            deadline = now;
+        }
+        if (!turbo) clock.sleepUntil(deadline);
+        frame++;
+        return startCycles + Math.max(1, frame * frequency / Dcpu.FRAMES_PER_SECOND);
+    }
+
+    /**
+     * Frequency measured over the last complete window, 0 before the first one completes
+     */
+    public double getAchievedFrequency() {
+        return achievedFrequency;
+    }
+
+    /**
+     * Frames given up because emulation couldn't keep up with real time
+     */
+    public long getLostFrames() {
+        return lostFrames;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Throttle achieved=%.0f Hz target=%d Hz lost frames=%d", achievedFrequency, frequency,
+                lostFrames);
+    }
+}
@@ -0,0 +1,200 @@
+package dcpu;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static dcpu.Dcpu.*;
+
+/**
+ * Decides which executed instructions {@link Tracer} prints, before anything is formatted. Instruction passes if its
+ * PC is in one of the ranges (if any are given), its first word is in one of the opcode classes (if any are given),
+ * and then only every N-th passing instruction is printed when sampling.
+ * <p/>
+ * Ranges and classes are bitmaps over the 0x10000 addresses and instruction words, so the test is two bit lookups
+ * and a counter whatever the number of ranges.
+ */
+public final class TraceFilter {
+
+    public enum OpClass {
+        /**
+         * JSR, INT and HWI
+         */
+        CALLS,
+        /**
+         * Instructions which write RAM: memory or stack operand which is written, and JSR
+         */
+        WRITES;
+
+        private final long[] words = new long[RAM_SIZE / 64];
+
+        static {
+            for (int word = 0; word < RAM_SIZE; word++) {
+                int info = Decoder.decode(word);
+                BasicOp basic = Decoder.basicOp(info);
+                SpecialOp special = Decoder.specialOp(info);
+                if (special == SpecialOp.JSR || special == SpecialOp.INT || special == SpecialOp.HWI) {
+                    set(CALLS.words, word);
+                }
+                if ((basic != null && basic.modb && memory(Decoder.b(info)))
+                        || (special != null && special.moda && memory(Decoder.a(info)))
+                        || special == SpecialOp.JSR) {
+                    set(WRITES.words, word);
+                }
+            }
+        }
+
+        private static boolean memory(int operand) {
+            return (operand >= A_M_REG && operand <= A_PICK) || operand == A_M_NW;
+        }
+    }
+
+    private long[] pcs; // null if any PC passes
+    private long[] words; // null if any instruction passes
+    private int sampling = 1;
+    private int countdown = 1;
+    private final List<String> parts = new ArrayList<String>();
+
+    /**
+     * Passes instructions at start..end (inclusive)
+     */
+    public void addRange(char start, char end) {
+        if (start > end) throw new IllegalArgumentException("Empty range");
+        if (pcs == null) pcs = new long[RAM_SIZE / 64];
+        for (int pc = start; pc <= end; pc++) {
+            set(pcs, pc);
+        }
+        parts.add(String.format("0x%04x-0x%04x", (int) start, (int) end));
+    }
+
+    /**
+     * Passes instructions from label to the next label of the program, not counting its own sublabels (label.xxx)
+     *
+     * @throws IllegalArgumentException if there is no such label
+     */
+    public void addScope(String label, AsmMap map) {
+        String name = label.toLowerCase();
+        Character start = map == null ? null : map.symbol(name);
+        if (start == null) throw new IllegalArgumentException("Unknown label " + label);
+        int end = RAM_SIZE;
+        for (Map.Entry<String, Character> symbol : map.symbolMap.entrySet()) {
+            int addr = symbol.getValue();
+            if (addr > start && addr < end && !symbol.getKey().startsWith(name + ".")) end = addr;
+        }
+        addRange(start, (char) (end - 1));
+        parts.set(parts.size() - 1, name);
+    }
+
+    public void addClass(OpClass opClass) {
+        if (words == null) words = new long[RAM_SIZE / 64];
+        for (int i = 0; i < words.length; i++) {
+            words[i] |= opClass.words[i];
+        }
+        parts.add(opClass.name().toLowerCase());
+    }
+
+    /**
+     * Passes only one of every n instructions which pass ranges and classes
+     */
+    public void setSampling(int n) {
+        if (n <= 0) throw new IllegalArgumentException("Bad sampling " + n);
+        sampling = n;
+        countdown = 1;
+    }
+
+    public int getSampling() {
+        return sampling;
+    }
+
+    /**
+     * Called for every executed instruction
+     *
+     * @param word first word of instruction
+     */
+    public boolean accept(char pc, char word) {
+        if (pcs != null && (pcs[pc >> 6] & 1L << pc) == 0) return false;
+        if (words != null && (words[word >> 6] & 1L << word) == 0) return false;
+        if (sampling > 1) {
+            if (--countdown > 0) return false;
+            countdown = sampling;
+        }
+        return true;
+    }
+
+    private static void set(long[] bits, int i) {
+        bits[i >> 6] |= 1L << i;
+    }
+
+    /**
+     * Parses filter from comma-separated parts:
+     * <pre>
+     * START-END    PC range, of addresses or labels
+     * ADDR         single address
+     * LABEL        scope of label (see {@link #addScope})
+     * calls        JSR, INT and HWI
+     * writes       instructions writing RAM
+     * 1/N          one of every N instructions
+     * </pre>
+     *
+     * @param map labels of the program, may be null
+     * @throws IllegalArgumentException on syntax error or unknown label
+     */
+    public static TraceFilter parse(String spec, AsmMap map) {
+        TraceFilter filter = new TraceFilter();
+        for (String part : spec.split(",")) {
+            part = part.trim();
+            String lower = part.toLowerCase();
+            int dash = part.indexOf('-');
+            if (part.length() == 0) {
+                continue;
+            } else if (lower.equals("calls")) {
+                filter.addClass(OpClass.CALLS);
+            } else if (lower.equals("writes")) {
+                filter.addClass(OpClass.WRITES);
+            } else if (lower.startsWith("1/")) {
+                filter.setSampling((int) number(part.substring(2).trim()));
+            } else if (dash > 0) {
+                filter.addRange(address(part.substring(0, dash).trim(), map),
+                        address(part.substring(dash + 1).trim(), map));
+            } else if (Assembler.numPattern.matcher(part).matches()) {
+                char addr = address(part, map);
+                filter.addRange(addr, addr);
+            } else {
+                filter.addScope(part, map);
+            }
+        }
+        return filter;
+    }
+
+    private static char address(String s, AsmMap map) {
+        Character symbol = map == null ? null : map.symbol(s.toLowerCase());
+        if (symbol != null) return symbol;
+        long value = number(s);
+        if (value > 0xffff) throw new IllegalArgumentException("Bad address " + s);
+        return (char) value;
+    }
+
+    private static long number(String s) {
+        try {
+            String lower = s.toLowerCase();
+            if (lower.startsWith("0x")) return Long.parseLong(s.substring(2), 16);
+            if (lower.startsWith("0b")) return Long.parseLong(s.substring(2), 2);
+            return Long.parseLong(s);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad number or unknown label " + s);
+        }
+    }
+
+    /**
+     * Filter in the form accepted by {@link #parse}
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (String part : parts) {
+            sb.append(sb.length() > 0 ? "," : "").append(part);
+        }
+        if (sampling > 1) sb.append(sb.length() > 0 ? "," : "").append("1/").append(sampling);
+        return sb.toString();
+    }
+}
@@ -5,7 +5,9 @@ import java.io.PrintStream;
 import static dcpu.Dcpu.*;
 
 /**
- * Prints commands to PrintStream after they have been executed
+ * Prints commands to PrintStream after they have been executed, either from CPU thread as step listener, or from
+ * background thread as subscriber of {@link ExecutionStream}. With {@link TraceFilter}, only instructions which pass
+ * it are formatted and printed
  */
 public class Tracer extends PostListener<Character> {
 
@@ -14,6 +16,7 @@ public class Tracer extends PostListener<Character> {
     private boolean printRegisters = false;
     private int printStack = 0;
     private boolean printMemAtReg = false;
+    private volatile TraceFilter filter;
     PrintStream out;
 
     public Tracer(PrintStream out) {
@@ -27,8 +30,53 @@ public class Tracer extends PostListener<Character> {
         disassembler.init(dcpu.mem);
     }
 
+    /**
+     * Prints instructions published by stream on a background thread, so CPU only waits for tracer when stream's ring
+     * is full. Registers, memory and stack are not printed in this mode, as they have changed by then
+     */
+    public void subscribe(Dcpu dcpu, ExecutionStream stream) {
+        this.dcpu = dcpu;
+        final char[] instruction = new char[3];
+        final Disassembler batchDisassembler = new Disassembler();
+        batchDisassembler.init(instruction);
+        stream.subscribe(new ExecutionStream.Subscriber() {
+            @Override
+            public void onSubscribe(ExecutionStream.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(ExecutionStream.Batch batch) {
+                TraceFilter f = filter;
+                for (int i = 0; i < batch.size(); i++) {
+                    char pc = batch.pc(i);
+                    if (f != null && !f.accept(pc, batch.word(i))) continue;
+                    // next words may have been overwritten since, but the first one is as executed
+                    instruction[0] = batch.word(i);
+                    instruction[1] = Tracer.this.dcpu.mem[(pc + 1) & 0xffff];
+                    instruction[2] = Tracer.this.dcpu.mem[(pc + 2) & 0xffff];
+                    batchDisassembler.setAddress(0);
+                    out.printf("%04x: %s\n", (int) pc, batchDisassembler.next(true));
+                }
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                error.printStackTrace(out);
+            }
+
+            @Override
+            public void onComplete() {
+                out.flush();
+            }
+        });
+    }
+
     @Override
     public void postExecute(Character pc) {
+        TraceFilter f = filter;
+        // first word after execution: differs only if instruction has overwritten itself
+        if (f != null && !f.accept(pc, dcpu.mem[pc])) return;
         printTrace(pc);
     }
 
@@ -77,6 +125,17 @@ public class Tracer extends PostListener<Character> {
                 (int) A, (int) B, (int) C, (int) X, (int) Y, (int) Z, (int) I, (int) J, (int) SP, (int) O);
     }
 
+    /**
+     * @param filter instructions to print, or null to print all
+     */
+    public void setFilter(TraceFilter filter) {
+        this.filter = filter;
+    }
+
+    public TraceFilter getFilter() {
+        return filter;
+    }
+
     public void printRegisters(boolean b) {
         this.printRegisters = b;
     }
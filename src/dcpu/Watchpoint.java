@@ -0,0 +1,97 @@
+package dcpu;
+
+/**
+ * Watchpoint on range of RAM, managed by {@link Debugger}. Fires when an instruction reads or writes a word in range
+ * (operands, and stack of JSR, RFI and interrupt dispatch; not DMA of devices), and remembers the last hit: PC of the
+ * instruction, address, and value before and after it.
+ */
+public final class Watchpoint {
+
+    public enum Kind {
+        READ,
+        WRITE,
+        /**
+         * Write of a different value
+         */
+        CHANGE
+    }
+
+    public final Kind kind;
+    public final char start;
+    public final char end;
+
+    private volatile long hits;
+    private volatile char pc;
+    private volatile char address;
+    private volatile char oldValue;
+    private volatile char newValue;
+
+    Watchpoint(Kind kind, char start, char end) {
+        if (end < start) throw new IllegalArgumentException("End of range is before start");
+        this.kind = kind;
+        this.start = start;
+        this.end = end;
+    }
+
+    boolean covers(int addr) {
+        return addr >= start && addr <= end;
+    }
+
+    void hit(char pc, int address, char oldValue, char newValue) {
+        this.pc = pc;
+        this.address = (char) address;
+        this.oldValue = oldValue;
+        this.newValue = newValue;
+        hits++;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * PC of the instruction of the last hit
+     */
+    public char getPc() {
+        return pc;
+    }
+
+    /**
+     * Address accessed on the last hit
+     */
+    public char getAddress() {
+        return address;
+    }
+
+    /**
+     * Value before the last hit (the value read, for READ)
+     */
+    public char getOldValue() {
+        return oldValue;
+    }
+
+    /**
+     * Value after the last hit (the value read, for READ)
+     */
+    public char getNewValue() {
+        return newValue;
+    }
+
+    /**
+     * Description of the last hit
+     */
+    public String describeHit() {
+        if (kind == Kind.READ) {
+            return String.format("0x%04x: read [0x%04x] = 0x%04x", (int) pc, (int) address, (int) newValue);
+        }
+        return String.format("0x%04x: write [0x%04x] 0x%04x -> 0x%04x", (int) pc, (int) address, (int) oldValue,
+                (int) newValue);
+    }
+
+    @Override
+    public String toString() {
+        String range = start == end ? String.format("0x%04x", (int) start)
+                : String.format("0x%04x..0x%04x", (int) start, (int) end);
+        return kind.name().toLowerCase() + " " + range + ", hits " + hits;
+    }
+}
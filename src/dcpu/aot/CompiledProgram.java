@@ -0,0 +1,18 @@
+package dcpu.aot;
+
+import dcpu.Dcpu;
+
+/**
+ * Program translated ahead of time by {@link StaticRecompiler}. Installed with {@link Dcpu#setCompiledProgram}.
+ */
+public interface CompiledProgram {
+
+    /**
+     * Executes compiled block at PC, updating registers, PC and cycle counter of cpu. Returns 0 without doing anything
+     * if there is no block at PC, it is longer than maxInstructions, or its code was overwritten since compilation.
+     *
+     * @param mem cpu.mem
+     * @return number of executed instructions
+     */
+    int execute(Dcpu cpu, char[] mem, int maxInstructions);
+}
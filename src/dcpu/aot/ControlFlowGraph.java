@@ -0,0 +1,170 @@
+package dcpu.aot;
+
+import dcpu.AsmMap;
+import dcpu.Decoder;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.Map;
+
+import static dcpu.Dcpu.*;
+
+/**
+ * Control flow recovered from a DCPU binary by recursive traversal.
+ * <p/>
+ * Traversal starts at address 0, at code labels of {@link AsmMap} (if there is one) and at constant IAS arguments,
+ * and follows fall-through, both outcomes of IF* chains, constant jumps and JSR. Targets of indirect jumps (SET PC, POP
+ * and the like) can't be known statically - execution falls back to the interpreter there until it reaches a known
+ * instruction again.
+ */
+final class ControlFlowGraph {
+
+    private final char[] mem;
+    private final AsmMap map;
+    private final BitSet instructions = new BitSet(RAM_SIZE);
+    private final BitSet leaders = new BitSet(RAM_SIZE);
+    private final Deque<Integer> worklist = new ArrayDeque<Integer>();
+    private int indirectJumps;
+
+    /**
+     * @param map may be null - then everything reachable is treated as code
+     */
+    ControlFlowGraph(char[] mem, AsmMap map) {
+        this.mem = mem;
+        this.map = map;
+    }
+
+    void addEntryPoint(int addr) {
+        leaders.set(addr);
+        worklist.add(addr);
+    }
+
+    void build() {
+        addEntryPoint(0);
+        if (map != null) {
+            for (Map.Entry<String, Character> symbol : map.symbolMap.entrySet()) {
+                if (map.code(symbol.getValue())) addEntryPoint(symbol.getValue());
+            }
+        }
+        while (!worklist.isEmpty()) {
+            visit(worklist.poll());
+        }
+    }
+
+    private void visit(int addr) {
+        while (!instructions.get(addr) && isCode(addr)) {
+            int info = Decoder.decode(mem[addr]);
+            int next = addr + Decoder.length(info);
+            if (Decoder.type(info) == Decoder.T_INVALID || next > RAM_SIZE) return;
+            instructions.set(addr);
+            if (Decoder.type(info) == Decoder.T_SPECIAL) {
+                SpecialOp op = Decoder.specialOp(info);
+                int target = constant(Decoder.a(info), addr + 1);
+                if (op == SpecialOp.JSR) {
+                    if (target >= 0) {
+                        addTarget(target);
+                    } else {
+                        indirectJumps++;
+                    }
+                    addTarget(next);
+                    return;
+                } else if (op == SpecialOp.IAS && target >= 0) {
+                    addTarget(target);
+                } else if (op == SpecialOp.RFI || op == SpecialOp.HCF) {
+                    return;
+                }
+            } else if (BasicOp.OPS_IF.contains(Decoder.basicOp(info))) {
+                addTarget(next);
+                int skipped = skipTarget(next);
+                if (skipped >= 0) addTarget(skipped);
+                return;
+            } else if (Decoder.b(info) == A_PC) {
+                int target = constant(Decoder.a(info), addr + 1);
+                if (Decoder.basicOp(info) == BasicOp.SET && target >= 0) {
+                    addTarget(target);
+                } else {
+                    indirectJumps++;
+                }
+                return;
+            }
+            addr = next;
+        }
+    }
+
+    private void addTarget(int addr) {
+        addr &= 0xffff;
+        if (!leaders.get(addr)) addEntryPoint(addr);
+    }
+
+    /**
+     * Value of 'a' operand if it is constant, -1 otherwise
+     *
+     * @param nw address of its next word
+     */
+    int constant(int code, int nw) {
+        if (code >= A_CONST) return (code - A_CONST - 1) & 0xffff;
+        if (code == A_NW) return mem[nw];
+        return -1;
+    }
+
+    boolean isCode(int addr) {
+        return map == null || map.code(addr);
+    }
+
+    /**
+     * Address of instruction where execution continues after skipping instruction at addr (with IF chaining), or -1
+     * if skipping would halt on reserved instruction or cross end of memory.
+     */
+    int skipTarget(int addr) {
+        while (addr < RAM_SIZE) {
+            int info = Decoder.decode(mem[addr]);
+            if (Decoder.type(info) == Decoder.T_INVALID) return -1;
+            addr += Decoder.length(info);
+            if (!BasicOp.OPS_IF.contains(Decoder.basicOp(info))) return addr <= RAM_SIZE ? addr : -1;
+        }
+        return -1;
+    }
+
+    /**
+     * Cycles spent by the interpreter skipping instruction at addr, assuming {@link #skipTarget} is valid
+     */
+    int skipCycles(int addr) {
+        int cycles = 0;
+        while (true) {
+            int info = Decoder.decode(mem[addr]);
+            boolean basic = Decoder.type(info) == Decoder.T_BASIC;
+            cycles += 1 + (basic ? 1 : 0) + Decoder.cycles(info);
+            if (!BasicOp.OPS_IF.contains(Decoder.basicOp(info))) return cycles;
+            addr += Decoder.length(info);
+        }
+    }
+
+    /**
+     * true if there is an instruction starting at addr, reachable from entry points
+     */
+    boolean isInstruction(int addr) {
+        return instructions.get(addr);
+    }
+
+    /**
+     * true if addr is a jump target or entry point - compiled code may be entered there
+     */
+    boolean isLeader(int addr) {
+        return leaders.get(addr) && instructions.get(addr);
+    }
+
+    int nextLeader(int from) {
+        int addr = leaders.nextSetBit(from);
+        while (addr >= 0 && !instructions.get(addr)) addr = leaders.nextSetBit(addr + 1);
+        return addr;
+    }
+
+    int getInstructionCount() {
+        return instructions.cardinality();
+    }
+
+    int getIndirectJumps() {
+        return indirectJumps;
+    }
+}
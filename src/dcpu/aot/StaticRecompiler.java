@@ -0,0 +1,475 @@
+package dcpu.aot;
+
+import dcpu.AsmMap;
+import dcpu.Dcpu;
+import dcpu.Decoder;
+import dcpu.Disassembler;
+
+import java.io.*;
+import java.util.Locale;
+
+import static dcpu.Dcpu.*;
+
+/**
+ * Translates DCPU binary into Java source of a single class implementing {@link CompiledProgram}.
+ * <p/>
+ * Every jump target found by {@link ControlFlowGraph} becomes a method executing the block which starts there: a run of
+ * basic instructions ended by an IF* chain, a write to PC or JSR. Registers are kept in locals, operands are resolved
+ * at translation time, and both outcomes of IF chains (including cycles spent skipping) are known statically, so no
+ * decoding or dispatch is left at run time, apart from a switch on PC between blocks.
+ * <p/>
+ * Other special instructions (HWI, HWQ, INT, RFI...), indirect jump targets and code which was overwritten since
+ * translation are executed by the interpreter, so devices and interrupts work as usual.
+ */
+public class StaticRecompiler {
+
+    static final int MAX_INSTRUCTIONS = 64;
+
+    private static final String[] REG_NAME = {"rA", "rB", "rC", "rX", "rY", "rZ", "rI", "rJ", "rSP", "rEX"};
+    private static final String[] REG_ADDRESS = {"M_A", "M_B", "M_C", "M_X", "M_Y", "M_Z", "M_I", "M_J", "M_SP", "M_EX"};
+    private static final int R_SP = 8;
+    private static final int R_EX = 9;
+
+    // Operand kinds
+    private static final int K_REG = 0;
+    private static final int K_RAM = 1;
+    private static final int K_CONST = 2;
+    private static final int K_PC = 3;
+
+    private static final class Operand {
+        final int kind;
+        final String ref; // local name for registers, address expression for RAM, literal for constants
+
+        Operand(int kind, String ref) {
+            this.kind = kind;
+            this.ref = ref;
+        }
+    }
+
+    private final char[] mem;
+    private final ControlFlowGraph cfg;
+    private final Disassembler disassembler = new Disassembler();
+    private int blocks;
+
+    /**
+     * @param image program binary
+     * @param map   code/data map, may be null
+     */
+    public StaticRecompiler(char[] image, AsmMap map) {
+        mem = new char[RAM_SIZE];
+        System.arraycopy(image, 0, mem, 0, Math.min(image.length, RAM_SIZE));
+        cfg = new ControlFlowGraph(mem, map);
+        disassembler.init(mem);
+    }
+
+    /**
+     * Adds address, where execution may start (e.g. interrupt handler set up indirectly)
+     */
+    public void addEntryPoint(int addr) {
+        cfg.addEntryPoint(addr);
+    }
+
+    /**
+     * Generates source of class
+     *
+     * @param packageName package of class, may be empty
+     */
+    public String generate(String packageName, String className) {
+        cfg.build();
+        StringBuilder methods = new StringBuilder();
+        StringBuilder dispatch = new StringBuilder();
+        blocks = 0;
+        for (int addr = cfg.nextLeader(0); addr >= 0; addr = cfg.nextLeader(addr + 1)) {
+            if (emitBlock(methods, addr)) {
+                dispatch.append(String.format("            case 0x%04x:\n", addr));
+                dispatch.append(String.format("                return b%04x(cpu, mem, max);\n", addr));
+                blocks++;
+            }
+        }
+
+        StringBuilder out = new StringBuilder();
+        out.append("/*\n");
+        out.append(" * Generated by dcpu.aot.StaticRecompiler, do not edit.\n");
+        out.append(String.format(" * %d instructions in %d blocks, %d indirect jumps left to the interpreter\n",
+                cfg.getInstructionCount(), blocks, cfg.getIndirectJumps()));
+        out.append(" */\n");
+        if (packageName != null && packageName.length() > 0) out.append("package ").append(packageName).append(";\n\n");
+        out.append("import dcpu.Dcpu;\n");
+        out.append("import dcpu.aot.CompiledProgram;\n");
+        out.append("import dcpu.jit.JitRuntime;\n\n");
+        out.append("import static dcpu.Dcpu.*;\n\n");
+        out.append("public final class ").append(className).append(" implements CompiledProgram {\n\n");
+        out.append("    public int execute(Dcpu cpu, char[] mem, int max) {\n");
+        out.append("        switch (mem[M_PC]) {\n");
+        out.append(dispatch);
+        out.append("            default:\n");
+        out.append("                return 0;\n");
+        out.append("        }\n");
+        out.append("    }\n");
+        out.append(methods);
+        out.append("}\n");
+        return out.toString();
+    }
+
+    public int getBlockCount() {
+        return blocks;
+    }
+
+    public int getInstructionCount() {
+        return cfg.getInstructionCount();
+    }
+
+    public int getIndirectJumps() {
+        return cfg.getIndirectJumps();
+    }
+
+    ////////////////
+    // Blocks
+
+    /**
+     * Kind of instruction as block member: 0 - can't be compiled, 1 - ordinary, 2 - ends block
+     */
+    private int classify(int addr, int info) {
+        if (!cfg.isInstruction(addr)) return 0;
+        int type = Decoder.type(info);
+        if (type == Decoder.T_SPECIAL) return Decoder.specialOp(info) == SpecialOp.JSR ? 2 : 0;
+        if (type != Decoder.T_BASIC) return 0;
+        if (BasicOp.OPS_IF.contains(Decoder.basicOp(info))) {
+            return cfg.skipTarget(addr + Decoder.length(info)) >= 0 ? 2 : 0;
+        }
+        return Decoder.b(info) == A_PC ? 2 : 1;
+    }
+
+    private boolean emitBlock(StringBuilder out, int start) {
+        int usedRegs = 0;
+        int count = 0;
+        int end = start;
+        boolean terminated = false;
+        int lastInfo = 0;
+        while (count < MAX_INSTRUCTIONS && !terminated && end < RAM_SIZE) {
+            int info = Decoder.decode(mem[end]);
+            int kind = classify(end, info);
+            if (kind == 0) break;
+            lastInfo = info;
+            usedRegs |= regsUsed(info);
+            terminated = kind == 2;
+            end += Decoder.length(info);
+            count++;
+        }
+        if (count == 0) return false;
+        // skip path of the final IF depends on the words it skips, so they are checked like the block itself
+        int checkEnd = end;
+        if (BasicOp.OPS_IF.contains(Decoder.basicOp(lastInfo))) {
+            checkEnd = cfg.skipTarget(end);
+        }
+
+        StringBuilder body = new StringBuilder();
+        body.append(String.format("\n    private static int b%04x(Dcpu cpu, char[] mem, int max) {\n", start));
+        body.append(String.format("        if (max < %d", count));
+        for (int addr = start; addr < checkEnd; addr++) {
+            body.append(String.format("\n                || mem[0x%04x] != 0x%04x", addr, (int) mem[addr]));
+        }
+        body.append(") return 0;\n");
+        for (int r = 0; r < REG_NAME.length; r++) {
+            if ((usedRegs & (1 << r)) != 0) {
+                body.append(String.format("        int %s = mem[%s];\n", REG_NAME[r], REG_ADDRESS[r]));
+            }
+        }
+        body.append("        int aa, ba, r;\n");
+
+        int cycles = 0;
+        int n = 0;
+        int pc = start;
+        while (pc < end) {
+            int info = Decoder.decode(mem[pc]);
+            disassembler.setAddress(pc);
+            body.append(String.format("        // %04x: %s\n", pc, disassembler.next(true)));
+            cycles += 1 + Decoder.cycles(info);
+            n++;
+            emitInstruction(body, pc, info, n, cycles, start, checkEnd, usedRegs);
+            pc += Decoder.length(info);
+        }
+        if (!terminated) emitExit(body, "        ", n, cycles, hex(end & 0xffff), usedRegs);
+        body.append("    }\n");
+        out.append(body);
+        return true;
+    }
+
+    private static int regsUsed(int info) {
+        if (Decoder.type(info) == Decoder.T_SPECIAL) return regsUsedByOperand(Decoder.a(info)) | (1 << R_SP);
+        int regs = regsUsedByOperand(Decoder.a(info)) | regsUsedByOperand(Decoder.b(info)) | (1 << R_EX);
+        BasicOp op = Decoder.basicOp(info);
+        if (op == BasicOp.STI || op == BasicOp.STD) regs |= (1 << A_I) | (1 << A_J);
+        return regs;
+    }
+
+    private static int regsUsedByOperand(int code) {
+        if (code <= 0x17) return 1 << (code & 7);
+        switch (code) {
+            case A_PUSHPOP:
+            case A_PEEK:
+            case A_PICK:
+            case A_SP:
+                return 1 << R_SP;
+            case A_EX:
+                return 1 << R_EX;
+            default:
+                return 0;
+        }
+    }
+
+    private void emitInstruction(StringBuilder out, int pc, int info, int n, int cycles, int start, int end,
+                                 int usedRegs) {
+        int next = pc + Decoder.length(info);
+        int nw = pc + 1;
+        Operand a = operand(out, Decoder.a(info), true, "aa", nw);
+        nw += Decoder.nextWords(Decoder.a(info));
+
+        if (Decoder.type(info) == Decoder.T_SPECIAL) {
+            // JSR
+            out.append(String.format("        r = %s;\n", read(a, next)));
+            out.append("        rSP = (rSP - 1) & 0xffff;\n");
+            out.append(String.format("        mem[rSP] = (char) %s;\n", hex(next & 0xffff)));
+            emitExit(out, "        ", n, cycles, "r", usedRegs);
+            return;
+        }
+
+        BasicOp op = Decoder.basicOp(info);
+        Operand b = operand(out, Decoder.b(info), false, "ba", nw);
+        String av = read(a, next);
+        String bv = read(b, next);
+        if (BasicOp.OPS_IF.contains(op)) {
+            int skipped = cfg.skipTarget(next);
+            // cycles of the miss: IF itself + miss + skipping + 1 instead of IF cost
+            int missCycles = cycles - op.cycles + 1 + cfg.skipCycles(next) + 1;
+            out.append(String.format("        if (%s) {\n", condition(op, bv, av)));
+            emitExit(out, "            ", n, cycles, hex(next & 0xffff), usedRegs);
+            out.append("        }\n");
+            emitExit(out, "        ", n, missCycles, hex(skipped & 0xffff), usedRegs);
+            return;
+        }
+
+        boolean setsEx = false;
+        switch (op) {
+            case SET:
+            case STI:
+            case STD:
+                out.append(String.format("        r = %s;\n", av));
+                break;
+            case AND:
+                out.append(String.format("        r = %s & %s;\n", bv, av));
+                break;
+            case BOR:
+                out.append(String.format("        r = %s | %s;\n", bv, av));
+                break;
+            case XOR:
+                out.append(String.format("        r = %s ^ %s;\n", bv, av));
+                break;
+            case MOD:
+            case MDI:
+                out.append(String.format("        r = JitRuntime.%s(%s, %s);\n", helper(op), bv, av));
+                break;
+            default:
+                out.append(String.format("        r = JitRuntime.%s(%s, %s, rEX);\n", helper(op), bv, av));
+                setsEx = true;
+                break;
+        }
+        if (op == BasicOp.STI || op == BasicOp.STD) {
+            String delta = op == BasicOp.STI ? "+" : "-";
+            out.append(String.format("        rI = (rI %s 1) & 0xffff;\n", delta));
+            out.append(String.format("        rJ = (rJ %s 1) & 0xffff;\n", delta));
+        }
+        boolean bIsEx = b.kind == K_REG && b.ref.equals("rEX");
+        if (b.kind == K_REG) {
+            out.append(String.format("        %s = r & 0xffff;\n", b.ref));
+        } else if (b.kind == K_RAM) {
+            out.append(String.format("        mem[%s] = (char) r;\n", b.ref));
+        }
+        if (setsEx && !bIsEx) out.append("        rEX = r >>> 16;\n");
+
+        if (b.kind == K_PC) {
+            emitExit(out, "        ", n, cycles, "r & 0xffff", usedRegs);
+        } else if (b.kind == K_RAM) {
+            out.append(String.format("        if (%s >= %s && %s < %s) {\n", b.ref, hex(start), b.ref, hex(end)));
+            emitExit(out, "            ", n, cycles, hex(next & 0xffff), usedRegs);
+            out.append("        }\n");
+        }
+    }
+
+    private static String helper(BasicOp op) {
+        return op.name().toLowerCase(Locale.ROOT);
+    }
+
+    private static String condition(BasicOp op, String bv, String av) {
+        switch (op) {
+            case IFB:
+                return String.format("(%s & %s) != 0", bv, av);
+            case IFC:
+                return String.format("(%s & %s) == 0", bv, av);
+            case IFE:
+                return String.format("%s == %s", bv, av);
+            case IFN:
+                return String.format("%s != %s", bv, av);
+            case IFG:
+                return String.format("%s > %s", bv, av);
+            case IFA:
+                return String.format("(short) %s > (short) %s", bv, av);
+            case IFL:
+                return String.format("%s < %s", bv, av);
+            case IFU:
+                return String.format("(short) %s < (short) %s", bv, av);
+            default:
+                throw new IllegalArgumentException("Not a conditional operation: " + op);
+        }
+    }
+
+    /**
+     * Emits address evaluation of operand, with the same side effects on SP as interpreter
+     *
+     * @param tmp local to keep RAM address in
+     * @param nw  address of next word for this operand
+     */
+    private Operand operand(StringBuilder out, int code, boolean isa, String tmp, int nw) {
+        if (code <= 0x07) {
+            return new Operand(K_REG, REG_NAME[code]);
+        } else if (code <= 0x0f) {
+            out.append(String.format("        %s = %s;\n", tmp, REG_NAME[code - 8]));
+            return new Operand(K_RAM, tmp);
+        } else if (code <= 0x17) {
+            out.append(String.format("        %s = (%s + %s) & 0xffff;\n", tmp, REG_NAME[code - 16], hex(mem[nw])));
+            return new Operand(K_RAM, tmp);
+        } else if (code >= A_CONST) {
+            return new Operand(K_CONST, hex(cfg.constant(code, nw)));
+        }
+        switch (code) {
+            case A_PUSHPOP:
+                if (isa) {
+                    out.append(String.format("        %s = rSP;\n", tmp));
+                    out.append("        rSP = (rSP + 1) & 0xffff;\n");
+                } else {
+                    out.append("        rSP = (rSP - 1) & 0xffff;\n");
+                    out.append(String.format("        %s = rSP;\n", tmp));
+                }
+                return new Operand(K_RAM, tmp);
+            case A_PEEK:
+                out.append(String.format("        %s = rSP;\n", tmp));
+                return new Operand(K_RAM, tmp);
+            case A_PICK:
+                out.append(String.format("        %s = (rSP + %s) & 0xffff;\n", tmp, hex(mem[nw])));
+                return new Operand(K_RAM, tmp);
+            case A_SP:
+                return new Operand(K_REG, "rSP");
+            case A_PC:
+                return new Operand(K_PC, null);
+            case A_EX:
+                return new Operand(K_REG, "rEX");
+            case A_M_NW:
+                return new Operand(K_RAM, hex(mem[nw]));
+            case A_NW:
+                // 'b' is the next word itself
+                return isa ? new Operand(K_CONST, hex(mem[nw])) : new Operand(K_RAM, hex(nw));
+            default:
+                throw new IllegalArgumentException("Unknown operand code: " + code);
+        }
+    }
+
+    private static String read(Operand operand, int next) {
+        switch (operand.kind) {
+            case K_REG:
+            case K_CONST:
+                return operand.ref;
+            case K_RAM:
+                return "mem[" + operand.ref + "]";
+            default:
+                // PC reads as address of the next instruction
+                return hex(next & 0xffff);
+        }
+    }
+
+    private static void emitExit(StringBuilder out, String indent, int n, int cycles, String pc, int usedRegs) {
+        for (int r = 0; r < REG_NAME.length; r++) {
+            if ((usedRegs & (1 << r)) != 0) {
+                out.append(String.format("%smem[%s] = (char) %s;\n", indent, REG_ADDRESS[r], REG_NAME[r]));
+            }
+        }
+        out.append(String.format("%smem[M_PC] = (char) (%s);\n", indent, pc));
+        out.append(String.format("%scpu.cycles += %d;\n", indent, cycles));
+        out.append(String.format("%sreturn %d;\n", indent, n));
+    }
+
+    private static String hex(int value) {
+        return String.format("0x%04x", value);
+    }
+
+    ////////////////
+    // Command line
+
+    public static void main(String[] args) {
+        String binin = null;
+        String mapin = null;
+        String out = null;
+        String className = "RecompiledProgram";
+        String packageName = "";
+        int ai = 0;
+        while (ai < args.length) {
+            String arg = args[ai++];
+            if (arg.startsWith("-")) {
+                if (ai == args.length) fail("Missing argument");
+                if (arg.equals("-M")) {
+                    mapin = args[ai++];
+                } else if (arg.equals("-o")) {
+                    out = args[ai++];
+                } else if (arg.equals("-c")) {
+                    className = args[ai++];
+                } else if (arg.equals("-p")) {
+                    packageName = args[ai++];
+                } else {
+                    fail("Unrecognized option `%s` . Aborting\n", arg);
+                }
+            } else {
+                if (binin != null) fail("Multiple filenames (%s and %s). Aborting\n", binin, arg);
+                binin = arg;
+            }
+        }
+        if (binin == null) {
+            fail("DCPU-16 static recompiler.\n" +
+                    "Usage:\n" +
+                    "\tjava dcpu.aot.StaticRecompiler [OPTIONS] BININ\n" +
+                    "Translates binary image into Java class, to be installed with Dcpu.setCompiledProgram\n" +
+                    "OPTIONS:\n" +
+                    "\t-M MAPIN         compilation map (see ExtAsmDemo -M) to tell code from data\n" +
+                    "\t-c CLASS         class name (default RecompiledProgram)\n" +
+                    "\t-p PACKAGE       package name (default none)\n" +
+                    "\t-o OUT           output file (default stdout)\n");
+        }
+        try {
+            Dcpu cpu = new Dcpu();
+            cpu.upload(new File(binin));
+            AsmMap map = null;
+            if (mapin != null) {
+                BufferedReader reader = new BufferedReader(new FileReader(mapin));
+                try {
+                    map = AsmMap.read(reader);
+                } finally {
+                    reader.close();
+                }
+            }
+            StaticRecompiler recompiler = new StaticRecompiler(cpu.mem, map);
+            String source = recompiler.generate(packageName, className);
+            PrintStream outf = (out == null) ? System.out : new PrintStream(out);
+            outf.print(source);
+            outf.flush();
+            if (out != null) outf.close();
+            System.err.printf("%d instructions in %d blocks, %d indirect jumps\n",
+                    recompiler.getInstructionCount(), recompiler.getBlockCount(), recompiler.getIndirectJumps());
+        } catch (IOException e) {
+            fail("I/O error: %s\n", e.getMessage());
+        }
+    }
+
+    private static void fail(String message, Object... args) {
+        System.err.printf(message, args);
+        System.err.println();
+        System.exit(-1);
+    }
+}
@@ -0,0 +1,185 @@
+package dcpu.apps;
+
+import dcpu.Assembler;
+import dcpu.Dcpu;
+import dcpu.hw.GenericClock;
+import dcpu.hw.GenericKeyboard;
+import dcpu.hw.MonitorLEM1802;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs guest benchmark programs headless for a fixed number of cycles and reports emulator speed.
+ * <p/>
+ * Programs get the same devices as in ExtAsmDemo (keyboard, LEM1802 without window, clock), and are executed
+ * without pacing. Every program is run for 1/10 of cycles first, to warm up the JVM.
+ */
+public class BenchmarkRunner {
+
+    /**
+     * Programs in resource/dcpu/bench
+     */
+    public static final String[] CORPUS = {"sort", "bignum", "memcpy", "interrupts", "lemtext", "recursion"};
+    public static final long DEFAULT_CYCLES = 50L * 1000 * 1000;
+    private static final int CHUNK = 10000;
+
+    public static class Result {
+        public final String name;
+        public final long instructions;
+        public final long cycles;
+        public final long nanos;
+        public final long allocatedBytes; // -1 if JVM can't tell
+        public final Dcpu cpu;
+
+        Result(String name, long instructions, long cycles, long nanos, long allocatedBytes, Dcpu cpu) {
+            this.name = name;
+            this.instructions = instructions;
+            this.cycles = cycles;
+            this.nanos = nanos;
+            this.allocatedBytes = allocatedBytes;
+            this.cpu = cpu;
+        }
+
+        public double getMips() {
+            return instructions * 1e3 / nanos;
+        }
+
+        /**
+         * Emulated frequency in MHz
+         */
+        public double getMHz() {
+            return cycles * 1e3 / nanos;
+        }
+
+        /**
+         * Allocation rate in MB/s, -1 if unknown
+         */
+        public double getAllocationRate() {
+            return allocatedBytes < 0 ? -1 : allocatedBytes * 1e3 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-12s %12d %12d %10.2f %10.2f %12s%s", name, instructions, cycles, getMips(), getMHz(),
+                    allocatedBytes < 0 ? "n/a" : String.format("%.3f", getAllocationRate()),
+                    cpu.halt ? "  (halted)" : "");
+        }
+    }
+
+    /**
+     * Source of corpus program
+     */
+    public static String corpusSource(String name) throws IOException {
+        InputStream stream = BenchmarkRunner.class.getResourceAsStream("/dcpu/bench/" + name + ".asm");
+        if (stream == null) throw new FileNotFoundException("No benchmark " + name);
+        return read(new InputStreamReader(stream));
+    }
+
+    private static String read(Reader reader) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        char[] buf = new char[4096];
+        int n;
+        while ((n = reader.read(buf)) > 0) {
+            sb.append(buf, 0, n);
+        }
+        reader.close();
+        return sb.toString();
+    }
+
+    /**
+     * Creates machine with benchmark devices and uploaded program
+     */
+    public static Dcpu createMachine(char[] binary) {
+        Dcpu cpu = new Dcpu();
+        cpu.upload(binary);
+        cpu.attach(new GenericKeyboard(MonitorLEM1802.MANUFACTURER_ID, 16));
+        cpu.attach(new MonitorLEM1802());
+        cpu.attach(new GenericClock(MonitorLEM1802.MANUFACTURER_ID));
+        return cpu;
+    }
+
+    /**
+     * Executes program for at least given number of cycles (less, if it halts)
+     */
+    public static Result run(String name, char[] binary, long cycles, boolean jit) {
+        Dcpu cpu = createMachine(binary);
+        cpu.setJitEnabled(jit);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long bytes0 = allocatedBytes(threads, threadId);
+        long time0 = System.nanoTime();
+        long instructions = 0;
+        while (cpu.cycles < cycles && !cpu.halt) {
+            cpu.run(CHUNK);
+            instructions += CHUNK;
+        }
+        long nanos = System.nanoTime() - time0;
+        long bytes1 = allocatedBytes(threads, threadId);
+        return new Result(name, instructions, cpu.cycles, nanos, bytes0 < 0 ? -1 : bytes1 - bytes0, cpu);
+    }
+
+    private static long allocatedBytes(ThreadMXBean threads, long threadId) {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+            if (sunThreads.isThreadAllocatedMemorySupported() && sunThreads.isThreadAllocatedMemoryEnabled()) {
+                return sunThreads.getThreadAllocatedBytes(threadId);
+            }
+        }
+        return -1;
+    }
+
+    public static void main(String[] args) throws IOException {
+        long cycles = DEFAULT_CYCLES;
+        boolean jit = false;
+        List<String> files = new ArrayList<String>();
+        int ai = 0;
+        while (ai < args.length) {
+            String arg = args[ai++];
+            if (arg.equals("-c")) {
+                if (ai == args.length) fail("Missing argument");
+                cycles = Long.parseLong(args[ai++]);
+            } else if (arg.equals("-jit")) {
+                jit = true;
+            } else if (arg.startsWith("-")) {
+                fail("DCPU-16 benchmark runner.\n" +
+                        "Usage:\n" +
+                        "\tjava dcpu.apps.BenchmarkRunner [OPTIONS] [SRCIN...]\n" +
+                        "Runs given source files, or the built-in corpus, and prints their speed\n" +
+                        "OPTIONS:\n" +
+                        "\t-c CYCLES        cycles to run each program for (default %d)\n" +
+                        "\t-jit             enable JIT compiler\n", DEFAULT_CYCLES);
+            } else {
+                files.add(arg);
+            }
+        }
+        List<String> names = new ArrayList<String>();
+        List<String> sources = new ArrayList<String>();
+        if (files.isEmpty()) {
+            for (String name : CORPUS) {
+                names.add(name);
+                sources.add(corpusSource(name));
+            }
+        } else {
+            for (String file : files) {
+                names.add(new File(file).getName().replaceFirst("\\.asm$", ""));
+                sources.add(read(new FileReader(file)));
+            }
+        }
+        System.out.printf("%-12s %12s %12s %10s %10s %12s%n", "program", "instructions", "cycles", "MIPS", "MHz",
+                "alloc MB/s");
+        for (int i = 0; i < names.size(); i++) {
+            char[] binary = new Assembler().assemble(sources.get(i));
+            run(names.get(i), binary, cycles / 10, jit); // warm-up
+            System.out.println(run(names.get(i), binary, cycles, jit));
+        }
+    }
+
+    private static void fail(String fmt, Object... args) {
+        System.err.printf(fmt, args);
+        System.exit(-1);
+    }
+}
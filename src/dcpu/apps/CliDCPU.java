@@ -1,10 +1,20 @@
 package dcpu.apps;
 
+import dcpu.AsmMap;
 import dcpu.Assembler;
+import dcpu.Breakpoint;
+import dcpu.Coverage;
 import dcpu.Dcpu;
 import dcpu.Dcpu.Reg;
+import dcpu.Debugger;
 import dcpu.Disassembler;
+import dcpu.ExecutionHistory;
+import dcpu.OpcodeProfiler;
+import dcpu.PreListener;
+import dcpu.SamplingProfiler;
+import dcpu.TraceFilter;
 import dcpu.Tracer;
+import dcpu.Watchpoint;
 import dcpu.hw.GenericKeyboard;
 import dcpu.hw.MonitorLEM1802;
 import dcpu.hw.MonitorWindow;
@@ -15,6 +25,7 @@ import java.awt.event.WindowEvent;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -26,8 +37,14 @@ public class CliDCPU {
     // is there a better way to do this? All static else the ENUMs can't access them.
     private static Assembler assembler;
     private static Dcpu dcpu;
+    private static Debugger debugger;
     private static Disassembler disassembler;
     private static Tracer tracer;
+    private static OpcodeProfiler profiler;
+    private static SamplingProfiler sampler;
+    private static Coverage coverage;
+    private static ExecutionHistory history;
+    private static File sourceFile;
     private static boolean showingDisplay = false;
     private static MonitorWindow monitorWindow;
     private static MonitorLEM1802 monitorDevice;
@@ -60,10 +77,12 @@ public class CliDCPU {
                 }
                 try {
                     assembler = new Assembler();
+                    assembler.genMap = true;
                     char[] bin = assembler.assemble(new FileReader(in));
                     dcpu.reset();
                     dcpu.memzero();
                     dcpu.upload(bin);
+                    sourceFile = in;
                 } catch (Exception e) {
                     System.err.println("Error: Couldn't read file " + in.getAbsolutePath());
                     e.printStackTrace(System.err);
@@ -86,12 +105,16 @@ public class CliDCPU {
                     System.err.printf("Error: %s is not valid format for a number.\n", args[1]);
                     return;
                 }
-                dcpu.run(steps);
+                // stop at breakpoint
+                dcpu.halt = false;
+                for (int i = 0; i < steps && !dcpu.halt; i++) {
+                    dcpu.run(1);
+                }
             }
 
             @Override
             public String usage() {
-                return formatHelp(name + " [n]", "run n instructions (default = 1). Hitting enter on blank line will run 1 instruction.");
+                return formatHelp(name + " [n]", "run n instructions (default = 1), or until breakpoint. Hitting enter on blank line will run 1 instruction.");
             }
         },
 
@@ -216,6 +239,35 @@ public class CliDCPU {
             }
         },
 
+        TRACEFILTER("tracefilter") {
+            @Override
+            public void execute(String[] args) {
+                if ("".equals(args[0])) {
+                    TraceFilter filter = tracer.getFilter();
+                    System.out.println(filter == null ? "tracing everything" : "tracing " + filter);
+                    return;
+                }
+                if ("off".equals(args[0])) {
+                    tracer.setFilter(null);
+                    return;
+                }
+                StringBuilder spec = new StringBuilder();
+                for (String arg : args) {
+                    spec.append(arg).append(',');
+                }
+                try {
+                    tracer.setFilter(TraceFilter.parse(spec.toString(), assembler != null ? assembler.asmmap : null));
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Error: " + e.getMessage());
+                }
+            }
+
+            @Override
+            public String usage() {
+                return formatHelp(name + " [<part>...|off]", "traces only instructions in any of the ranges (start-end of addresses or labels, addr, or label up to the next one) and of any of the classes (calls, writes), one of every n with 1/n; off traces everything. currently " + (tracer.getFilter() == null ? "off" : tracer.getFilter().toString()));
+            }
+        },
+
         NEXTINSTRUCTION("next") {
             @Override
             public void execute(String[] args) {
@@ -272,6 +324,298 @@ public class CliDCPU {
             }
         },
 
+        PROFILE("profile") {
+            @Override
+            public void execute(String[] args) {
+                String sub = args[0];
+                if ("on".equals(sub)) {
+                    if (profiler == null) {
+                        profiler = new OpcodeProfiler();
+                        profiler.install(dcpu);
+                    }
+                } else if ("off".equals(sub)) {
+                    if (profiler != null) profiler.uninstall();
+                    profiler = null;
+                } else if ("reset".equals(sub)) {
+                    if (profiler != null) profiler.reset();
+                } else if ("".equals(sub) || "json".equals(sub)) {
+                    if (profiler == null) {
+                        System.err.println("Profiler is off");
+                        return;
+                    }
+                    if (args.length > 1) {
+                        try {
+                            PrintStream out = new PrintStream(args[1]);
+                            writeProfile(out, sub);
+                            out.close();
+                        } catch (IOException e) {
+                            System.err.println("Error: Couldn't write file " + args[1]);
+                        }
+                    } else {
+                        writeProfile(System.out, sub);
+                    }
+                } else {
+                    System.err.println(usage());
+                }
+            }
+
+            private void writeProfile(PrintStream out, String format) {
+                if ("json".equals(format)) {
+                    profiler.printJsonReport(out);
+                } else {
+                    profiler.printReport(out);
+                }
+            }
+
+            @Override
+            public String usage() {
+                return formatHelp(name + " [on|off|reset|json [file]]", "controls opcode profiler, or prints its report as text or json (to file, if given). currently " + (profiler != null ? "on" : "off"));
+            }
+        },
+
+        SAMPLE("sample") {
+            @Override
+            public void execute(String[] args) {
+                String sub = args[0];
+                if ("on".equals(sub)) {
+                    int interval = SamplingProfiler.DEFAULT_INTERVAL;
+                    if (args.length > 1) {
+                        if (!Assembler.numPattern.matcher(args[1]).matches() || numberToInt(args[1]) <= 0) {
+                            System.err.printf("Error: %s is not valid interval.\n", args[1]);
+                            return;
+                        }
+                        interval = numberToInt(args[1]);
+                    }
+                    if (sampler != null) sampler.uninstall();
+                    sampler = new SamplingProfiler(assembler != null ? assembler.asmmap : null);
+                    sampler.setInterval(interval);
+                    sampler.install(dcpu);
+                } else if ("off".equals(sub)) {
+                    if (sampler != null) sampler.uninstall();
+                    sampler = null;
+                } else if ("reset".equals(sub)) {
+                    if (sampler != null) sampler.reset();
+                } else if ("".equals(sub) || "flame".equals(sub)) {
+                    if (sampler == null) {
+                        System.err.println("Sampling profiler is off");
+                        return;
+                    }
+                    if ("".equals(sub)) {
+                        sampler.printReport(System.out, 20);
+                    } else if (args.length > 1) {
+                        try {
+                            PrintStream out = new PrintStream(args[1]);
+                            sampler.writeCollapsed(out);
+                            out.close();
+                        } catch (IOException e) {
+                            System.err.println("Error: Couldn't write file " + args[1]);
+                        }
+                    } else {
+                        sampler.writeCollapsed(System.out);
+                    }
+                } else {
+                    System.err.println(usage());
+                }
+            }
+
+            @Override
+            public String usage() {
+                return formatHelp(name + " [on [interval]|off|reset|flame [file]]", "controls sampling profiler, or prints its top functions and lines, or collapsed stacks for flame graph (to file, if given). currently " + (sampler != null ? "on" : "off"));
+            }
+        },
+
+        COVERAGE("coverage") {
+            @Override
+            public void execute(String[] args) {
+                String sub = args[0];
+                if ("on".equals(sub)) {
+                    if (coverage == null) {
+                        coverage = new Coverage();
+                        coverage.install(dcpu);
+                    }
+                } else if ("off".equals(sub)) {
+                    if (coverage != null) coverage.uninstall();
+                    coverage = null;
+                } else if ("reset".equals(sub)) {
+                    if (coverage != null) coverage.reset();
+                } else if ("".equals(sub) || "lcov".equals(sub)) {
+                    if (coverage == null) {
+                        System.err.println("Coverage is off");
+                        return;
+                    }
+                    AsmMap map = assembler != null ? assembler.asmmap : null;
+                    if ("".equals(sub)) {
+                        coverage.printReport(System.out, map, 20);
+                    } else if (map == null || sourceFile == null || args.length < 2) {
+                        System.err.println(usage());
+                    } else {
+                        try {
+                            PrintStream out = new PrintStream(args[1]);
+                            coverage.writeLcov(out, map, sourceFile.getAbsolutePath(), null);
+                            out.close();
+                        } catch (IOException e) {
+                            System.err.println("Error: Couldn't write file " + args[1]);
+                        }
+                    }
+                } else {
+                    System.err.println(usage());
+                }
+            }
+
+            @Override
+            public String usage() {
+                return formatHelp(name + " [on|off|reset|lcov <file>]", "controls execution coverage, or prints its summary and hottest addresses, or saves line coverage of loaded file in LCOV format. currently " + (coverage != null ? "on" : "off"));
+            }
+        },
+
+        HISTORY("history") {
+            @Override
+            public void execute(String[] args) {
+                String sub = args[0];
+                if ("on".equals(sub)) {
+                    int capacity = ExecutionHistory.DEFAULT_CAPACITY;
+                    if (args.length > 1) {
+                        if (!Assembler.numPattern.matcher(args[1]).matches() || numberToInt(args[1]) <= 0) {
+                            System.err.printf("Error: %s is not valid size.\n", args[1]);
+                            return;
+                        }
+                        capacity = numberToInt(args[1]);
+                    }
+                    if (history != null) history.uninstall();
+                    history = new ExecutionHistory(capacity);
+                    history.setDump(ExecutionHistory.Dump.ON_CRASH, System.out, 32);
+                    history.setMap(assembler != null ? assembler.asmmap : null);
+                    history.install(dcpu);
+                } else if ("off".equals(sub)) {
+                    if (history != null) history.uninstall();
+                    history = null;
+                } else if (history == null) {
+                    System.err.println("History is off");
+                } else {
+                    history.setMap(assembler != null ? assembler.asmmap : null);
+                    history.dump(System.out, "".equals(sub) ? 16 : getNextArgAsNumber(sub));
+                }
+            }
+
+            @Override
+            public String usage() {
+                return formatHelp(name + " [on [size]|off|n]", "keeps last executed instructions (dumped automatically on reserved opcode or fire), or prints last n of them (default 16). currently " + (history != null ? "on" : "off"));
+            }
+        },
+
+        BREAK("break") {
+            @Override
+            public void execute(String[] args) {
+                String sub = args[0];
+                if ("".equals(sub)) {
+                    for (Character address : debugger.getBreakpoints()) {
+                        Breakpoint breakpoint = debugger.getBreakpoint(address);
+                        System.out.println(breakpoint != null ? breakpoint.toString() : String.format("0x%04x", (int) address));
+                    }
+                    return;
+                }
+                boolean delete = "delete".equals(sub);
+                if (delete && args.length == 1) {
+                    for (Character address : debugger.getBreakpoints()) {
+                        debugger.setBreakpoint(address, false);
+                    }
+                    return;
+                }
+                String target = delete ? args[1] : sub;
+                AsmMap map = assembler != null ? assembler.asmmap : null;
+                Character symbol = map != null ? map.symbol(target.toLowerCase()) : null;
+                char address;
+                try {
+                    address = symbol != null ? symbol : (char) getAddress(target);
+                } catch (NumberFormatException e) {
+                    System.err.printf("Error: %s is not valid address or label.\n", target);
+                    return;
+                }
+                if (delete) {
+                    debugger.setBreakpoint(address, false);
+                    return;
+                }
+                StringBuilder options = new StringBuilder();
+                for (int i = 1; i < args.length; i++) {
+                    options.append(args[i]).append(' ');
+                }
+                try {
+                    debugger.addBreakpoint(address).configure(options.toString(), map);
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Error: " + e.getMessage());
+                }
+            }
+
+            @Override
+            public String usage() {
+                return formatHelp(name + " [<addr|label> [if <cond>] [ignore <n>] [log <text>]|delete [addr|label]]", "lists breakpoints, or sets breakpoint which fires when cond (like [I+3] == 0x20 && cycles > 1000) is true, after n ignored hits, and prints text with {expr} values instead of stopping if log is given; or deletes one or all breakpoints");
+            }
+        },
+
+        WATCH("watch") {
+            @Override
+            public void execute(String[] args) {
+                String sub = args[0];
+                if ("".equals(sub)) {
+                    List<Watchpoint> watchpoints = debugger.getWatchpoints();
+                    for (int i = 0; i < watchpoints.size(); i++) {
+                        System.out.println(i + ": " + watchpoints.get(i));
+                    }
+                    return;
+                }
+                if ("delete".equals(sub)) {
+                    List<Watchpoint> watchpoints = debugger.getWatchpoints();
+                    try {
+                        if (args.length == 1) {
+                            for (Watchpoint watchpoint : watchpoints) {
+                                debugger.removeWatchpoint(watchpoint);
+                            }
+                        } else {
+                            debugger.removeWatchpoint(watchpoints.get(numberToInt(args[1])));
+                        }
+                    } catch (RuntimeException e) {
+                        System.err.println("Error: no watchpoint " + args[1]);
+                    }
+                    return;
+                }
+                Watchpoint.Kind kind = Watchpoint.Kind.WRITE;
+                int arg = 0;
+                for (Watchpoint.Kind k : Watchpoint.Kind.values()) {
+                    if (k.name().toLowerCase().equals(sub)) {
+                        kind = k;
+                        arg = 1;
+                    }
+                }
+                if (args.length <= arg || args.length > arg + 2) {
+                    System.err.println(usage());
+                    return;
+                }
+                try {
+                    char start = watchAddress(args[arg]);
+                    char end = args.length > arg + 1 ? watchAddress(args[arg + 1]) : start;
+                    debugger.addWatchpoint(start, end, kind);
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Error: " + e.getMessage());
+                }
+            }
+
+            private char watchAddress(String arg) {
+                AsmMap map = assembler != null ? assembler.asmmap : null;
+                Character symbol = map != null ? map.symbol(arg.toLowerCase()) : null;
+                if (symbol != null) return symbol;
+                try {
+                    return (char) numberToInt(arg);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException(arg + " is not valid address or label");
+                }
+            }
+
+            @Override
+            public String usage() {
+                return formatHelp(name + " [[read|write|change] <start> [end]|delete [n]]", "lists watchpoints, or stops when instructions read, write, or change value of memory words start..end (addresses or labels); or deletes one or all watchpoints");
+            }
+        },
+
         HELP("help") {
             @Override
             public void execute(String[] args) {
@@ -385,6 +729,20 @@ public class CliDCPU {
         dcpu = new Dcpu();
         tracer = new Tracer(System.out);
         tracer.install(dcpu);
+        debugger = new Debugger();
+        debugger.modregsOnBreakpoint = false;
+        debugger.breakpointListener = new PreListener<Character>() {
+            @Override
+            public void preExecute(Character pc) {
+                Watchpoint watchpoint = debugger.getLastWatchpoint();
+                if (watchpoint != null) {
+                    System.out.println("Watchpoint " + watchpoint.describeHit());
+                } else {
+                    System.out.printf("Breakpoint at 0x%04x\n", (int) pc);
+                }
+            }
+        };
+        debugger.attachTo(dcpu);
         disassembler = new Disassembler();
         disassembler.init(dcpu.mem);
         assembler = new Assembler();
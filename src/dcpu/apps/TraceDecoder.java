@@ -0,0 +1,41 @@
+package dcpu.apps;
+
+import dcpu.BinaryTrace;
+
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * Prints binary trace (written by ExtAsmDemo -B, see {@link BinaryTrace}) as text, like ExtAsmDemo -T or -Tr would
+ */
+public class TraceDecoder {
+    public static void main(String[] args) throws IOException {
+        boolean registers = false;
+        String file = null;
+        for (String arg : args) {
+            if (arg.equals("-r")) {
+                registers = true;
+            } else if (file == null) {
+                file = arg;
+            } else {
+                file = null;
+                break;
+            }
+        }
+        if (file == null) {
+            System.err.println("Usage: java dcpu.apps.TraceDecoder [-r] TRACEFILE\n" +
+                    "\t-r               print registers after each instruction");
+            System.exit(-1);
+        }
+        FileInputStream in = new FileInputStream(file);
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 1 << 16));
+        try {
+            BinaryTrace.decode(in.getChannel(), out, registers);
+        } finally {
+            out.flush();
+            in.close();
+        }
+    }
+}
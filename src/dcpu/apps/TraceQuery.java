@@ -0,0 +1,73 @@
+package dcpu.apps;
+
+import dcpu.IndexedTrace;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Answers questions about indexed trace (written by ExtAsmDemo -X, see {@link IndexedTrace}) without reading all of it
+ */
+public class TraceQuery {
+
+    private static final String USAGE = "" +
+            "Usage: java dcpu.apps.TraceQuery TRACEFILE QUERY\n" +
+            "QUERY:\n" +
+            "\tinfo                            number of records and blocks\n" +
+            "\trecord N [COUNT]                records from N-th one (default COUNT = 1)\n" +
+            "\tcycle C [COUNT]                 records from the first one started at or after cycle C\n" +
+            "\tpc ADDR [FROM [TO]]             records of instruction at ADDR, started in cycles FROM..TO\n" +
+            "\twrites ADDR [FROM [TO]]         records of instructions which wrote RAM at ADDR, in cycles FROM..TO\n" +
+            "Numbers may be decimal or 0x hex\n";
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) fail();
+        IndexedTrace trace = IndexedTrace.open(new File(args[0]));
+        try {
+            IndexedTrace.Cursor cursor = trace.cursor();
+            String query = args[1];
+            if (query.equals("info")) {
+                System.out.printf("%d records in %d blocks%n", trace.getRecords(), trace.getBlocks());
+            } else if (query.equals("record") || query.equals("cycle")) {
+                if (args.length < 3 || args.length > 4) fail();
+                long count = args.length > 3 ? number(args[3]) : 1;
+                boolean found = query.equals("record") ? cursor.seek(number(args[2])) : cursor.seekCycles(number(args[2]));
+                for (long i = 0; found && i < count; i++) {
+                    System.out.println(cursor);
+                    found = cursor.next();
+                }
+            } else if (query.equals("pc") || query.equals("writes")) {
+                if (args.length < 3 || args.length > 5) fail();
+                char addr = (char) number(args[2]);
+                long from = args.length > 3 ? number(args[3]) : 0;
+                long to = args.length > 4 ? number(args[4]) : Long.MAX_VALUE;
+                boolean found = cursor.seekCycles(from);
+                while (found) {
+                    found = query.equals("pc") ? cursor.seekPc(addr) : cursor.seekWrite(addr);
+                    if (!found || cursor.getCycles() > to) break;
+                    System.out.println(cursor);
+                    found = cursor.next();
+                }
+            } else {
+                fail();
+            }
+        } finally {
+            trace.close();
+        }
+    }
+
+    private static long number(String s) {
+        try {
+            return s.startsWith("0x") ? Long.parseLong(s.substring(2), 16) : Long.parseLong(s);
+        } catch (NumberFormatException e) {
+            System.err.println("Bad number " + s);
+            System.exit(-1);
+            return 0;
+        }
+    }
+
+    private static void fail() {
+        System.err.print(USAGE);
+        System.exit(-1);
+    }
+}
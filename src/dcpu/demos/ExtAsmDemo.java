@@ -1,8 +1,17 @@
 package dcpu.demos;
 
+import dcpu.AsmMap;
 import dcpu.Assembler;
+import dcpu.BinaryTrace;
+import dcpu.Coverage;
 import dcpu.Dcpu;
 import dcpu.Disassembler;
+import dcpu.ExecutionHistory;
+import dcpu.ExecutionStream;
+import dcpu.IndexedTraceWriter;
+import dcpu.OpcodeProfiler;
+import dcpu.SamplingProfiler;
+import dcpu.TraceFilter;
 import dcpu.Tracer;
 import dcpu.hw.GenericClock;
 import dcpu.hw.GenericKeyboard;
@@ -25,10 +34,18 @@ public class ExtAsmDemo {
         boolean exec = true;
         String srcout = null;
         String mapout = null;
+        String profout = null;
+        String sampleout = null;
+        String covout = null;
+        int historySize = 0;
+        String traceout = null;
+        boolean traceindexed = false;
         boolean trace = false;
         boolean traceregs = false;
         boolean tracemem = false;
         boolean tracestack = false;
+        boolean traceasync = false;
+        String tracefilter = null;
         boolean hw_lem1802 = true;
         boolean hw_kbd = true;
         boolean hw_clk = true;
@@ -50,6 +67,26 @@ public class ExtAsmDemo {
                 } else if (arg.equals("-M")) {
                     if (ai == args.length) fail("Missing argument");
                     mapout = args[ai++];
+                } else if (arg.equals("-P")) {
+                    if (ai == args.length) fail("Missing argument");
+                    profout = args[ai++];
+                } else if (arg.equals("-S")) {
+                    if (ai == args.length) fail("Missing argument");
+                    sampleout = args[ai++];
+                } else if (arg.equals("-C")) {
+                    if (ai == args.length) fail("Missing argument");
+                    covout = args[ai++];
+                } else if (arg.equals("-B") || arg.equals("-X")) {
+                    if (ai == args.length) fail("Missing argument");
+                    traceout = args[ai++];
+                    traceindexed = arg.equals("-X");
+                } else if (arg.equals("-H")) {
+                    if (ai == args.length) fail("Missing argument");
+                    try {
+                        historySize = Integer.parseInt(args[ai++]);
+                    } catch (NumberFormatException e) {
+                        fail("Bad history size");
+                    }
                 } else if (arg.startsWith("-T")) {
                     trace = true;
                     for (char c : arg.substring(2).toCharArray()) {
@@ -63,6 +100,13 @@ public class ExtAsmDemo {
                             case 's':
                                 tracestack = true;
                                 break;
+                            case 'a':
+                                traceasync = true;
+                                break;
+                            case 'f':
+                                if (ai == args.length) fail("Missing argument");
+                                tracefilter = args[ai++];
+                                break;
                             default:
                                 fail("Unknown trace param " + c);
                                 break;
@@ -106,7 +150,17 @@ public class ExtAsmDemo {
                     "\t\tr              print registers value\n" +
                     "\t\tm              print memory at registers addresses\n" +
                     "\t\ts              print stack (8 words)\n" +
+                    "\t\ta              print from background thread, in batches (r, m, s are ignored)\n" +
+                    "\t\tf FILTER       print only instructions passing FILTER, comma-separated parts of:\n" +
+                    "\t\t               START-END (addresses or labels), ADDR, LABEL (up to next label but LABEL.xxx),\n" +
+                    "\t\t               calls (JSR, INT, HWI), writes (to RAM), 1/N (one of every N)\n" +
                     "\t-M MAPOUT        print compilation map to file (requires SOURCE)\n" +
+                    "\t-P PROFOUT       profile executed operations, save report to PROFOUT (JSON if it ends with .json)\n" +
+                    "\t-S SAMPLEOUT     sample call stacks, save them to SAMPLEOUT in collapsed (flame graph) format\n" +
+                    "\t-C COVOUT        save line coverage to COVOUT in LCOV format (requires SOURCE)\n" +
+                    "\t-B TRACEOUT      trace executed instructions to TRACEOUT in binary format (see dcpu.apps.TraceDecoder)\n" +
+                    "\t-X TRACEOUT      trace to TRACEOUT in compressed indexed format (see dcpu.apps.TraceQuery)\n" +
+                    "\t-H N             keep last N executed instructions, print them to stderr on reserved opcode or fire\n" +
                     "\t-hw:DEVICE=y/n   enable (y) or disable (n) hardware DEVICE\n" +
                     "\n" +
                     "Devices:\n" +
@@ -115,17 +169,20 @@ public class ExtAsmDemo {
                     "\tclk              Generic Clock (manufacturer = Nya Elektriska)\n" +
                     "lem1802, kbd, clk are enabled by default\n");
         }
+        if (covout != null && srcin == null) fail("Coverage requires SOURCE\n");
         ////////////////////////////////
         try {
             char[] bytecode;
+            AsmMap asmmap = null;
             if (srcin != null) {
                 FileInputStream insrcf = new FileInputStream(srcin);
                 char[] csources = new char[insrcf.available()];
                 new InputStreamReader(insrcf).read(csources, 0, csources.length);
                 Assembler assembler = new Assembler();
-                if (mapout != null) assembler.genMap = true;
+                if (mapout != null || sampleout != null || covout != null || tracefilter != null) assembler.genMap = true;
                 String ssources = new String(csources);
                 bytecode = assembler.assemble(ssources);
+                asmmap = assembler.asmmap;
 
                 if (mapout != null) {
                     /*ArrayList<String> lines = new ArrayList<String>();
@@ -221,15 +278,88 @@ public class ExtAsmDemo {
                     cpu.attach(clock);
                 }
 
+                ExecutionStream stream = null;
                 if (trace) {
                     Tracer tracer = new Tracer(System.err);
                     tracer.printMemAtReg(tracemem);
                     tracer.printRegisters(traceregs);
                     tracer.printStack(tracestack ? 8 : 0);
-                    tracer.install(cpu);
+                    if (tracefilter != null) {
+                        try {
+                            tracer.setFilter(TraceFilter.parse(tracefilter, asmmap));
+                        } catch (IllegalArgumentException e) {
+                            fail("Bad trace filter: %s\n", e.getMessage());
+                        }
+                    }
+                    if (traceasync) {
+                        stream = new ExecutionStream();
+                        tracer.subscribe(cpu, stream);
+                        stream.install(cpu);
+                    } else {
+                        tracer.install(cpu);
+                    }
+                }
+
+                OpcodeProfiler profiler = null;
+                if (profout != null) {
+                    profiler = new OpcodeProfiler();
+                    profiler.install(cpu);
+                }
+
+                Coverage coverage = null;
+                if (covout != null) {
+                    coverage = new Coverage();
+                    coverage.install(cpu);
+                }
+
+                SamplingProfiler sampler = null;
+                if (sampleout != null) {
+                    sampler = new SamplingProfiler(asmmap);
+                    sampler.install(cpu);
+                }
+
+                if (historySize > 0) {
+                    ExecutionHistory history = new ExecutionHistory(historySize);
+                    history.setMap(asmmap);
+                    history.setDump(ExecutionHistory.Dump.ON_CRASH, System.err, historySize);
+                    history.install(cpu);
+                }
+
+                BinaryTrace binaryTrace = null;
+                FileOutputStream outtrace = null;
+                if (traceout != null) {
+                    outtrace = new FileOutputStream(traceout);
+                    binaryTrace = traceindexed ? new BinaryTrace(new IndexedTraceWriter(outtrace.getChannel()))
+                            : new BinaryTrace(outtrace.getChannel());
+                    binaryTrace.install(cpu);
                 }
 
                 cpu.run();
+                if (stream != null) stream.uninstall();
+                if (binaryTrace != null) {
+                    binaryTrace.uninstall();
+                    outtrace.close();
+                }
+
+                if (profiler != null) {
+                    PrintStream outprof = new PrintStream(profout);
+                    if (profout.endsWith(".json")) {
+                        profiler.printJsonReport(outprof);
+                    } else {
+                        profiler.printReport(outprof);
+                    }
+                    outprof.close();
+                }
+                if (sampler != null) {
+                    PrintStream outsample = new PrintStream(sampleout);
+                    sampler.writeCollapsed(outsample);
+                    outsample.close();
+                }
+                if (coverage != null) {
+                    PrintStream outcov = new PrintStream(covout);
+                    coverage.writeLcov(outcov, asmmap, new File(srcin).getAbsolutePath(), null);
+                    outcov.close();
+                }
             }
 
         } catch (IOException e) {
@@ -2,6 +2,8 @@ package dcpu.hw;
 
 import dcpu.Dcpu;
 
+import java.nio.ByteBuffer;
+
 public class GenericClock extends Dcpu.Device {
 
     public static final int HARDWARE_ID = 0x12d0b402;
@@ -37,16 +39,46 @@ public class GenericClock extends Dcpu.Device {
     protected char intMsg = 0;
 
     @Override
-    public void tick() {
-        if (period == 0) return;
-        long cyclesPerShot = cpu.getFrequency() / Dcpu.FRAMES_PER_SECOND;
-        if (cpu.cycles - lastShot > period * cyclesPerShot) {
-            lastShot += period * cyclesPerShot;
-            timerTicks++;
-            if (intMsg != 0) cpu.interrupt(intMsg);
+    public void wakeup() {
+        lastShot += period * cyclesPerShot();
+        timerTicks++;
+        if (intMsg != 0) cpu.interrupt(intMsg);
+        reschedule();
+    }
+
+    @Override
+    public void frequencyChanged() {
+        reschedule();
+    }
+
+    private long cyclesPerShot() {
+        return cpu.getFrequency() / Dcpu.FRAMES_PER_SECOND;
+    }
+
+    /**
+     * Next shot happens as soon as more than period shot lengths have passed since the last one
+     */
+    private void reschedule() {
+        if (period == 0) {
+            cancelSchedule();
+        } else {
+            schedule(lastShot + period * cyclesPerShot() + 1);
         }
     }
 
+    @Override
+    public void saveState(ByteBuffer out) {
+        out.putLong(timerTicks).putLong(lastShot).putInt(period).putChar(intMsg);
+    }
+
+    @Override
+    public void restoreState(ByteBuffer in) {
+        timerTicks = in.getLong();
+        lastShot = in.getLong();
+        period = in.getInt();
+        intMsg = in.getChar();
+    }
+
     @Override
     public void interrupt() {
         switch (cpu.getreg(Dcpu.Reg.A)) {
@@ -54,6 +86,7 @@ public class GenericClock extends Dcpu.Device {
                 period = cpu.getreg(Dcpu.Reg.B);
                 lastShot = cpu.cycles;
                 timerTicks = 0;
+                reschedule();
                 break;
             case CLKINT_GETTICKS:
                 cpu.setreg(Dcpu.Reg.B, (char) timerTicks);
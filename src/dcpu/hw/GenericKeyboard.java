@@ -4,6 +4,7 @@ import dcpu.Dcpu;
 
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
+import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
 import java.util.Queue;
 
@@ -103,6 +104,33 @@ public class GenericKeyboard extends Dcpu.Device implements KeyListener {
         }
     }
 
+    /**
+     * Saves buffered keys, pressed keys and interrupt message
+     */
+    @Override
+    public void saveState(ByteBuffer out) {
+        out.putChar(intMsg).putChar((char) buffer.size());
+        for (char key : buffer) {
+            out.putChar(key);
+        }
+        for (boolean p : pressed) {
+            out.put((byte) (p ? 1 : 0));
+        }
+    }
+
+    @Override
+    public void restoreState(ByteBuffer in) {
+        intMsg = in.getChar();
+        buffer.clear();
+        for (int i = in.getChar(); i > 0; i--) {
+            char key = in.getChar();
+            if (buffer.size() < bufferSize) buffer.add(key);
+        }
+        for (int i = 0; i < pressed.length; i++) {
+            pressed[i] = in.get() != 0;
+        }
+    }
+
     @Override
     public void keyTyped(KeyEvent e) {
         char keyChar = e.getKeyChar();
@@ -5,6 +5,7 @@ import dcpu.Dcpu;
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class MonitorLEM1802 extends Dcpu.Device implements IMonitor {
 
@@ -222,6 +223,25 @@ public class MonitorLEM1802 extends Dcpu.Device implements IMonitor {
         return (r << 16) | (g << 8) | b;
     }
 
+    /**
+     * Saves mappings and border color. Font and palette are mapped to RAM if and only if their offset isn't 0
+     */
+    @Override
+    public void saveState(ByteBuffer out) {
+        out.put((byte) (active ? 1 : 0)).putChar(vram_offset).putChar(fontoffset).putChar(paloffset).putChar(borderColor);
+    }
+
+    @Override
+    public void restoreState(ByteBuffer in) {
+        active = in.get() != 0;
+        vram_offset = in.getChar();
+        fontoffset = in.getChar();
+        fontbuffer = fontoffset == 0 ? DEFAULT_FONT : cpu.mem;
+        paloffset = in.getChar();
+        palbuffer = paloffset == 0 ? DEFAULT_PALETTE : cpu.mem;
+        borderColor = in.getChar();
+    }
+
     @Override
     public void interrupt() {
         char b = cpu.getreg(Dcpu.Reg.B);
@@ -259,12 +279,14 @@ public class MonitorLEM1802 extends Dcpu.Device implements IMonitor {
                 for (int i = 0; i < DEFAULT_FONT.length; i++) {
                     cpu.mem[(b + i) & 0xffff] = DEFAULT_FONT[i];
                 }
+                cpu.memoryChanged(b, DEFAULT_FONT.length);
                 cpu.tickWait(256);
                 break;
             case MONINT_MEM_DUMP_PALETTE:
                 for (int i = 0; i < DEFAULT_PALETTE.length; i++) {
                     cpu.mem[(b + i) & 0xffff] = DEFAULT_PALETTE[i];
                 }
+                cpu.memoryChanged(b, DEFAULT_PALETTE.length);
                 cpu.tickWait(16);
                 break;
         }
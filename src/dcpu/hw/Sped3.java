@@ -3,6 +3,7 @@ package dcpu.hw;
 import dcpu.Dcpu;
 
 import java.awt.*;
+import java.nio.ByteBuffer;
 import java.util.Random;
 
 /**
@@ -69,6 +70,24 @@ public class Sped3 extends Dcpu.Device {
         vertexCount = 0;
         vertexOffset = 0;
         angle = tgtAngle = 0;
+        if (da != 0 && cpu != null) schedule(nextTicks + 1);
+    }
+
+    @Override
+    public void saveState(ByteBuffer out) {
+        out.putInt(vertexCount).putInt(vertexOffset).putInt(angle).putInt(tgtAngle).putInt(da);
+        out.put((byte) (broken ? 1 : 0)).putLong(nextTicks);
+    }
+
+    @Override
+    public void restoreState(ByteBuffer in) {
+        vertexCount = in.getInt();
+        vertexOffset = in.getInt();
+        angle = in.getInt();
+        tgtAngle = in.getInt();
+        da = in.getInt();
+        broken = in.get() != 0;
+        nextTicks = in.getLong();
     }
 
     @Override
@@ -111,18 +130,21 @@ public class Sped3 extends Dcpu.Device {
                     da = -1;
                 }
                 nextTicks = cpu.cycles + cpu.getFrequency() / SPED_FREQUENCY;
+                schedule(nextTicks + 1);
                 break;
         }
     }
 
+    /**
+     * Turns one degree as soon as cycles pass nextTicks. Broken device stays unscheduled until repaired.
+     */
     @Override
-    public void tick() {
+    public void wakeup() {
         if (!broken && da != 0) {
-            if (cpu.cycles > nextTicks) {
-                angle = (angle + da + 360) % 360;
-                nextTicks += cpu.getFrequency() / SPED_FREQUENCY;
-                if (angle == tgtAngle) da = 0;
-            }
+            angle = (angle + da + 360) % 360;
+            nextTicks += cpu.getFrequency() / SPED_FREQUENCY;
+            if (angle == tgtAngle) da = 0;
+            if (da != 0) schedule(nextTicks + 1);
         }
     }
 
@@ -13,7 +13,9 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.*;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 import static dcpu.Dcpu.RAM_SIZE;
@@ -37,6 +39,7 @@ public class IdeMain {
     private JButton resetButton;
     private JButton stepButton;
     private JButton breakpointButton;
+    private JButton conditionButton;
     private JButton saveBinButton;
     private JButton openBinButton;
     private JButton pauseButton;
@@ -53,6 +56,7 @@ public class IdeMain {
     private Debugger debugger;
     private char[] binary = {};
     private Set<Integer> srcBreakpoints = new HashSet<Integer>(); // Line starts from 1
+    private Map<Integer, String> srcBreakpointOptions = new HashMap<Integer, String>(); // Breakpoint.configure() text
     private Thread cpuThread;
 
     private RegistersModel registersModel;
@@ -168,6 +172,11 @@ public class IdeMain {
                 toggleBreakpoint();
             }
         });
+        conditionButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                editBreakpoint();
+            }
+        });
         runButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
                 debugger.breakpointsHalt = true;
@@ -229,6 +238,7 @@ public class IdeMain {
             Character asmaddr = asmMap.src2bin(lineno);
             if (srcBreakpoints.contains(lineno)) {
                 srcBreakpoints.remove(lineno);
+                srcBreakpointOptions.remove(lineno);
                 if (asmaddr != null) debugger.setBreakpoint(asmaddr, false);
             } else {
                 srcBreakpoints.add(lineno);
@@ -241,6 +251,31 @@ public class IdeMain {
         }
     }
 
+    private void editBreakpoint() {
+        try {
+            int lineno = sourceTextarea.getLineOfOffset(sourceTextarea.getCaretPosition()) + 1;
+            Character asmaddr = asmMap.src2bin(lineno);
+            if (asmaddr == null) {
+                JOptionPane.showMessageDialog(frame, "No instruction on this line (assemble first)", "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            String current = srcBreakpointOptions.get(lineno);
+            String options = (String) JOptionPane.showInputDialog(frame,
+                    "[if <condition>] [ignore <hits>] [log <message>]\n" +
+                            "e.g. if [I+3] == 0x20 && cycles > 1000 ignore 10 log A={A} I={I:d}",
+                    "Breakpoint options", JOptionPane.PLAIN_MESSAGE, null, null, current == null ? "" : current);
+            if (options == null) return;
+            debugger.addBreakpoint(asmaddr).configure(options, asmMap);
+            srcBreakpoints.add(lineno);
+            srcBreakpointOptions.put(lineno, options);
+            sourceRowHeader.breakpointChanged(lineno);
+        } catch (BadLocationException e1) {
+            e1.printStackTrace();
+        } catch (IllegalArgumentException e1) {
+            JOptionPane.showMessageDialog(frame, e1.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
     private void step() {
         debugger.breakpointsHalt = false;
         debugger.step();
@@ -382,7 +417,18 @@ public class IdeMain {
             for (Integer breakpoint : srcBreakpoints) {
                 Character addr = asmMap.src2bin(breakpoint);
                 if (addr != null) {// TODO if null, mark breakpoint somehow
-                    debugger.setBreakpoint(addr, true);
+                    String options = srcBreakpointOptions.get(breakpoint);
+                    if (options == null) {
+                        debugger.setBreakpoint(addr, true);
+                    } else {
+                        try {
+                            debugger.addBreakpoint(addr).configure(options, asmMap);
+                        } catch (IllegalArgumentException e) {
+                            // label in condition may be gone
+                            debugger.setBreakpoint(addr, true);
+                            consoleTextarea.append("Breakpoint at line " + breakpoint + ": " + e.getMessage() + "\n");
+                        }
+                    }
                 }
             }
         } catch (Exception ex) {
@@ -474,6 +520,10 @@ public class IdeMain {
         breakpointButton.setText("Breakpoint");
         breakpointButton.setToolTipText("Toggle breakpoint on instruction address");
         toolBar1.add(breakpointButton);
+        conditionButton = new JButton();
+        conditionButton.setText("Condition...");
+        conditionButton.setToolTipText("Set condition, ignore count or log message of breakpoint on instruction address");
+        toolBar1.add(conditionButton);
         final JPanel panel1 = new JPanel();
         panel1.setLayout(new GridLayoutManager(2, 3, new Insets(0, 0, 0, 0), -1, -1));
         rootPanel.add(panel1, new GridConstraints(1, 0, 1, 1, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_BOTH, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_CAN_GROW, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_CAN_GROW, null, null, null, 0, false));
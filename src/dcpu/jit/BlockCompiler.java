@@ -0,0 +1,433 @@
+package dcpu.jit;
+
+import dcpu.Decoder;
+
+import java.util.Locale;
+
+import static dcpu.Dcpu.*;
+import static dcpu.jit.ClassFileWriter.Code;
+
+/**
+ * Translates basic block of DCPU code into a class implementing {@link CompiledBlock}.
+ * <p/>
+ * Block is a straight run of basic non-IF instructions, optionally ended by instruction writing to PC (including JSR).
+ * Registers used by the block are kept in JVM locals and written back to cpu.mem on every exit, together with PC and
+ * cycle counter. Each write to RAM is followed by a check whether it hit the block itself, in which case block exits
+ * right after that instruction, so the rest is executed with the new code.
+ * <p/>
+ * IF*, other special instructions, reserved opcodes and blocks crossing end of memory are left to the interpreter.
+ */
+final class BlockCompiler {
+
+    static final int MAX_INSTRUCTIONS = 32;
+    private static final int MAX_CODE_SIZE = 6000;
+
+    private static final String DCPU = "dcpu/Dcpu";
+    private static final String RUNTIME = "dcpu/jit/JitRuntime";
+    static final String EXECUTE_DESC = "(Ldcpu/Dcpu;[C)I";
+
+    // JVM locals: 0 - this, 1 - cpu, 2 - mem
+    private static final int L_REGS = 3; // A, B, C, X, Y, Z, I, J, SP, EX
+    private static final int L_SP = L_REGS + 8;
+    private static final int L_EX = L_REGS + 9;
+    private static final int L_AA = L_REGS + 10;
+    private static final int L_BA = L_AA + 1;
+    private static final int L_R = L_BA + 1;
+    private static final int MAX_LOCALS = L_R + 1;
+    private static final int MAX_STACK = 6;
+
+    private static final int[] REG_ADDRESS = {M_A, M_B, M_C, M_X, M_Y, M_Z, M_I, M_J, M_SP, M_EX};
+    private static final int R_SP = 8;
+    private static final int R_EX = 9;
+
+    // Operand kinds
+    private static final int K_REG = 0; // register, held in local
+    private static final int K_RAM = 1; // RAM cell, address held in local
+    private static final int K_CONST = 2; // value known at compile time
+    private static final int K_PC = 3;
+
+    private static final int DYNAMIC_PC = -1;
+
+    private static final class Operand {
+        final int kind;
+        final int local;
+        final int value;
+
+        Operand(int kind, int local, int value) {
+            this.kind = kind;
+            this.local = local;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Compiled block, ready to be loaded
+     */
+    static final class Result {
+        final int start;
+        final char[] words;
+        final int instructions;
+        final byte[] classBytes;
+
+        Result(int start, char[] words, int instructions, byte[] classBytes) {
+            this.start = start;
+            this.words = words;
+            this.instructions = instructions;
+            this.classBytes = classBytes;
+        }
+    }
+
+    private final char[] mem;
+    private final int start;
+    private ClassFileWriter cf;
+    private Code code;
+    private int usedRegs;
+    private int end;
+
+    private BlockCompiler(char[] mem, int start) {
+        this.mem = mem;
+        this.start = start;
+    }
+
+    /**
+     * Compiles block starting at address start. Returns null if instruction at start can't be compiled.
+     *
+     * @param className internal name of generated class
+     */
+    static Result compile(String className, char[] mem, int start) {
+        return new BlockCompiler(mem, start).compile(className);
+    }
+
+    private Result compile(String className) {
+        // find block boundaries and registers it uses
+        int count = 0;
+        int pc = start;
+        boolean terminated = false;
+        while (count < MAX_INSTRUCTIONS && !terminated) {
+            int info = Decoder.decode(mem[pc]);
+            if (!isCompilable(info) || pc + Decoder.length(info) > RAM_SIZE) break;
+            usedRegs |= regsUsed(info);
+            terminated = isTerminator(info);
+            pc += Decoder.length(info);
+            count++;
+        }
+        if (count == 0) return null;
+        end = pc;
+
+        cf = new ClassFileWriter(className, "java/lang/Object");
+        cf.addInterface("dcpu/jit/CompiledBlock");
+        cf.addDefaultConstructor("java/lang/Object");
+        code = new Code();
+        for (int r = 0; r < REG_ADDRESS.length; r++) {
+            if ((usedRegs & (1 << r)) == 0) continue;
+            code.op(Code.ALOAD_2);
+            code.iconst(cf, REG_ADDRESS[r]);
+            code.op(Code.CALOAD);
+            code.istore(L_REGS + r);
+        }
+        int cycles = 0;
+        int n = 0;
+        pc = start;
+        while (pc < end) {
+            int info = Decoder.decode(mem[pc]);
+            cycles += 1 + Decoder.cycles(info);
+            n++;
+            emitInstruction(pc, info, n, cycles);
+            pc += Decoder.length(info);
+            if (code.size() > MAX_CODE_SIZE) {
+                // too much bytecode for JVM to compile it well - cut the block here
+                break;
+            }
+        }
+        if (!terminated || pc < end) {
+            end = pc;
+            emitExit(n, cycles, end & 0xffff);
+        }
+        cf.addMethod(ClassFileWriter.ACC_PUBLIC, "execute", EXECUTE_DESC, code, MAX_STACK, MAX_LOCALS);
+
+        char[] words = new char[end - start];
+        System.arraycopy(mem, start, words, 0, words.length);
+        return new Result(start, words, n, cf.toByteArray());
+    }
+
+    private static boolean isCompilable(int info) {
+        int type = Decoder.type(info);
+        if (type == Decoder.T_BASIC) return !BasicOp.OPS_IF.contains(Decoder.basicOp(info));
+        return type == Decoder.T_SPECIAL && Decoder.specialOp(info) == SpecialOp.JSR;
+    }
+
+    private static boolean isTerminator(int info) {
+        return Decoder.type(info) == Decoder.T_SPECIAL || Decoder.b(info) == A_PC;
+    }
+
+    private static int regsUsed(int info) {
+        if (Decoder.type(info) == Decoder.T_SPECIAL) return regsUsedByOperand(Decoder.a(info)) | (1 << R_SP);
+        int regs = regsUsedByOperand(Decoder.a(info)) | regsUsedByOperand(Decoder.b(info)) | (1 << R_EX);
+        BasicOp op = Decoder.basicOp(info);
+        if (op == BasicOp.STI || op == BasicOp.STD) regs |= (1 << A_I) | (1 << A_J);
+        return regs;
+    }
+
+    private static int regsUsedByOperand(int code) {
+        if (code <= 0x17) return 1 << (code & 7);
+        switch (code) {
+            case A_PUSHPOP:
+            case A_PEEK:
+            case A_PICK:
+            case A_SP:
+                return 1 << R_SP;
+            case A_EX:
+                return 1 << R_EX;
+            default:
+                return 0;
+        }
+    }
+
+    ////////////////
+    // Code generation
+
+    /**
+     * @param n      number of instruction in block, starting with 1
+     * @param cycles cycles spent by block up to and including this instruction
+     */
+    private void emitInstruction(int pc, int info, int n, int cycles) {
+        int next = pc + Decoder.length(info);
+        int nw = pc + 1;
+        Operand a = emitOperand(Decoder.a(info), true, L_AA, nw);
+        nw += Decoder.nextWords(Decoder.a(info));
+
+        if (Decoder.type(info) == Decoder.T_SPECIAL) {
+            // JSR
+            emitLoad(a, next);
+            code.istore(L_R);
+            code.iload(L_SP);
+            code.iconst(cf, -1);
+            code.op(Code.IADD);
+            code.op(Code.I2C);
+            code.istore(L_SP);
+            code.op(Code.ALOAD_2);
+            code.iload(L_SP);
+            code.iconst(cf, next & 0xffff);
+            code.op(Code.CASTORE);
+            emitExit(n, cycles, DYNAMIC_PC);
+            return;
+        }
+
+        BasicOp op = Decoder.basicOp(info);
+        Operand b = emitOperand(Decoder.b(info), false, L_BA, nw);
+        boolean setsEx = false;
+        switch (op) {
+            case SET:
+            case STI:
+            case STD:
+                emitLoad(a, next);
+                break;
+            case AND:
+            case BOR:
+            case XOR:
+                emitLoad(b, next);
+                emitLoad(a, next);
+                code.op(op == BasicOp.AND ? Code.IAND : op == BasicOp.BOR ? Code.IOR : Code.IXOR);
+                break;
+            case MOD:
+            case MDI:
+                emitLoad(b, next);
+                emitLoad(a, next);
+                emitInvokeRuntime(op, "(II)I");
+                break;
+            default:
+                emitLoad(b, next);
+                emitLoad(a, next);
+                code.iload(L_EX);
+                emitInvokeRuntime(op, "(III)I");
+                setsEx = true;
+                break;
+        }
+        code.istore(L_R);
+        if (op == BasicOp.STI || op == BasicOp.STD) {
+            emitIncrement(L_REGS + A_I, op == BasicOp.STI ? 1 : -1);
+            emitIncrement(L_REGS + A_J, op == BasicOp.STI ? 1 : -1);
+        }
+
+        boolean bIsEx = b.kind == K_REG && b.local == L_EX;
+        if (b.kind == K_REG) {
+            code.iload(L_R);
+            code.op(Code.I2C);
+            code.istore(b.local);
+        } else if (b.kind == K_RAM) {
+            code.op(Code.ALOAD_2);
+            code.iload(b.local);
+            code.iload(L_R);
+            code.op(Code.I2C);
+            code.op(Code.CASTORE);
+        }
+        if (setsEx && !bIsEx) {
+            code.iload(L_R);
+            code.iconst(cf, 16);
+            code.op(Code.IUSHR);
+            code.istore(L_EX);
+        }
+
+        if (b.kind == K_PC) {
+            emitExit(n, cycles, DYNAMIC_PC);
+        } else if (b.kind == K_RAM) {
+            // self-modification check: start <= ba < end
+            code.iload(b.local);
+            code.iconst(cf, start);
+            int below = code.branch(Code.IF_ICMPLT);
+            code.iload(b.local);
+            code.iconst(cf, end);
+            int above = code.branch(Code.IF_ICMPGE);
+            emitExit(n, cycles, next & 0xffff);
+            code.patch(below);
+            code.patch(above);
+        }
+    }
+
+    /**
+     * Evaluates operand address, with the same side effects on SP as interpreter
+     *
+     * @param tmp local to keep RAM address in
+     * @param nw  address of next word for this operand
+     */
+    private Operand emitOperand(int opcode, boolean isa, int tmp, int nw) {
+        if (opcode <= 0x07) {
+            return new Operand(K_REG, L_REGS + opcode, 0);
+        } else if (opcode <= 0x0f) {
+            code.iload(L_REGS + opcode - 8);
+            code.istore(tmp);
+            return new Operand(K_RAM, tmp, 0);
+        } else if (opcode <= 0x17) {
+            code.iload(L_REGS + opcode - 16);
+            code.iconst(cf, mem[nw]);
+            code.op(Code.IADD);
+            code.op(Code.I2C);
+            code.istore(tmp);
+            return new Operand(K_RAM, tmp, 0);
+        } else if (opcode >= 0x20) {
+            return new Operand(K_CONST, 0, (opcode - 0x21) & 0xffff);
+        }
+        switch (opcode) {
+            case A_PUSHPOP:
+                if (isa) {
+                    // POP
+                    code.iload(L_SP);
+                    code.op(Code.DUP);
+                    code.istore(tmp);
+                    code.iconst(cf, 1);
+                } else {
+                    // PUSH
+                    code.iload(L_SP);
+                    code.iconst(cf, -1);
+                }
+                code.op(Code.IADD);
+                code.op(Code.I2C);
+                code.istore(L_SP);
+                if (!isa) {
+                    code.iload(L_SP);
+                    code.istore(tmp);
+                }
+                return new Operand(K_RAM, tmp, 0);
+            case A_PEEK:
+                code.iload(L_SP);
+                code.istore(tmp);
+                return new Operand(K_RAM, tmp, 0);
+            case A_PICK:
+                code.iload(L_SP);
+                code.iconst(cf, mem[nw]);
+                code.op(Code.IADD);
+                code.op(Code.I2C);
+                code.istore(tmp);
+                return new Operand(K_RAM, tmp, 0);
+            case A_SP:
+                return new Operand(K_REG, L_SP, 0);
+            case A_PC:
+                return new Operand(K_PC, 0, 0);
+            case A_EX:
+                return new Operand(K_REG, L_EX, 0);
+            case A_M_NW:
+                code.iconst(cf, mem[nw]);
+                code.istore(tmp);
+                return new Operand(K_RAM, tmp, 0);
+            case A_NW:
+                if (isa) return new Operand(K_CONST, 0, mem[nw]);
+                // 'b' is the next word itself
+                code.iconst(cf, nw);
+                code.istore(tmp);
+                return new Operand(K_RAM, tmp, 0);
+            default:
+                throw new IllegalArgumentException("Unknown operand code: " + opcode);
+        }
+    }
+
+    /**
+     * Pushes operand value. PC reads as address of the next instruction.
+     */
+    private void emitLoad(Operand operand, int next) {
+        switch (operand.kind) {
+            case K_REG:
+                code.iload(operand.local);
+                break;
+            case K_RAM:
+                code.op(Code.ALOAD_2);
+                code.iload(operand.local);
+                code.op(Code.CALOAD);
+                break;
+            case K_CONST:
+                code.iconst(cf, operand.value);
+                break;
+            case K_PC:
+                code.iconst(cf, next & 0xffff);
+                break;
+        }
+    }
+
+    private void emitIncrement(int local, int delta) {
+        code.iload(local);
+        code.iconst(cf, delta);
+        code.op(Code.IADD);
+        code.op(Code.I2C);
+        code.istore(local);
+    }
+
+    private void emitInvokeRuntime(BasicOp op, String descriptor) {
+        code.op(Code.INVOKESTATIC);
+        code.u2(cf.methodRef(RUNTIME, op.name().toLowerCase(Locale.ROOT), descriptor));
+    }
+
+    /**
+     * Writes registers back, sets PC, adds cycles and returns number of executed instructions
+     *
+     * @param pc new PC, or DYNAMIC_PC to take it from result local
+     */
+    private void emitExit(int n, int cycles, int pc) {
+        for (int r = 0; r < REG_ADDRESS.length; r++) {
+            if ((usedRegs & (1 << r)) == 0) continue;
+            code.op(Code.ALOAD_2);
+            code.iconst(cf, REG_ADDRESS[r]);
+            code.iload(L_REGS + r);
+            code.op(Code.CASTORE);
+        }
+        code.op(Code.ALOAD_2);
+        code.iconst(cf, M_PC);
+        if (pc == DYNAMIC_PC) {
+            code.iload(L_R);
+            code.op(Code.I2C);
+        } else {
+            code.iconst(cf, pc);
+        }
+        code.op(Code.CASTORE);
+        code.op(Code.ALOAD_1);
+        code.op(Code.DUP);
+        int cyclesField = cf.fieldRef(DCPU, "cycles", "J");
+        code.op(Code.GETFIELD);
+        code.u2(cyclesField);
+        code.iconst(cf, cycles);
+        code.op(Code.I2L);
+        code.op(Code.LADD);
+        code.op(Code.PUTFIELD);
+        code.u2(cyclesField);
+        code.iconst(cf, n);
+        code.op(Code.IRETURN);
+    }
+}
@@ -0,0 +1,320 @@
+package dcpu.jit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal class file writer - just enough to emit final classes with a default constructor and a handful of
+ * methods without exception handlers.
+ * <p/>
+ * Classes are written as version 49 (Java 5), so the verifier infers types itself and no StackMapTable is needed.
+ */
+final class ClassFileWriter {
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private static final int CLASS_VERSION = 49;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndex = new HashMap<String, Integer>();
+    private int poolCount = 1;
+
+    private final int thisClass;
+    private final int superClass;
+    private final List<Integer> interfaces = new ArrayList<Integer>();
+    private final List<byte[]> methods = new ArrayList<byte[]>();
+
+    /**
+     * @param name      internal name of the class, like "dcpu/jit/Block"
+     * @param superName internal name of superclass
+     */
+    ClassFileWriter(String name, String superName) {
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+    }
+
+    void addInterface(String name) {
+        interfaces.add(classRef(name));
+    }
+
+    /**
+     * Adds public constructor which just calls super()
+     */
+    void addDefaultConstructor(String superName) {
+        Code code = new Code();
+        code.op(Code.ALOAD_0);
+        code.op(Code.INVOKESPECIAL);
+        code.u2(methodRef(superName, "<init>", "()V"));
+        code.op(Code.RETURN);
+        addMethod(ACC_PUBLIC, "<init>", "()V", code, 1, 1);
+    }
+
+    void addMethod(int access, String name, String descriptor, Code code, int maxStack, int maxLocals) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            byte[] body = code.toByteArray();
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(1); // attributes: Code
+            out.writeShort(utf8("Code"));
+            out.writeInt(2 + 2 + 4 + body.length + 2 + 2);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(body.length);
+            out.write(body);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // attributes
+            methods.add(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    byte[] toByteArray() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(CLASS_VERSION);
+            out.writeShort(poolCount);
+            pool.flush();
+            poolBytes.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.size());
+            for (int itf : interfaces) out.writeShort(itf);
+            out.writeShort(0); // fields
+            out.writeShort(methods.size());
+            for (byte[] method : methods) out.write(method);
+            out.writeShort(0); // attributes
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    ////////////////
+    // Constant pool
+
+    int utf8(String s) {
+        String key = "U" + s;
+        Integer index = poolIndex.get(key);
+        if (index != null) return index;
+        try {
+            pool.writeByte(CONSTANT_UTF8);
+            pool.writeUTF(s);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return newEntry(key);
+    }
+
+    int integer(int value) {
+        String key = "I" + value;
+        Integer index = poolIndex.get(key);
+        if (index != null) return index;
+        try {
+            pool.writeByte(CONSTANT_INTEGER);
+            pool.writeInt(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return newEntry(key);
+    }
+
+    int classRef(String name) {
+        String key = "C" + name;
+        Integer index = poolIndex.get(key);
+        if (index != null) return index;
+        int nameIndex = utf8(name);
+        return entry2(key, CONSTANT_CLASS, nameIndex);
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_FIELDREF, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_METHODREF, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        String key = "M" + tag + owner + "." + name + descriptor;
+        Integer index = poolIndex.get(key);
+        if (index != null) return index;
+        int classIndex = classRef(owner);
+        int natIndex = nameAndType(name, descriptor);
+        try {
+            pool.writeByte(tag);
+            pool.writeShort(classIndex);
+            pool.writeShort(natIndex);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return newEntry(key);
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        String key = "N" + name + descriptor;
+        Integer index = poolIndex.get(key);
+        if (index != null) return index;
+        int nameIndex = utf8(name);
+        int descIndex = utf8(descriptor);
+        try {
+            pool.writeByte(CONSTANT_NAME_AND_TYPE);
+            pool.writeShort(nameIndex);
+            pool.writeShort(descIndex);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return newEntry(key);
+    }
+
+    private int entry2(String key, int tag, int ref) {
+        try {
+            pool.writeByte(tag);
+            pool.writeShort(ref);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return newEntry(key);
+    }
+
+    private int newEntry(String key) {
+        if (poolCount == 0xffff) throw new IllegalStateException("Constant pool overflow");
+        int index = poolCount++;
+        poolIndex.put(key, index);
+        return index;
+    }
+
+    /**
+     * Bytecode buffer of a single method
+     */
+    static final class Code {
+        static final int ICONST_0 = 0x03;
+        static final int BIPUSH = 0x10;
+        static final int SIPUSH = 0x11;
+        static final int LDC_W = 0x13;
+        static final int ILOAD = 0x15;
+        static final int ALOAD_0 = 0x2a;
+        static final int ALOAD_1 = 0x2b;
+        static final int ALOAD_2 = 0x2c;
+        static final int CALOAD = 0x34;
+        static final int ISTORE = 0x36;
+        static final int CASTORE = 0x55;
+        static final int DUP = 0x59;
+        static final int IADD = 0x60;
+        static final int LADD = 0x61;
+        static final int IUSHR = 0x7c;
+        static final int IAND = 0x7e;
+        static final int IOR = 0x80;
+        static final int IXOR = 0x82;
+        static final int I2L = 0x85;
+        static final int I2C = 0x92;
+        static final int IF_ICMPLT = 0xa1;
+        static final int IF_ICMPGE = 0xa2;
+        static final int IRETURN = 0xac;
+        static final int RETURN = 0xb1;
+        static final int GETFIELD = 0xb4;
+        static final int PUTFIELD = 0xb5;
+        static final int INVOKESPECIAL = 0xb7;
+        static final int INVOKESTATIC = 0xb8;
+
+        private byte[] buf = new byte[256];
+        private int size;
+
+        void op(int opcode) {
+            u1(opcode);
+        }
+
+        void u1(int b) {
+            if (size == buf.length) {
+                byte[] nbuf = new byte[buf.length * 2];
+                System.arraycopy(buf, 0, nbuf, 0, size);
+                buf = nbuf;
+            }
+            buf[size++] = (byte) b;
+        }
+
+        void u2(int v) {
+            u1(v >> 8);
+            u1(v);
+        }
+
+        void iload(int local) {
+            u1(ILOAD);
+            u1(local);
+        }
+
+        void istore(int local) {
+            u1(ISTORE);
+            u1(local);
+        }
+
+        /**
+         * Pushes int constant, using constant pool of cf when it doesn't fit into sipush
+         */
+        void iconst(ClassFileWriter cf, int value) {
+            if (value >= -1 && value <= 5) {
+                u1(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                u1(BIPUSH);
+                u1(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                u1(SIPUSH);
+                u2(value);
+            } else {
+                u1(LDC_W);
+                u2(cf.integer(value));
+            }
+        }
+
+        /**
+         * Emits forward branch and returns its position for {@link #patch}
+         */
+        int branch(int opcode) {
+            int at = size;
+            u1(opcode);
+            u2(0);
+            return at;
+        }
+
+        /**
+         * Makes branch emitted at position at jump to current position
+         */
+        void patch(int at) {
+            int offset = size - at;
+            buf[at + 1] = (byte) (offset >> 8);
+            buf[at + 2] = (byte) offset;
+        }
+
+        int size() {
+            return size;
+        }
+
+        byte[] toByteArray() {
+            byte[] result = new byte[size];
+            System.arraycopy(buf, 0, result, 0, size);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package dcpu.jit;
+
+import dcpu.Dcpu;
+
+/**
+ * Basic block of DCPU code translated to JVM bytecode.
+ * <p/>
+ * Must be public, since implementations are defined by separate class loader.
+ */
+public interface CompiledBlock {
+
+    /**
+     * Executes block starting at its first instruction, updating registers, PC and cycle counter of cpu.
+     * Execution stops early after an instruction which wrote into the block itself.
+     *
+     * @param mem cpu.mem
+     * @return number of executed instructions
+     */
+    int execute(Dcpu cpu, char[] mem);
+}
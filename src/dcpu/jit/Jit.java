@@ -0,0 +1,177 @@
+package dcpu.jit;
+
+import dcpu.Dcpu;
+
+import java.util.Arrays;
+
+import static dcpu.Dcpu.M_PC;
+import static dcpu.Dcpu.RAM_SIZE;
+
+/**
+ * Basic block JIT for {@link Dcpu}.
+ * <p/>
+ * Counts executions of every address and, once an address becomes hot, translates the basic block starting there
+ * into JVM bytecode (see {@link BlockCompiler}), so HotSpot can compile it further. Every block remembers the code
+ * words it was compiled from and checks them on entry, so code rewritten by any means is never executed stale.
+ * <p/>
+ * Everything which can't be compiled (or failed to) is left to the interpreter: {@link #execute} returns 0 then.
+ */
+public final class Jit {
+
+    public static final int DEFAULT_THRESHOLD = 32;
+    /**
+     * Classes per loader - when exceeded, all blocks are dropped with their loader, so stale classes get unloaded
+     */
+    private static final int MAX_CLASSES_PER_LOADER = 4096;
+
+    private static final class Block {
+        final int start;
+        final char[] words;
+        final int instructions;
+        final CompiledBlock code; // null if block can't be compiled
+
+        Block(int start, char[] words, int instructions, CompiledBlock code) {
+            this.start = start;
+            this.words = words;
+            this.instructions = instructions;
+            this.code = code;
+        }
+
+        boolean matches(char[] mem) {
+            for (int i = 0; i < words.length; i++) {
+                if (mem[start + i] != words[i]) return false;
+            }
+            return true;
+        }
+    }
+
+    private static final class BlockLoader extends ClassLoader {
+        BlockLoader() {
+            super(Jit.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    private final Dcpu cpu;
+    private final char[] mem;
+    private final Block[] blocks = new Block[RAM_SIZE];
+    private final int[] counters = new int[RAM_SIZE];
+    private int threshold = DEFAULT_THRESHOLD;
+    private BlockLoader loader = new BlockLoader();
+    private int loadedClasses;
+    private int classSeq;
+
+    private long compiledBlocks;
+    private long failedBlocks;
+    private long invalidatedBlocks;
+    private long blockRuns;
+    private long jittedInstructions;
+
+    public Jit(Dcpu cpu) {
+        this.cpu = cpu;
+        this.mem = cpu.mem;
+    }
+
+    /**
+     * Executes compiled block at PC, if there is one not longer than maxInstructions.
+     * <p/>
+     * Caller is responsible for everything happening between instructions - interrupts, step listeners, devices.
+     *
+     * @return number of executed instructions, 0 if instruction at PC should be interpreted
+     */
+    public int execute(int maxInstructions) {
+        int pc = mem[M_PC];
+        Block block = blocks[pc];
+        if (block == null) {
+            if (++counters[pc] < threshold) return 0;
+            counters[pc] = 0;
+            block = blocks[pc] = compile(pc);
+        } else if (!block.matches(mem)) {
+            blocks[pc] = null;
+            invalidatedBlocks++;
+            return 0;
+        }
+        if (block.code == null || block.instructions > maxInstructions) return 0;
+        int n = block.code.execute(cpu, mem);
+        blockRuns++;
+        jittedInstructions += n;
+        return n;
+    }
+
+    private Block compile(int pc) {
+        if (loadedClasses >= MAX_CLASSES_PER_LOADER) flush();
+        String className = String.format("dcpu/jit/gen/Block%04x_%d", pc, classSeq++);
+        BlockCompiler.Result result = BlockCompiler.compile(className, mem, pc);
+        if (result == null) {
+            // remember just the instruction itself, in case it will be rewritten to something compilable
+            return new Block(pc, new char[]{mem[pc]}, 1, null);
+        }
+        try {
+            Class<?> cls = loader.define(className.replace('/', '.'), result.classBytes);
+            loadedClasses++;
+            CompiledBlock code = (CompiledBlock) cls.getDeclaredConstructor().newInstance();
+            compiledBlocks++;
+            return new Block(pc, result.words, result.instructions, code);
+        } catch (LinkageError e) {
+            failedBlocks++;
+        } catch (ReflectiveOperationException e) {
+            failedBlocks++;
+        }
+        return new Block(pc, result.words, result.instructions, null);
+    }
+
+    /**
+     * Drops all compiled blocks and hotness counters
+     */
+    public void flush() {
+        Arrays.fill(blocks, null);
+        Arrays.fill(counters, 0);
+        loader = new BlockLoader();
+        loadedClasses = 0;
+    }
+
+    /**
+     * Sets number of executions after which address is compiled
+     */
+    public void setThreshold(int threshold) {
+        if (threshold < 1) throw new IllegalArgumentException("Threshold must be positive");
+        this.threshold = threshold;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public void resetStats() {
+        compiledBlocks = failedBlocks = invalidatedBlocks = blockRuns = jittedInstructions = 0;
+    }
+
+    public long getCompiledBlocks() {
+        return compiledBlocks;
+    }
+
+    public long getFailedBlocks() {
+        return failedBlocks;
+    }
+
+    public long getInvalidatedBlocks() {
+        return invalidatedBlocks;
+    }
+
+    public long getBlockRuns() {
+        return blockRuns;
+    }
+
+    public long getJittedInstructions() {
+        return jittedInstructions;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Jit compiled=%d failed=%d invalidated=%d runs=%d instructions=%d",
+                compiledBlocks, failedBlocks, invalidatedBlocks, blockRuns, jittedInstructions);
+    }
+}
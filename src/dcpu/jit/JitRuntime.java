@@ -0,0 +1,83 @@
+package dcpu.jit;
+
+/**
+ * Arithmetic helpers called from compiled blocks. They mirror basic operations of {@link dcpu.Dcpu} interpreter,
+ * including its treatment of operands as unsigned ints in 0..0xffff.
+ * <p/>
+ * Operations which set EX return it packed with the result: (ex << 16) | (result & 0xffff).
+ * <p/>
+ * Must be public, since compiled blocks are defined by separate class loader.
+ */
+public final class JitRuntime {
+
+    private JitRuntime() {
+    }
+
+    private static int pack(int rslt, int exreg) {
+        return (exreg << 16) | (rslt & 0xffff);
+    }
+
+    public static int add(int bv, int av, int exreg) {
+        int rslt = bv + av;
+        return pack(rslt, (rslt > 0xffff) ? 1 : 0);
+    }
+
+    public static int sub(int bv, int av, int exreg) {
+        int rslt = bv - av;
+        return pack(rslt, (rslt < 0) ? 0xffff : 0);
+    }
+
+    public static int mul(int bv, int av, int exreg) {
+        int rslt = bv * av;
+        return pack(rslt, rslt >> 16);
+    }
+
+    public static int mli(int bv, int av, int exreg) {
+        int rslt = (short) bv * (short) av;
+        return pack(rslt, rslt >> 16);
+    }
+
+    public static int div(int bv, int av, int exreg) {
+        if (av == 0) return 0;
+        return pack(bv / av, (bv << 16) / av);
+    }
+
+    public static int dvi(int bv, int av, int exreg) {
+        int bsv = (short) bv;
+        int asv = (short) av;
+        if (asv == 0) return 0;
+        return pack(bsv / asv, (bsv << 16) / asv);
+    }
+
+    public static int mod(int bv, int av) {
+        if (av == 0) return 0;
+        return bv % av;
+    }
+
+    public static int mdi(int bv, int av) {
+        if (av == 0) return 0;
+        return (short) bv % (short) av;
+    }
+
+    public static int shl(int bv, int av, int exreg) {
+        return pack(bv << av, (bv << av) >> 16);
+    }
+
+    public static int shr(int bv, int av, int exreg) {
+        return pack(bv >>> av, (bv << 16) >> av);
+    }
+
+    public static int asr(int bv, int av, int exreg) {
+        return pack(bv >> av, (bv << 16) >>> av);
+    }
+
+    public static int adx(int bv, int av, int exreg) {
+        int rslt = bv + av + exreg;
+        return pack(rslt, (rslt > 0xffff) ? 1 : 0);
+    }
+
+    public static int sbx(int bv, int av, int exreg) {
+        int rslt = bv - av + exreg;
+        return pack(rslt, (rslt < 0) ? 0xffff : 0);
+    }
+}
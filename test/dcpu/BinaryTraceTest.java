@@ -0,0 +1,74 @@
+package dcpu;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryTraceTest {
+
+    private static final String PROGRAM = "" +
+            "       SET I, 0\n" +
+            ":loop  ADD I, 1\n" +
+            "       SET [0x1000+I], I\n" +
+            "       JSR func\n" +
+            "       IFN I, 2000\n" +
+            "           SET PC, loop\n" +
+            "       HCF 0\n" +
+            ":func  MUL [0x1000+I], 0x1234\n" +
+            "       SET PC, POP\n";
+
+    @Test
+    public void testDecodeAsTracer() throws IOException {
+        Dcpu cpu = new Dcpu();
+        cpu.upload(new Assembler().assemble(PROGRAM));
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        Tracer tracer = new Tracer(new PrintStream(text));
+        tracer.printRegisters(true);
+        tracer.install(cpu);
+
+        File file = File.createTempFile("trace", ".bin");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        // small ring, so CPU has to wait for writer sometimes
+        BinaryTrace trace = new BinaryTrace(out.getChannel(), 16, 2);
+        trace.install(cpu);
+        cpu.run();
+        trace.uninstall();
+        out.close();
+        assertEquals(1 + 2000 * 7 - 1 + 1, trace.getRecords()); // skipped SET PC is not traced
+        assertEquals(12 + BinaryTrace.RECORD_SIZE * trace.getRecords(), file.length());
+
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        FileInputStream in = new FileInputStream(file);
+        BinaryTrace.decode(in.getChannel(), new PrintStream(decoded), true);
+        in.close();
+        assertEquals(text.toString(), decoded.toString());
+        assertTrue(decoded.toString().startsWith("0000: SET I, 0\n  R:  A=0000"));
+
+        decoded.reset();
+        in = new FileInputStream(file);
+        BinaryTrace.decode(in.getChannel(), new PrintStream(decoded), false);
+        in.close();
+        assertEquals(trace.getRecords(), decoded.toString().split("\n").length);
+    }
+
+    @Test(expected = IOException.class)
+    public void testBadFile() throws IOException {
+        File file = File.createTempFile("trace", ".bin");
+        file.deleteOnExit();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            BinaryTrace.decode(in.getChannel(), new PrintStream(new ByteArrayOutputStream()), false);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package dcpu;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CharListenerListTest {
+
+    @Test
+    public void testDispatch() {
+        final List<String> events = new ArrayList<String>();
+        CharListenerList list = new CharListenerList();
+        assertTrue(list.isEmpty());
+        CharListener primitive = new CharListener() {
+            @Override
+            public void preExecute(char pc) {
+                events.add("pre " + (int) pc);
+            }
+
+            @Override
+            public void postExecute(char pc) {
+                events.add("post " + (int) pc);
+            }
+        };
+        Listener<Character> boxed = new PostListener<Character>() {
+            @Override
+            public void postExecute(Character pc) {
+                events.add("boxed " + (int) pc);
+            }
+        };
+        list.addListener(primitive);
+        list.addListener(boxed);
+        list.preExecute((char) 1);
+        list.postExecute((char) 2);
+        assertEquals("[pre 1, post 2, boxed 2]", events.toString());
+
+        events.clear();
+        list.removeListener(boxed);
+        list.postExecute((char) 3);
+        list.removeListener(primitive);
+        list.postExecute((char) 4);
+        assertEquals("[post 3]", events.toString());
+        assertTrue(list.isEmpty());
+    }
+
+    @Test
+    public void testRemoveByIdentity() {
+        final List<String> events = new ArrayList<String>();
+        class Named extends PostListener<Character> {
+            @Override
+            public void postExecute(Character pc) {
+                events.add("post " + (int) pc);
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                return o instanceof Named;
+            }
+
+            @Override
+            public int hashCode() {
+                return 0;
+            }
+        }
+        Named added = new Named();
+        ListenerList<Character> boxed = new ListenerList<Character>();
+        CharListenerList primitive = new CharListenerList();
+        boxed.addListener(added);
+        primitive.addListener(added);
+        // equal but distinct listener is not the one added
+        boxed.removeListener(new Named());
+        primitive.removeListener(new Named());
+        boxed.postExecute((char) 1);
+        primitive.postExecute((char) 2);
+        assertEquals("[post 1, post 2]", events.toString());
+        boxed.removeListener(added);
+        primitive.removeListener(added);
+        assertTrue(boxed.isEmpty());
+        assertTrue(primitive.isEmpty());
+    }
+
+    @Test
+    public void testModifyWhileDispatching() {
+        final CharListenerList list = new CharListenerList();
+        final int[] calls = {0, 0};
+        final CharListener second = new PreListenerChar() {
+            @Override
+            public void preExecute(char pc) {
+                calls[1]++;
+            }
+        };
+        list.addListener(new PreListenerChar() {
+            @Override
+            public void preExecute(char pc) {
+                calls[0]++;
+                // changes take effect from the next event
+                list.removeListener(this);
+                list.addListener(second);
+            }
+        });
+        list.preExecute((char) 0);
+        assertEquals(1, calls[0]);
+        assertEquals(0, calls[1]);
+        list.preExecute((char) 0);
+        assertEquals(1, calls[0]);
+        assertEquals(1, calls[1]);
+    }
+
+    @Test
+    public void testCpuListeners() {
+        Dcpu cpu = new Dcpu();
+        cpu.upload(new Assembler().assemble(":loop ADD A, 1\nIFN A, 3\nSET PC, loop\nSET B, 1\n"));
+        final StringBuilder pcs = new StringBuilder();
+        cpu.stepListener.addListener(new PreListenerChar() {
+            @Override
+            public void preExecute(char pc) {
+                pcs.append((int) pc);
+            }
+        });
+        cpu.run(8);
+        assertEquals("01201201", pcs.toString()); // skipped SET PC, loop is not reported
+    }
+
+    private abstract static class PreListenerChar implements CharListener {
+        @Override
+        public void postExecute(char pc) {
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package dcpu;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.SortedMap;
+
+import static org.junit.Assert.*;
+
+public class CoverageTest {
+
+    private static final String PROGRAM = "" +
+            "       SET I, 0\n" +
+            ":loop  ADD [buf+I], 1\n" +
+            "       SET J, [buf+I]\n" +
+            "       ADD I, 1\n" +
+            "       IFN I, 3\n" +
+            "           SET PC, loop\n" +
+            "       JSR sub\n" +
+            "       HCF 0\n" +
+            ":never SET A, 1\n" +
+            ":sub   SET PC, POP\n" +
+            ":buf   DAT 0, 0, 0, 0\n";
+
+    @Test
+    public void testCoverage() {
+        Assembler assembler = new Assembler();
+        assembler.genMap = true;
+        Dcpu cpu = new Dcpu();
+        cpu.upload(assembler.assemble(PROGRAM));
+        cpu.setJitEnabled(true); // must be bypassed while collecting
+        Coverage coverage = new Coverage();
+        coverage.install(cpu);
+        while (!cpu.halt) cpu.step(false);
+
+        AsmMap map = assembler.asmmap;
+        assertEquals(3, coverage.getExecutions(map.symbol("loop")));
+        assertEquals(0, coverage.getExecutions(map.symbol("never")));
+        int buf = map.symbol("buf");
+        for (int i = 0; i < 3; i++) {
+            assertTrue(coverage.isRead(buf + i));
+            assertTrue(coverage.isWritten(buf + i));
+        }
+        assertFalse(coverage.isRead(buf + 3));
+        assertFalse(coverage.isWritten(map.symbol("loop")));
+        assertTrue(coverage.isWritten(0xffff)); // JSR return address
+        assertTrue(coverage.isRead(0xffff)); // SET PC, POP
+
+        SortedMap<Integer, Long> lines = coverage.lines(map);
+        assertEquals(10, lines.size()); // DAT line is ignored
+        assertEquals(Long.valueOf(1), lines.get(1));
+        assertEquals(Long.valueOf(3), lines.get(2));
+        assertEquals(Long.valueOf(2), lines.get(6)); // skipped once
+        assertEquals(Long.valueOf(0), lines.get(9));
+        assertNull(lines.get(11));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        coverage.writeLcov(new PrintStream(bytes), map, "/tmp/test.asm", "unit");
+        String lcov = bytes.toString().replace("\r", "");
+        assertTrue(lcov, lcov.startsWith("TN:unit\nSF:/tmp/test.asm\nDA:1,1\nDA:2,3\n"));
+        assertTrue(lcov, lcov.endsWith("DA:9,0\nDA:10,1\nLF:10\nLH:9\nend_of_record\n"));
+
+        coverage.reset();
+        assertEquals(0, coverage.getExecutions(map.symbol("loop")));
+        assertFalse(coverage.isRead(buf));
+        coverage.uninstall();
+        assertNull(cpu.getCoverage());
+    }
+}
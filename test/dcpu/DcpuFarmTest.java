@@ -0,0 +1,122 @@
+package dcpu;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static dcpu.Dcpu.Reg;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DcpuFarmTest {
+
+    private static final String SUM_PROGRAM = "" +
+            ":loop  ADD A, I\n" +
+            "       ADD I, 1\n" +
+            "       IFN I, J\n" +
+            "       SET PC, loop\n" +
+            "       HCF 0\n";
+
+    private DcpuFarm farm;
+
+    @Before
+    public void setUp() {
+        farm = new DcpuFarm(4);
+        farm.setQuantum(100);
+    }
+
+    @After
+    public void tearDown() {
+        farm.shutdown();
+    }
+
+    @Test
+    public void testManyMachines() throws InterruptedException {
+        char[] bin = new Assembler().assemble(SUM_PROGRAM);
+        final AtomicInteger callbacks = new AtomicInteger();
+        DcpuFarm.CompletionListener listener = new DcpuFarm.CompletionListener() {
+            @Override
+            public void completed(DcpuFarm.Machine machine) {
+                callbacks.incrementAndGet();
+            }
+        };
+        List<DcpuFarm.Machine> machines = new ArrayList<DcpuFarm.Machine>();
+        for (int i = 0; i < 1000; i++) {
+            Dcpu cpu = new Dcpu();
+            cpu.upload(bin);
+            cpu.setreg(Reg.J, (char) (i + 1));
+            machines.add(farm.submit(cpu, DcpuFarm.UNLIMITED, listener));
+        }
+        assertTrue(farm.awaitCompletion(30, TimeUnit.SECONDS));
+        long cycles = 0;
+        for (int i = 0; i < machines.size(); i++) {
+            DcpuFarm.Machine machine = machines.get(i);
+            assertEquals(DcpuFarm.Status.HALTED, machine.getStatus());
+            assertEquals((char) (i * (i + 1) / 2), machine.getCpu().getreg(Reg.A));
+            cycles += machine.getUsedCycles();
+        }
+        assertEquals(1000, callbacks.get());
+        assertEquals(1000, farm.getCompleted());
+        assertEquals(0, farm.getRunning());
+        assertEquals(cycles, farm.getTotalCycles());
+        assertTrue(farm.getTotalSlices() > 1000); // long-running machines were sliced
+    }
+
+    @Test
+    public void testBudgetAndCancel() throws InterruptedException {
+        char[] bin = new Assembler().assemble(":loop SET PC, loop\n");
+        Dcpu limited = new Dcpu();
+        limited.upload(bin);
+        DcpuFarm.Machine machine = farm.submit(limited, 1000, null);
+        Dcpu endless = new Dcpu();
+        endless.upload(bin);
+        DcpuFarm.Machine cancelled = farm.submit(endless);
+        assertFalse(farm.awaitCompletion(100, TimeUnit.MILLISECONDS));
+        cancelled.cancel();
+        assertTrue(farm.awaitCompletion(10, TimeUnit.SECONDS));
+        assertEquals(DcpuFarm.Status.BUDGET_EXHAUSTED, machine.getStatus());
+        assertTrue(machine.getUsedCycles() >= 1000 && machine.getUsedCycles() < 1100);
+        assertEquals(DcpuFarm.Status.CANCELLED, cancelled.getStatus());
+    }
+
+    @Test
+    public void testErrorFailsMachine() throws InterruptedException {
+        Dcpu broken = new Dcpu();
+        broken.attach(new Dcpu.Device() {
+            @Override
+            public int getHardwareId() {
+                return 0;
+            }
+
+            @Override
+            public char getHardwareVersion() {
+                return 0;
+            }
+
+            @Override
+            public int getManufacturerId() {
+                return 0;
+            }
+
+            @Override
+            public void interrupt() {
+                throw new AssertionError("device is broken");
+            }
+        });
+        broken.upload(new Assembler().assemble("HWI 0\nHCF 0\n"));
+        DcpuFarm.Machine machine = farm.submit(broken);
+        Dcpu healthy = new Dcpu();
+        healthy.upload(new Assembler().assemble("HCF 0\n"));
+        DcpuFarm.Machine other = farm.submit(healthy);
+        assertTrue(farm.awaitCompletion(10, TimeUnit.SECONDS));
+        assertEquals(DcpuFarm.Status.FAILED, machine.getStatus());
+        assertTrue(machine.getError() instanceof AssertionError);
+        assertEquals(DcpuFarm.Status.HALTED, other.getStatus());
+    }
+}
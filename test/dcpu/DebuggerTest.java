@@ -3,6 +3,8 @@ package dcpu;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.LinkedList;
@@ -10,7 +12,11 @@ import java.util.List;
 
 import static dcpu.Debugger.*;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class DebuggerTest {
     private Dcpu cpu;
@@ -157,4 +163,152 @@ public class DebuggerTest {
         assertTrue(modregs.get(DREG_SP));
         assertTrue(modregs.get(DREG_PC));
     }
+
+    @Test
+    public void testBreakpointsWithoutListeners() {
+        cpu.upload(assembler.assemble(
+                ":loop  ADD A, 1\n" +
+                        "       IFN A, 1000\n" +
+                        "           SET PC, loop\n" +
+                        ":brk   SET B, A\n" +
+                        "       DAT 0\n"));
+        cpu.setJitEnabled(true);
+        assertTrue(cpu.stepListener.isEmpty());
+        assertFalse(cpu.isObserved());
+
+        char brk = assembler.asmmap.symbol("brk");
+        debugger.setBreakpoint(brk, true);
+        debugger.setBreakpoint(brk, true);
+        assertEquals(1, debugger.getBreakpoints().size());
+        assertTrue(debugger.isBreakpoint(brk));
+        assertTrue(cpu.stepListener.isEmpty());
+        assertTrue(cpu.isObserved());
+        debugger.resetSession();
+        debugger.run();
+        assertEquals(brk + 1, cpu.pc()); // breakpoint instruction is executed before halting
+        assertEquals(1000, cpu.getreg(Dcpu.Reg.B));
+
+        // snapshot may be iterated while removing breakpoints
+        for (Character addr : debugger.getBreakpoints()) {
+            debugger.setBreakpoint(addr, false);
+        }
+        assertTrue(debugger.getBreakpoints().isEmpty());
+        assertFalse(cpu.isObserved());
+
+        debugger.modregsOnRun = true;
+        debugger.run();
+        assertFalse(cpu.stepListener.isEmpty());
+        debugger.modregsOnRun = false;
+        debugger.step();
+        assertTrue(cpu.stepListener.isEmpty());
+    }
+
+    @Test
+    public void testConditionalBreakpoints() {
+        cpu.upload(assembler.assemble(
+                "       SET I, 0x1000\n" +
+                        ":loop  ADD [I+3], 1\n" +
+                        "       ADD A, 1\n" +
+                        "       IFN A, 500\n" +
+                        "           SET PC, loop\n" +
+                        ":end   SET B, A\n" +
+                        "       DAT 0\n"));
+        AsmMap map = assembler.asmmap;
+        Breakpoint loop = debugger.addBreakpoint(map.symbol("loop"));
+        loop.configure("if [I+3] >= 0x20 ignore 5", map);
+        assertEquals("if [I+3] >= 0x20 ignore 5", loop.options());
+        Breakpoint end = debugger.addBreakpoint(map.symbol("end"));
+        end.configure("log end: A={A:d} [0x1003]={[0x1003]}", map);
+        assertTrue(end.isTracepoint());
+        assertEquals(2, debugger.getBreakpoints().size());
+        ByteArrayOutputStream trace = new ByteArrayOutputStream();
+        debugger.traceOut = new PrintStream(trace);
+
+        debugger.resetSession();
+        debugger.run();
+        // condition is true from the 33rd pass, and 5 more hits are ignored
+        assertEquals(6, loop.getHits());
+        assertEquals(38, cpu.mem[0x1003]);
+        assertEquals(37, cpu.getreg(Dcpu.Reg.A));
+
+        loop.configure("if cycles < 0", map);
+        debugger.run();
+        assertEquals(500, cpu.getreg(Dcpu.Reg.B));
+        assertEquals(6, loop.getHits());
+        assertEquals(1, end.getHits());
+        assertEquals("end: A=500 [0x1003]=0x1f4", trace.toString().trim());
+
+        try {
+            loop.configure("if nolabel == 1 ignore 2", map);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("if cycles < 0", loop.options()); // not changed
+        }
+        debugger.setBreakpoint(map.symbol("end"), false);
+        assertNull(debugger.getBreakpoint(map.symbol("end")));
+        assertSame(loop, debugger.addBreakpoint(map.symbol("loop")));
+    }
+
+    @Test
+    public void testWatchpoints() {
+        cpu.upload(assembler.assemble(
+                "       SET I, 0\n" +
+                        ":loop  SET [buf+I], I\n" +
+                        "       ADD I, 1\n" +
+                        "       IFN I, 8\n" +
+                        "           SET PC, loop\n" +
+                        "       SET J, 3\n" +
+                        ":read  SET A, [buf+J]\n" +
+                        ":call  JSR func\n" +
+                        ":ret   DAT 0\n" +
+                        ":func  SET PC, POP\n" +
+                        ":buf   DAT 0, 0, 0, 0, 0, 0, 0, 0\n"));
+        AsmMap map = assembler.asmmap;
+        char buf = map.symbol("buf");
+        final List<Character> hits = new ArrayList<Character>();
+        debugger.breakpointListener = new PreListener<Character>() {
+            @Override
+            public void preExecute(Character pc) {
+                hits.add(pc);
+            }
+        };
+        cpu.setJitEnabled(true);
+        Watchpoint change = debugger.addWatchpoint(buf, (char) (buf + 7), Watchpoint.Kind.CHANGE);
+        assertTrue(cpu.isObserved());
+        debugger.resetSession();
+        debugger.run();
+        // buf[0] = 0 doesn't change anything
+        assertSame(change, debugger.getLastWatchpoint());
+        assertEquals(1, change.getHits());
+        assertEquals(map.symbol("loop"), (Character) change.getPc());
+        assertEquals(buf + 1, change.getAddress());
+        assertEquals(0, change.getOldValue());
+        assertEquals(1, change.getNewValue());
+        assertEquals(1, cpu.mem[buf + 1]); // instruction is completed before halting
+        assertEquals(1, hits.size());
+
+        debugger.removeWatchpoint(change);
+        assertFalse(cpu.isObserved());
+        Watchpoint read = debugger.addWatchpoint((char) (buf + 3), (char) (buf + 3), Watchpoint.Kind.READ);
+        Watchpoint stack = debugger.addWatchpoint((char) 0xff00, (char) 0xffff, Watchpoint.Kind.WRITE);
+        assertEquals(2, debugger.getWatchpoints().size());
+        debugger.run();
+        assertSame(read, debugger.getLastWatchpoint());
+        assertEquals(map.symbol("read"), (Character) read.getPc());
+        assertEquals(3, read.getNewValue());
+        debugger.run();
+        assertSame(stack, debugger.getLastWatchpoint());
+        assertEquals(map.symbol("call"), (Character) stack.getPc());
+        assertEquals(0xffff, stack.getAddress());
+        assertEquals(map.symbol("ret"), (Character) stack.getNewValue());
+        assertEquals(String.format("0x%04x: write [0xffff] 0x0000 -> 0x%04x", (int) stack.getPc(),
+                (int) stack.getNewValue()), stack.describeHit());
+        assertEquals(3, hits.size());
+
+        debugger.breakpointsEnabled = false;
+        debugger.run();
+        assertEquals(3, hits.size());
+        debugger.detach();
+        assertFalse(cpu.isObserved());
+    }
 }
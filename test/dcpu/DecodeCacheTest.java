@@ -0,0 +1,79 @@
+package dcpu;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static dcpu.Dcpu.Reg;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DecodeCacheTest {
+    private Assembler assembler;
+
+    @Before
+    public void setUp() {
+        assembler = new Assembler();
+    }
+
+    @Test
+    public void testLoopHits() {
+        Dcpu cpu = new Dcpu();
+        cpu.setDecodeCacheEnabled(true);
+        cpu.upload(assembler.assemble("" +
+                "       SET I, 0\n" +
+                ":loop  ADD I, 1\n" +
+                "       IFN I, 100\n" +
+                "       SET PC, loop\n" +
+                "       DAT 0\n"));
+        cpu.run();
+        assertEquals(100, cpu.getreg(Reg.I));
+        DecodeCache cache = cpu.getDecodeCache();
+        assertEquals(5, cache.getMisses());
+        assertEquals(0, cache.getInvalidations());
+        assertTrue(cache.getHitRate() > 0.95);
+    }
+
+    @Test
+    public void testSelfModifyingCode() {
+        // rewrites its own instruction: ADD A, 1 becomes ADD A, 2 after first pass
+        String src = "" +
+                "       SET I, 0\n" +
+                "       SET X, [newop]\n" +
+                ":patch ADD A, 1\n" +
+                "       SET [patch], X\n" +
+                "       ADD I, 1\n" +
+                "       IFN I, 3\n" +
+                "       SET PC, patch\n" +
+                "       DAT 0\n" +
+                ":newop ADD A, 2\n";
+        Dcpu plain = new Dcpu();
+        plain.upload(assembler.assemble(src));
+        plain.run();
+
+        Dcpu cached = new Dcpu();
+        cached.setDecodeCacheEnabled(true);
+        cached.upload(assembler.assemble(src));
+        cached.run();
+
+        assertEquals(5, cached.getreg(Reg.A));
+        assertArrayEquals(plain.mem, cached.mem);
+        assertEquals(plain.cycles, cached.cycles);
+        assertTrue(cached.getDecodeCache().getInvalidations() > 0);
+    }
+
+    @Test
+    public void testDirectMemoryWrite() {
+        Dcpu cpu = new Dcpu();
+        cpu.setDecodeCacheEnabled(true);
+        cpu.upload(assembler.assemble("SET A, 1\nDAT 0\n"));
+        cpu.step(false);
+        assertEquals(1, cpu.getreg(Reg.A));
+        // overwrite instruction bypassing memset, as devices do
+        cpu.mem[0] = Dcpu.gencmd(Dcpu.O_SET, Dcpu.A_A, Dcpu.A_2);
+        cpu.reset();
+        cpu.step(false);
+        assertEquals(2, cpu.getreg(Reg.A));
+        assertEquals(1, cpu.getDecodeCache().getInvalidations());
+    }
+}
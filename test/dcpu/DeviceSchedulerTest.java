@@ -0,0 +1,162 @@
+package dcpu;
+
+import dcpu.hw.GenericClock;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceSchedulerTest {
+
+    private static final String PROGRAM = "" +
+            "       SET A, 0\n" +
+            "       SET B, 1\n" +
+            "       HWI 0\n" +
+            "       SET A, 2\n" +
+            "       SET B, 0x55\n" +
+            "       HWI 0\n" +
+            "       IAS handler\n" +
+            ":loop  ADD X, 1\n" +
+            "       MUL Y, 3\n" +
+            "       SET PC, loop\n" +
+            ":handler ADD Z, 1\n" +
+            "       RFI 0\n";
+
+    /**
+     * GenericClock as it was implemented with tick()
+     */
+    private static class TickingClock extends Dcpu.Device {
+        final List<Long> shots = new ArrayList<Long>();
+        long lastShot = 0;
+        int period = 0;
+        char intMsg = 0;
+
+        @Override
+        public void tick() {
+            if (period == 0) return;
+            long cyclesPerShot = cpu.getFrequency() / Dcpu.FRAMES_PER_SECOND;
+            if (cpu.cycles - lastShot > period * cyclesPerShot) {
+                lastShot += period * cyclesPerShot;
+                shots.add(cpu.cycles);
+                if (intMsg != 0) cpu.interrupt(intMsg);
+            }
+        }
+
+        @Override
+        public void interrupt() {
+            char a = cpu.getreg(Dcpu.Reg.A);
+            char b = cpu.getreg(Dcpu.Reg.B);
+            if (a == GenericClock.CLKINT_SETUP) {
+                period = b;
+                lastShot = cpu.cycles;
+            } else if (a == GenericClock.CLKINT_TOGGLEINT) {
+                intMsg = b;
+            }
+        }
+
+        @Override
+        public int getHardwareId() {
+            return GenericClock.HARDWARE_ID;
+        }
+
+        @Override
+        public char getHardwareVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getManufacturerId() {
+            return 0;
+        }
+    }
+
+    private static class ScheduledClock extends GenericClock {
+        final List<Long> shots = new ArrayList<Long>();
+
+        ScheduledClock() {
+            super(0);
+        }
+
+        @Override
+        public void wakeup() {
+            shots.add(cpu.cycles);
+            super.wakeup();
+        }
+    }
+
+    private List<Long> run(Dcpu.Device clock, List<Long> shots) {
+        Dcpu cpu = new Dcpu();
+        cpu.upload(new Assembler().assemble(PROGRAM));
+        cpu.attach(clock);
+        cpu.run(20000);
+        cpu.setFrequency(30000);
+        cpu.run(20000);
+        shots.add(-1L);
+        shots.add((long) cpu.getreg(Dcpu.Reg.Z));
+        shots.add(cpu.cycles);
+        return shots;
+    }
+
+    @Test
+    public void testClockTimingIsExact() {
+        TickingClock ticking = new TickingClock();
+        ScheduledClock scheduled = new ScheduledClock();
+        List<Long> expected = run(ticking, ticking.shots);
+        List<Long> actual = run(scheduled, scheduled.shots);
+        assertTrue(expected.size() > 10);
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testWakeupOrder() {
+        final List<Integer> order = new ArrayList<Integer>();
+        Dcpu cpu = new Dcpu();
+        final int[] dues = {9, 8, 7, 7, 7};
+        for (int i = 0; i < dues.length; i++) {
+            final int due = dues[i];
+            cpu.attach(new Dcpu.Device() {
+                @Override
+                public void attached() {
+                    schedule(due);
+                }
+
+                @Override
+                public void wakeup() {
+                    order.add(index);
+                    if (index == 0) schedule(0); // in the past - must wait until the next tick
+                }
+
+                @Override
+                public int getHardwareId() {
+                    return 0;
+                }
+
+                @Override
+                public char getHardwareVersion() {
+                    return 0;
+                }
+
+                @Override
+                public int getManufacturerId() {
+                    return 0;
+                }
+
+                @Override
+                public void interrupt() {
+                }
+            });
+        }
+        // empty memory is full of 1-cycle reserved instructions, so devices are ticked with cycles = 1, 2, 3...
+        cpu.run(7);
+        assertEquals("[2, 3, 4]", order.toString());
+        cpu.run(1);
+        assertEquals("[2, 3, 4, 1]", order.toString());
+        cpu.run(1);
+        assertEquals("[2, 3, 4, 1, 0]", order.toString());
+        cpu.run(1);
+        assertEquals("[2, 3, 4, 1, 0, 0]", order.toString());
+    }
+}
@@ -0,0 +1,129 @@
+package dcpu;
+
+import dcpu.jit.Jit;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ExecutionHistoryTest {
+
+    private static final String PROGRAM = "" +
+            "       SET I, 0\n" +
+            ":loop  ADD I, 1\n" +
+            "       IFN I, 100\n" +
+            "           SET PC, loop\n" +
+            "       SET [crash], 0\n" +
+            ":crash SET A, 1\n";
+
+    @Test
+    public void testRing() {
+        Assembler assembler = new Assembler();
+        assembler.genMap = true;
+        Dcpu cpu = new Dcpu();
+        cpu.upload(assembler.assemble(PROGRAM));
+        cpu.setJitEnabled(true);
+        ExecutionHistory history = new ExecutionHistory(10);
+        assertEquals(16, history.getCapacity());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        history.setDump(ExecutionHistory.Dump.ON_CRASH, new PrintStream(bytes), 4);
+        history.setMap(assembler.asmmap);
+        history.install(cpu);
+        assertFalse(cpu.isObserved());
+        cpu.run();
+        assertTrue(cpu.reserved);
+
+        // SET I + 100 * (ADD + IFN) + 99 * SET PC (skipped one is not recorded) + SET [crash] + crash
+        assertEquals(1 + 200 + 99 + 2, history.getCount());
+        assertEquals(16, history.size());
+        char crash = assembler.asmmap.symbol("crash");
+        assertEquals(crash, history.pc(0));
+        assertEquals(0, history.word(0)); // reserved
+        assertEquals(cpu.cycles - 1, history.cycles(0));
+        assertEquals(crash - 2, history.pc(1));
+        assertTrue(history.cycles(1) < history.cycles(0));
+
+        String dump = bytes.toString();
+        String[] lines = dump.split("\n");
+        assertEquals(dump, 5, lines.length);
+        assertEquals(String.format("reserved opcode at 0x%04x, last instructions:", (int) crash), lines[0].trim());
+        assertTrue(lines[2], lines[2].matches(" *\\d+ [0-9a-f]{4} loop\\+0x1:3 +IFN I, .*"));
+        assertTrue(lines[4], lines[4].matches(" *\\d+ [0-9a-f]{4} crash:6 +DAT 0x0000"));
+
+        cpu.mem[crash] = 0x7c01; // SET A, next word
+        bytes.reset();
+        history.dump(new PrintStream(bytes), 1);
+        assertTrue(bytes.toString(), bytes.toString().trim().endsWith("DAT 0x0000 ; overwritten since"));
+
+        history.reset();
+        assertEquals(0, history.size());
+        history.uninstall();
+        assertFalse(cpu.isObserved());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testEmpty() {
+        new ExecutionHistory().pc(0);
+    }
+
+    @Test
+    public void testCompiledBlocksAreRecorded() {
+        String program = "" +
+                ":loop  ADD I, 1\n" +
+                "       SET J, I\n" +
+                "       MUL J, 3\n" +
+                "       SET [0x1000+I], J\n" +
+                "       SET PUSH, J\n" +
+                "       SET X, POP\n" +
+                "       IFN I, 300\n" +
+                "           SET PC, loop\n" +
+                "       SET [crash], 0\n" +
+                ":crash SET A, 1\n";
+        assertRecordsLikeInterpreter(program, Jit.DEFAULT_THRESHOLD, false);
+        // block which rewrites its own first instruction: recorded words must be the ones executed, not new ones
+        String selfModifying = "" +
+                ":loop  SET A, 1\n" +
+                "       SET B, B\n" +
+                "       XOR [J], 0xf400\n" +
+                "       ADD I, 1\n" +
+                "       IFN I, 3000\n" +
+                "           SET PC, loop\n";
+        assertRecordsLikeInterpreter(selfModifying, 1, true);
+    }
+
+    /**
+     * Runs program interpreted and with JIT, either freely or one block at a time, and compares last instructions
+     */
+    private static void assertRecordsLikeInterpreter(String program, int threshold, boolean blockwise) {
+        char[] bin = new Assembler().assemble(program);
+        ExecutionHistory[] histories = new ExecutionHistory[2];
+        for (int jit = 0; jit < 2; jit++) {
+            Dcpu cpu = new Dcpu();
+            cpu.upload(bin);
+            cpu.setJitEnabled(jit == 1);
+            if (jit == 1) cpu.getJit().setThreshold(threshold);
+            histories[jit] = new ExecutionHistory(64);
+            histories[jit].setDump(ExecutionHistory.Dump.NEVER, null, 0);
+            histories[jit].install(cpu);
+            if (blockwise) {
+                while (!cpu.runUntil(cpu.cycles + 1)) {
+                    // next block
+                }
+            } else {
+                cpu.run();
+            }
+            assertTrue(cpu.reserved);
+            if (jit == 1) assertTrue(cpu.getJit().getJittedInstructions() > 1000);
+        }
+        assertEquals(histories[0].getCount(), histories[1].getCount());
+        for (int back = 0; back < 64; back++) {
+            assertEquals(histories[0].pc(back), histories[1].pc(back));
+            assertEquals(histories[0].word(back), histories[1].word(back));
+            assertEquals(histories[0].cycles(back), histories[1].cycles(back));
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package dcpu;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ExecutionStreamTest {
+
+    private static final String PROGRAM = "" +
+            "       SET I, 0\n" +
+            ":loop  ADD I, 1\n" +
+            "       IFN I, 1000\n" +
+            "           SET PC, loop\n" +
+            "       HCF 0\n";
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * Collects records as "pc/cycles/word" and batch sizes
+     */
+    private static class Recorder implements ExecutionStream.Subscriber {
+        final List<String> records = new ArrayList<String>();
+        final List<Integer> sizes = new ArrayList<Integer>();
+        final CountDownLatch completed = new CountDownLatch(1);
+        final long initialRequest;
+        final long delayNanos;
+        ExecutionStream.Subscription subscription;
+        long expectedSequence = 0;
+        Throwable error;
+
+        Recorder(long initialRequest, long delayNanos) {
+            this.initialRequest = initialRequest;
+            this.delayNanos = delayNanos;
+        }
+
+        @Override
+        public void onSubscribe(ExecutionStream.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(initialRequest);
+        }
+
+        @Override
+        public void onNext(ExecutionStream.Batch batch) {
+            assertEquals(expectedSequence++, batch.getSequence());
+            sizes.add(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                records.add((int) batch.pc(i) + "/" + batch.cycles(i) + "/" + (int) batch.word(i));
+            }
+            if (delayNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(delayNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (initialRequest == 1) subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            this.error = error;
+            completed.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+    }
+
+    private static List<String> expectedRecords() {
+        final Dcpu cpu = new Dcpu();
+        cpu.upload(new Assembler().assemble(PROGRAM));
+        final List<String> records = new ArrayList<String>();
+        cpu.stepListener.addListener(new CharListener() {
+            private long cycles;
+
+            @Override
+            public void preExecute(char pc) {
+                cycles = cpu.cycles - 1; // listener is notified after fetch cycle
+            }
+
+            @Override
+            public void postExecute(char pc) {
+                records.add((int) pc + "/" + cycles + "/" + (int) cpu.mem[pc]);
+            }
+        });
+        cpu.run();
+        return records;
+    }
+
+    @Test
+    public void testBatches() throws InterruptedException {
+        Dcpu cpu = new Dcpu();
+        cpu.upload(new Assembler().assemble(PROGRAM));
+        cpu.setJitEnabled(true); // must be bypassed while stream is installed
+        ExecutionStream stream = new ExecutionStream(100, 4);
+        Recorder recorder = new Recorder(Long.MAX_VALUE, 0);
+        stream.subscribe(recorder, DIRECT);
+        stream.install(cpu);
+        cpu.run();
+        // 1 + 3 * 999 + 2 + 1 instructions, the last one is published at halt
+        assertEquals(31, stream.getPublished());
+        assertEquals(Integer.valueOf(100), recorder.sizes.get(0));
+        assertEquals(Integer.valueOf(1), recorder.sizes.get(30));
+        assertEquals(expectedRecords(), recorder.records);
+        assertEquals(0, stream.getWaits());
+
+        stream.uninstall();
+        assertTrue(recorder.completed.await(1, TimeUnit.SECONDS));
+        assertNull(recorder.error);
+        assertNull(cpu.getStream());
+    }
+
+    @Test
+    public void testBackpressure() throws InterruptedException {
+        Dcpu cpu = new Dcpu();
+        cpu.upload(new Assembler().assemble(PROGRAM));
+        ExecutionStream stream = new ExecutionStream(50, 2);
+        Recorder slow = new Recorder(1, 1000L * 1000L);
+        Recorder fast = new Recorder(Long.MAX_VALUE, 0);
+        stream.subscribe(slow);
+        stream.subscribe(fast);
+        stream.install(cpu);
+        cpu.run();
+        stream.uninstall();
+        assertTrue(slow.completed.await(10, TimeUnit.SECONDS));
+        assertTrue(fast.completed.await(10, TimeUnit.SECONDS));
+        assertTrue(stream.getWaits() > 0);
+        List<String> expected = expectedRecords();
+        assertEquals(expected, slow.records);
+        assertEquals(expected, fast.records);
+    }
+
+    @Test
+    public void testCancelAndBadRequest() throws InterruptedException {
+        Dcpu cpu = new Dcpu();
+        cpu.upload(new Assembler().assemble(PROGRAM));
+        ExecutionStream stream = new ExecutionStream(10, 2);
+        Recorder cancelled = new Recorder(1, 0);
+        Recorder bad = new Recorder(0, 0);
+        stream.subscribe(cancelled, DIRECT);
+        stream.subscribe(bad, DIRECT);
+        assertTrue(bad.error instanceof IllegalArgumentException);
+        stream.install(cpu);
+        cpu.run(10);
+        cancelled.subscription.cancel();
+        cpu.run(); // nobody is subscribed, so it doesn't wait
+        assertEquals(10, cancelled.records.size());
+        assertEquals(0, bad.records.size());
+        stream.uninstall();
+        assertEquals(1, cancelled.completed.getCount()); // cancelled subscription is not completed
+    }
+}
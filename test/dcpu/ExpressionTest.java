@@ -0,0 +1,80 @@
+package dcpu;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ExpressionTest {
+
+    private long eval(String source, Dcpu cpu, AsmMap map) {
+        return Expression.compile(source, map).eval(cpu);
+    }
+
+    @Test
+    public void testOperators() {
+        Dcpu cpu = new Dcpu();
+        assertEquals(7, eval("1 + 2 * 3", cpu, null));
+        assertEquals(9, eval("(1 + 2) * 3", cpu, null));
+        assertEquals(1, eval("1 < 2 && 2 <= 2 && 3 > 2 && 3 >= 3", cpu, null));
+        assertEquals(1, eval("1 == 2 || 1 != 2", cpu, null));
+        assertEquals(0x30, eval("0x10 | 0b100000", cpu, null));
+        assertEquals(2, eval("1 << 3 >> 2", cpu, null));
+        assertEquals(1, eval("1 < 1 << 4", cpu, null)); // 1 < (1 << 4)
+        assertEquals(1, eval("4 > 1 >> 1", cpu, null));
+        assertEquals(1, eval("1 << 4 >= 16", cpu, null));
+        assertEquals(32, eval("1 << 2 + 3", cpu, null)); // 1 << (2 + 3)
+        assertEquals(1, eval("2 << 1 == 4", cpu, null));
+        assertEquals(1, eval("6 & 3 ^ 3", cpu, null)); // (6 & 3) ^ 3
+        assertEquals(-1, eval("~0", cpu, null));
+        assertEquals(1, eval("!0", cpu, null));
+        assertEquals(-3, eval("-7 / 2", cpu, null));
+        assertEquals(0, eval("7 / 0", cpu, null));
+        assertEquals(1, eval("7 % 3", cpu, null));
+        assertEquals('x', eval("'x'", cpu, null));
+    }
+
+    @Test
+    public void testState() {
+        Dcpu cpu = new Dcpu();
+        cpu.setreg(Dcpu.Reg.I, (char) 0x100);
+        cpu.setreg(Dcpu.Reg.A, (char) 0x103);
+        cpu.mem[0x103] = 0x20;
+        cpu.mem[0x105] = 0x2a;
+        cpu.cycles = 1234;
+        assertTrue(Expression.compile("[I+3] == 0x20", null).test(cpu));
+        assertTrue(Expression.compile("[a] == [i + 3]", null).test(cpu));
+        assertEquals(0x2a, eval("[i*1 + 5]", cpu, null));
+        assertEquals(0x2a, eval("[0x105]", cpu, null));
+        assertEquals(0x20, eval("[I + 0x10003]", cpu, null)); // address wraps
+        assertEquals(1234, eval("CYCLES", cpu, null));
+        assertFalse(Expression.compile("cycles > 2000", null).test(cpu));
+
+        AsmMap map = new AsmMap();
+        map.symbolMap.put("buf", (char) 0x105);
+        assertEquals(0x2a, eval("[BUF]", cpu, map));
+    }
+
+    @Test
+    public void testTemplate() {
+        Dcpu cpu = new Dcpu();
+        cpu.setreg(Dcpu.Reg.X, (char) 26);
+        assertEquals("X=0x1a (26)!", Expression.compileTemplate("X={x} ({x:d})!", null).format(cpu));
+        assertEquals("no values", Expression.compileTemplate("no values", null).format(cpu));
+    }
+
+    @Test
+    public void testErrors() {
+        String[] bad = {"", "1 +", "(1", "[a", "a b", "nolabel", "0xg", "1 $ 2", "{"};
+        for (String source : bad) {
+            try {
+                Expression.compile(source, null);
+                fail(source);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains(" at "));
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package dcpu;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameClockTest {
+
+    @Test
+    public void testPacing() throws InterruptedException {
+        char[] loop = new Assembler().assemble(":loop SET PC, loop\n");
+        char[] halting = new Assembler().assemble("HCF 0\n");
+        FrameClock clock = new FrameClock(2);
+        FrameClock.Machine[] machines = new FrameClock.Machine[20];
+        for (int i = 0; i < machines.length; i++) {
+            Dcpu cpu = new Dcpu();
+            cpu.upload(loop);
+            machines[i] = clock.add(cpu);
+        }
+        Dcpu halted = new Dcpu();
+        halted.upload(halting);
+        FrameClock.Machine halter = clock.add(halted);
+        clock.start();
+        Thread.sleep(500);
+        clock.stop();
+
+        assertFalse(clock.getMachines().contains(halter));
+        assertEquals(1, halter.getFrames());
+        for (FrameClock.Machine machine : machines) {
+            assertTrue(clock.getMachines().contains(machine));
+            assertTrue(machine.getFrames() > 10);
+            // every frame adds cyclesPerFrame cycles, no more
+            long frameCycles = machine.getCpu().getCyclesPerFrame();
+            assertTrue(machine.getExecutedCycles() <= (machine.getFrames() + 1) * frameCycles);
+            double frequency = machine.getAchievedFrequency();
+            assertTrue(machine.toString(), frequency > Dcpu.DEFAULT_CPU_FREQUENCY / 3);
+            assertTrue(machine.toString(), frequency < Dcpu.DEFAULT_CPU_FREQUENCY * 1.5);
+        }
+    }
+}
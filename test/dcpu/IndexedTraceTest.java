@@ -0,0 +1,138 @@
+package dcpu;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IndexedTraceTest {
+
+    private static final String PROGRAM = "" +
+            "       IAS handler\n" +
+            "       SET I, 0\n" +
+            ":loop  ADD I, 1\n" +
+            "       SET [0x1000+I], I\n" +
+            "       JSR func\n" +
+            "       IFE I, 50\n" +
+            "           INT 7\n" +
+            "       IFN I, 20000\n" +
+            "           SET PC, loop\n" +
+            "       HCF 0\n" +
+            ":func  MUL [0x1000+I], 3\n" +
+            "       SET PC, POP\n" +
+            ":handler SET [0x2000], A\n" +
+            "       RFI 0\n";
+
+    @Test
+    public void testIndexedTrace() throws IOException {
+        Assembler assembler = new Assembler();
+        assembler.genMap = true;
+        Dcpu cpu = new Dcpu();
+        cpu.upload(assembler.assemble(PROGRAM));
+        File rawFile = File.createTempFile("trace", ".bin");
+        rawFile.deleteOnExit();
+        File indexedFile = File.createTempFile("trace", ".dtx");
+        indexedFile.deleteOnExit();
+        FileOutputStream rawOut = new FileOutputStream(rawFile);
+        FileOutputStream indexedOut = new FileOutputStream(indexedFile);
+        BinaryTrace raw = new BinaryTrace(rawOut.getChannel());
+        BinaryTrace indexed = new BinaryTrace(new IndexedTraceWriter(indexedOut.getChannel(), 16), 64, 4);
+        raw.install(cpu);
+        indexed.install(cpu);
+        cpu.run();
+        raw.uninstall();
+        indexed.uninstall();
+        rawOut.close();
+        indexedOut.close();
+        assertTrue(indexedFile.length() + " vs " + rawFile.length(), indexedFile.length() < rawFile.length() / 2);
+
+        RandomAccessFile rawIn = new RandomAccessFile(rawFile, "r");
+        ByteBuffer records = rawIn.getChannel().map(FileChannel.MapMode.READ_ONLY, 12, rawFile.length() - 12);
+        rawIn.close();
+        int n = records.capacity() / BinaryTrace.RECORD_SIZE;
+
+        IndexedTrace trace = IndexedTrace.open(indexedFile);
+        assertEquals(n, trace.getRecords());
+        assertEquals((n + 15) / 16, trace.getBlocks());
+        IndexedTrace.Cursor cursor = trace.cursor();
+        for (int i = 0; i < n; i++) {
+            assertTrue(cursor.next());
+            assertRecord(records, i, cursor);
+        }
+        assertFalse(cursor.next());
+
+        for (int i = n - 1; i >= 0; i -= 7) {
+            assertTrue(cursor.seek(i));
+            assertRecord(records, i, cursor);
+        }
+        assertFalse(cursor.seek(n));
+
+        // instruction started at cycle 1000, or the first one after it
+        assertTrue(cursor.seekCycles(1000));
+        assertTrue(cursor.getCycles() >= 1000);
+        assertTrue(cursor.seek(cursor.getIndex() - 1));
+        assertTrue(cursor.getCycles() < 1000);
+
+        char handler = assembler.asmmap.symbol("handler");
+        cursor = trace.cursor();
+        assertTrue(cursor.seekPc(handler));
+        assertEquals(handler, records.getChar(at(cursor.getIndex()) + 8));
+        assertEquals("SET [0x2000], A", cursor.disassemble());
+        assertTrue(cursor.next());
+        assertFalse(cursor.seekPc(handler)); // interrupt happens once
+
+        // writes of 0x1000 + 77: SET and MUL of the 77th pass
+        cursor = trace.cursor();
+        int writes = 0;
+        for (int i = 0; i < n; i++) {
+            if (records.getChar(at(i) + 40) != 0 && records.getChar(at(i) + 42) == 0x1000 + 77) writes++;
+        }
+        assertEquals(2, writes);
+        assertTrue(cursor.seekWrite((char) (0x1000 + 77)));
+        assertEquals(77, cursor.getWriteValue());
+        assertTrue(cursor.next());
+        assertTrue(cursor.seekWrite((char) (0x1000 + 77)));
+        assertEquals(77 * 3, cursor.getWriteValue());
+        assertEquals(assembler.asmmap.symbol("func"), (Character) cursor.getPc());
+        assertTrue(cursor.next());
+        assertFalse(cursor.seekWrite((char) (0x1000 + 77)));
+        assertFalse(trace.cursor().seekWrite((char) 0x8000));
+        trace.close();
+    }
+
+    private static int at(long i) {
+        return (int) i * BinaryTrace.RECORD_SIZE;
+    }
+
+    private static void assertRecord(ByteBuffer records, int i, IndexedTrace.Cursor cursor) {
+        int at = at(i);
+        assertEquals(i, cursor.getIndex());
+        assertEquals(records.getLong(at), cursor.getCycles());
+        assertEquals(records.getChar(at + 8), cursor.getPc());
+        char word = records.getChar(at + 10);
+        assertEquals(word, cursor.getWord(0));
+        int next = Decoder.nextWordCount(Decoder.decode(word));
+        for (int w = 1; w <= next; w++) {
+            assertEquals(records.getChar(at + 10 + 2 * w), cursor.getWord(w));
+        }
+        for (Dcpu.Reg reg : Dcpu.Reg.values()) {
+            if (reg.offset < BinaryTrace.REGS) {
+                assertEquals(reg.name, records.getChar(at + 16 + 2 * reg.offset), cursor.getRegister(reg));
+            }
+        }
+        boolean wrote = records.getChar(at + 40) != 0;
+        assertEquals(wrote, cursor.hasWritten());
+        if (wrote) {
+            assertEquals(records.getChar(at + 42), cursor.getWriteAddress());
+            assertEquals(records.getChar(at + 44), cursor.getWriteValue());
+        }
+    }
+}
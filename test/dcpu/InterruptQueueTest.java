@@ -0,0 +1,72 @@
+package dcpu;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InterruptQueueTest {
+
+    @Test
+    public void testFifoAndCapacity() {
+        InterruptQueue queue = new InterruptQueue();
+        assertTrue(queue.isEmpty());
+        assertEquals(-1, queue.poll());
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < InterruptQueue.CAPACITY; i++) {
+                assertTrue(queue.offer((char) (i + round)));
+            }
+            assertFalse(queue.offer((char) 0xffff));
+            assertEquals(InterruptQueue.CAPACITY, queue.getDepth());
+            for (int i = 0; i < InterruptQueue.CAPACITY; i++) {
+                assertEquals(i + round, queue.poll());
+            }
+            assertTrue(queue.isEmpty());
+        }
+        assertEquals(3, queue.getOverflows());
+        assertEquals(InterruptQueue.CAPACITY, queue.getMaxDepth());
+    }
+
+    @Test
+    public void testConcurrentProducers() throws InterruptedException {
+        final InterruptQueue queue = new InterruptQueue();
+        final int producers = 4;
+        final int perProducer = 50000;
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int id = p;
+            threads[p] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        // message encodes producer in high bits and sequence number in low ones
+                        char msg = (char) ((id << 14) | (i & 0x3fff));
+                        while (!queue.offer(msg)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            };
+            threads[p].start();
+        }
+        int[] next = new int[producers];
+        int received = 0;
+        while (received < producers * perProducer) {
+            int msg = queue.poll();
+            if (msg < 0) {
+                Thread.yield();
+                continue;
+            }
+            int id = msg >> 14;
+            // messages of one producer must come in order
+            assertEquals(next[id] & 0x3fff, msg & 0x3fff);
+            next[id]++;
+            received++;
+        }
+        for (Thread thread : threads) thread.join();
+        assertTrue(queue.isEmpty());
+        for (int p = 0; p < producers; p++) assertEquals(perProducer, next[p]);
+        assertEquals(producers * perProducer, queue.getEnqueued());
+    }
+}
@@ -5,6 +5,8 @@ import org.junit.Test;
 
 import static dcpu.Dcpu.Reg;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class InterruptTest {
     private Dcpu cpu;
@@ -103,6 +105,81 @@ public class InterruptTest {
         assertEquals(map.symbol("run3").charValue(), cpu.pc());
     }
 
+    @Test
+    public void testQueueing() {
+        asm("" +
+                "   IAS inthandler\n" +
+                "   INT 1\n" +
+                "   INT 2\n" +
+                "   HCF 0\n" +
+                ":inthandler\n" +
+                "   ADD X,A\n" +
+                "   INT 4\n" +
+                "   RFI 0\n");
+        cpu.run(2); // IAS, INT 1
+        cpu.run(1); // <int 1>
+        assertTrue(cpu.isIntQueuing());
+        cpu.run(3); // ADD, INT 4, RFI
+        assertFalse(cpu.isIntQueuing());
+        assertEquals(1, cpu.getreg(Reg.X));
+        assertEquals(1, cpu.getInterruptQueue().getDepth());
+        cpu.run(4 * 4); // each handler queues another 4, so INT 2 is never reached
+        assertEquals(1 + 4 * 4, cpu.getreg(Reg.X));
+        assertEquals(1 + 1 + 4, cpu.getInterruptQueue().getEnqueued());
+    }
+
+    @Test
+    public void testIAQ() {
+        asm("" +
+                "   IAS inthandler\n" +
+                "   IAQ 1\n" +
+                "   INT 5\n" +
+                "   SET B,1\n" +
+                "   IAQ 0\n" +
+                "   SET B,2\n" +
+                "   HCF 0\n" +
+                ":inthandler\n" +
+                "   HCF 0\n");
+        cpu.run(5); // IAS, IAQ, INT, SET, IAQ
+        assertEquals(1, cpu.getreg(Reg.B));
+        cpu.run(1); // <int>
+        assertEquals(5, cpu.getreg(Reg.A));
+        assertEquals(map.symbol("inthandler").charValue(), cpu.pc());
+    }
+
+    @Test
+    public void testDroppedWhenIA0() {
+        asm("" +
+                "   INT 1\n" +
+                "   HCF 0\n");
+        cpu.run(1);
+        cpu.interrupt((char) 2);
+        assertEquals(2, cpu.getInterruptQueue().getDropped());
+        assertEquals(0, cpu.getInterruptQueue().getEnqueued());
+    }
+
+    @Test
+    public void testCatchFire() {
+        asm("" +
+                "   IAS inthandler\n" +
+                "   IAQ 1\n" +
+                ":loop\n" +
+                "   INT 1\n" +
+                "   SET PC, loop\n" +
+                ":inthandler\n" +
+                "   RFI 0\n");
+        cpu.run(2 + 2 * InterruptQueue.CAPACITY);
+        assertFalse(cpu.isOnFire());
+        assertEquals(InterruptQueue.CAPACITY, cpu.getInterruptQueue().getDepth());
+        cpu.step(false); // one interrupt too many
+        assertTrue(cpu.isOnFire());
+        assertTrue(cpu.halt);
+        assertEquals(1, cpu.getInterruptQueue().getOverflows());
+        cpu.reset();
+        assertFalse(cpu.isOnFire());
+        assertEquals(0, cpu.getInterruptQueue().getDepth());
+    }
+
     // TODO maybe extract this helper method, cpu, assembler, and 'map' fields to some kind of DcpuTest superclass?
     private void asm(String src) {
         assembler.reset();
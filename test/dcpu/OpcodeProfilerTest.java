@@ -0,0 +1,74 @@
+package dcpu;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static dcpu.Dcpu.BasicOp;
+import static dcpu.Dcpu.SpecialOp;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OpcodeProfilerTest {
+
+    private static final String PROGRAM = "" +
+            "       SET I, 0\n" +
+            ":loop  ADD [0x1000+I], 0x1234\n" +
+            "       SET PUSH, I\n" +
+            "       SET A, POP\n" +
+            "       ADD I, 1\n" +
+            "       IFN I, 10\n" +
+            "           SET PC, loop\n" +
+            "       JSR sub\n" +
+            "       HCF 0\n" +
+            ":sub   SET PC, POP\n";
+
+    @Test
+    public void testCounts() {
+        Dcpu cpu = new Dcpu();
+        cpu.upload(new Assembler().assemble(PROGRAM));
+        cpu.setJitEnabled(true); // must be bypassed while profiling
+        OpcodeProfiler profiler = new OpcodeProfiler();
+        profiler.install(cpu);
+        cpu.run(1 + 6 * 10 - 1 + 3);
+        assertTrue(cpu.halt);
+
+        OpcodeProfiler.Report report = profiler.report();
+        assertEquals(1 + 6 * 10 - 1 + 3, report.instructions); // last SET PC, loop is skipped
+        assertEquals(cpu.cycles, report.cycles);
+        assertEquals(1, report.skips);
+        assertEquals(1 + 2 * 10 + 9 + 1, report.basicExecutions[BasicOp.SET.code]);
+        assertEquals(20, report.basicExecutions[BasicOp.ADD.code]);
+        assertEquals(10, report.basicExecutions[BasicOp.IFN.code]);
+        assertEquals(1, report.ifMisses[BasicOp.IFN.code]);
+        assertEquals(1, report.basicSkips[BasicOp.SET.code]);
+        assertEquals(1, report.specialExecutions[SpecialOp.JSR.code]);
+        assertEquals(1, report.specialExecutions[SpecialOp.HCF.code]);
+        assertEquals(10, report.bModes[OpcodeProfiler.MODE_REG_NW_MEM]);
+        assertEquals(10 + 9 + 1, report.aModes[OpcodeProfiler.MODE_NW]); // ADD 0x1234, SET PC, loop, JSR sub
+        assertEquals(10 + 10 + 1, report.aModes[OpcodeProfiler.MODE_PUSHPOP] + report.bModes[OpcodeProfiler.MODE_PUSHPOP]);
+        assertEquals(20 * (1 + BasicOp.ADD.cycles), report.basicCycles[BasicOp.ADD.code]);
+        assertTrue(report.basicCycles[BasicOp.IFN.code] > 10 * (1 + BasicOp.IFN.cycles)); // miss includes the skip
+
+        profiler.reset();
+        assertEquals(0, profiler.report().instructions);
+        profiler.uninstall();
+        assertEquals(null, cpu.getProfiler());
+    }
+
+    @Test
+    public void testJson() {
+        Dcpu cpu = new Dcpu();
+        cpu.upload(new Assembler().assemble(PROGRAM));
+        OpcodeProfiler profiler = new OpcodeProfiler();
+        profiler.install(cpu);
+        cpu.run(20);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        profiler.printJsonReport(new PrintStream(bytes));
+        String json = bytes.toString();
+        assertTrue(json, json.startsWith("{\"instructions\": 20,"));
+        assertTrue(json, json.contains("\"IFN\": {\"executions\": 3, \"cycles\": 9, \"skipped\": 0, \"ifMissed\": 0}"));
+        assertTrue(json, json.contains("\"[reg+nw]\": {\"a\": 0, \"b\": 4}"));
+    }
+}
@@ -0,0 +1,88 @@
+package dcpu;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SamplingProfilerTest {
+
+    private static final String PROGRAM = "" +
+            ":start IAS handler\n" +
+            ":main  JSR outer\n" +
+            "       SET PC, main\n" +
+            ":outer SET I, 0\n" +
+            ":oloop JSR inner\n" +
+            "       ADD I, 1\n" +
+            "       IFN I, 4\n" +
+            "           SET PC, oloop\n" +
+            "       INT 1\n" +
+            "       SET PC, POP\n" +
+            ":inner SET J, 0\n" +
+            ":iloop ADD J, 1\n" +
+            "       IFN J, 100\n" +
+            "           SET PC, iloop\n" +
+            "       SET PC, POP\n" +
+            ":handler SET X, 0\n" +
+            ":hloop ADD X, 1\n" +
+            "       IFN X, 50\n" +
+            "           SET PC, hloop\n" +
+            "       RFI 0\n";
+
+    private SamplingProfiler profile(int cycles) {
+        Assembler assembler = new Assembler();
+        assembler.genMap = true;
+        Dcpu cpu = new Dcpu();
+        cpu.upload(assembler.assemble(PROGRAM));
+        cpu.setJitEnabled(true); // must be bypassed while sampling
+        SamplingProfiler sampler = new SamplingProfiler(assembler.asmmap);
+        sampler.setInterval(97);
+        sampler.install(cpu);
+        cpu.runUntil(cycles);
+        return sampler;
+    }
+
+    @Test
+    public void testStacks() {
+        SamplingProfiler sampler = profile(200000);
+        assertTrue(sampler.getSamples() > 200000 / 100);
+        assertEquals(2, sampler.getMaxDepth()); // outer, then inner or handler
+
+        long inner = 0, handler = 0, total = 0;
+        for (Map.Entry<String, Long> entry : sampler.collapse().entrySet()) {
+            String stack = entry.getKey();
+            assertTrue(stack, stack.startsWith("start;"));
+            if (stack.startsWith("start;outer;inner;iloop:")) inner += entry.getValue();
+            if (stack.startsWith("start;outer;[int handler];hloop:")) handler += entry.getValue();
+            total += entry.getValue();
+        }
+        assertEquals(sampler.getSamples(), total);
+        // one outer call runs inner loop 4 * 100 times and handler loop 50 times
+        assertTrue(inner + " of " + total, inner > total * 3 / 4);
+        assertTrue(handler + " of " + total, handler > total / 20 && handler < total / 5);
+    }
+
+    @Test
+    public void testOutput() {
+        SamplingProfiler sampler = profile(20000);
+        sampler.setLines(false);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        sampler.writeCollapsed(new PrintStream(bytes));
+        String collapsed = bytes.toString();
+        assertTrue(collapsed, collapsed.matches("(?sm).*^start;outer;inner \\d+$.*"));
+
+        bytes.reset();
+        sampler.printReport(new PrintStream(bytes), 3);
+        String report = bytes.toString();
+        assertTrue(report, report.matches("(?s)samples \\d+ every 97 cycles.*\ninner +\\d+.*\niloop:13 +\\d+.*"));
+
+        assertEquals("iloop+0x1", sampler.name(sampler.getMap().symbol("iloop") + 1));
+        assertEquals("0x0000", new SamplingProfiler(null).name(0));
+        sampler.reset();
+        assertEquals(0, sampler.getSamples());
+    }
+}
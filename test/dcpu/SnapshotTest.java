@@ -0,0 +1,143 @@
+package dcpu;
+
+import dcpu.hw.GenericClock;
+import dcpu.hw.GenericKeyboard;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SnapshotTest {
+
+    private static final String PROGRAM = "" +
+            "       IAS handler\n" +
+            "       SET A, 0\n" +
+            "       SET B, 1\n" +
+            "       HWI 0\n" +
+            "       SET A, 2\n" +
+            "       SET B, 0x55\n" +
+            "       HWI 0\n" +
+            ":loop  ADD X, 1\n" +
+            "       MUL Y, 3\n" +
+            "       SET [0x1000+Z], X\n" +
+            "       SET PC, loop\n" +
+            ":handler ADD Z, 1\n" +
+            "       RFI 0\n";
+
+    private static Dcpu machine() {
+        Dcpu cpu = new Dcpu();
+        cpu.attach(new GenericClock(0x1c6c8b36));
+        cpu.attach(new GenericKeyboard(0x1c6c8b36, 16));
+        return cpu;
+    }
+
+    private static byte[] bytes(Snapshot snapshot) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        snapshot.write(Channels.newChannel(out));
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testResumeIsDeterministic() throws IOException {
+        Dcpu cpu = machine();
+        cpu.upload(new Assembler().assemble(PROGRAM));
+        cpu.runUntil(50000);
+        Snapshot checkpoint = new Snapshot();
+        checkpoint.save(cpu);
+        assertEquals(cpu.cycles, checkpoint.getCycles());
+        byte[] saved = bytes(checkpoint);
+
+        cpu.runUntil(200000);
+        char ticks = cpu.getreg(Dcpu.Reg.Z);
+        assertTrue(ticks > 50);
+        Snapshot end = new Snapshot();
+        end.save(cpu);
+        byte[] expected = bytes(end);
+
+        // resume in the same CPU
+        checkpoint.restore(cpu);
+        assertEquals(checkpoint.getCycles(), cpu.cycles);
+        assertArrayEquals(saved, bytes(checkpoint));
+        cpu.runUntil(200000);
+        end.save(cpu);
+        assertArrayEquals(expected, bytes(end));
+
+        // resume elsewhere, from bytes
+        Dcpu other = machine();
+        Snapshot read = new Snapshot();
+        read.read(Channels.newChannel(new ByteArrayInputStream(saved)));
+        read.restore(other);
+        other.runUntil(200000);
+        assertEquals(ticks, other.getreg(Dcpu.Reg.Z));
+        assertTrue(Arrays.equals(Arrays.copyOf(cpu.mem, Dcpu.RAM_SIZE), Arrays.copyOf(other.mem, Dcpu.RAM_SIZE)));
+        end.save(other);
+        assertArrayEquals(expected, bytes(end));
+    }
+
+    @Test
+    public void testInterruptQueue() {
+        Dcpu cpu = machine();
+        cpu.setreg(Dcpu.Reg.IA, (char) 0x100);
+        cpu.interrupt('a');
+        cpu.interrupt('b');
+        Snapshot snapshot = new Snapshot();
+        snapshot.save(cpu);
+        assertEquals(2, cpu.getInterruptQueue().getDepth()); // not consumed by save
+
+        Dcpu other = machine();
+        snapshot.restore(other);
+        assertEquals(2, other.getInterruptQueue().getDepth());
+        other.step(false);
+        assertEquals(0x100, other.getreg(Dcpu.Reg.PC));
+        assertEquals('a', other.getreg(Dcpu.Reg.A));
+        assertTrue(other.isIntQueuing());
+        assertEquals('b', other.getInterruptQueue().poll());
+    }
+
+    @Test
+    public void testDevicesMustMatch() throws IOException {
+        Dcpu cpu = machine();
+        cpu.cycles = 1234;
+        Snapshot snapshot = new Snapshot();
+        snapshot.save(cpu);
+        Dcpu other = new Dcpu();
+        other.attach(new GenericClock(0x1c6c8b36));
+        try {
+            snapshot.restore(other);
+            fail("device count differs");
+        } catch (IllegalArgumentException expected) {
+        }
+        other.attach(new GenericClock(0x1c6c8b36));
+        try {
+            snapshot.restore(other);
+            fail("second device differs");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(0, other.cycles);
+
+        byte[] data = bytes(snapshot);
+        data[9] = 99; // version
+        try {
+            new Snapshot().read(Channels.newChannel(new ByteArrayInputStream(data)));
+            fail("version is unknown");
+        } catch (IOException expected) {
+        }
+        Snapshot empty = new Snapshot();
+        try {
+            empty.read(Channels.newChannel(new ByteArrayInputStream(Arrays.copyOf(bytes(snapshot), 1000))));
+            fail("snapshot is truncated");
+        } catch (IOException expected) {
+        }
+        assertEquals(0, empty.size());
+        assertFalse(snapshot.size() == 0);
+    }
+}
@@ -0,0 +1,145 @@
+package dcpu;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ThrottleTest {
+
+    private static final long F = Throttle.FRAME_NANOS;
+
+    /**
+     * Time which passes only when told to, or when throttle sleeps
+     */
+    private static class FakeClock implements Throttle.Clock {
+        long now = 1000;
+        int sleeps;
+
+        @Override
+        public long nanoTime() {
+            return now;
+        }
+
+        @Override
+        public void sleepUntil(long deadline) {
+            if (deadline > now) {
+                now = deadline;
+                sleeps++;
+            }
+        }
+    }
+
+    @Test
+    public void testPacing() {
+        FakeClock clock = new FakeClock();
+        Throttle throttle = new Throttle(clock);
+        long start = clock.now;
+        long cycles = 0;
+        throttle.start(cycles, 250000); // not a multiple of frame rate
+        for (int frame = 0; frame < 600; frame++) {
+            long end = throttle.nextFrame(cycles, 250000, false);
+            assertEquals(start + frame * F, clock.now); // frame starts on time
+            assertEquals(frame + 1 == 60 ? 250000 : (frame + 1) * 250000L / 60, end); // rounding doesn't accumulate
+            cycles = end + frame % 3; // last instruction overshoots the frame a bit
+            clock.now += F / 10; // executing takes a tenth of frame
+        }
+        assertEquals(599, clock.sleeps);
+        assertEquals(0, throttle.getLostFrames());
+        assertEquals(throttle.toString(), 250000, throttle.getAchievedFrequency(), 250000 * 0.001);
+    }
+
+    @Test
+    public void testCatchesUpShortLag() {
+        FakeClock clock = new FakeClock();
+        Throttle throttle = new Throttle(clock);
+        long start = clock.now;
+        throttle.start(0, 60000);
+        long cycles = 0;
+        for (int frame = 0; frame < 10; frame++) {
+            cycles = throttle.nextFrame(cycles, 60000, false);
+        }
+        clock.now += 3 * F; // stall shorter than MAX_CATCHUP_FRAMES
+        int sleeps = clock.sleeps;
+        for (int frame = 10; frame < 20; frame++) {
+            cycles = throttle.nextFrame(cycles, 60000, false);
+        }
+        // frames 10-12, due by now, run without waiting, then pacing resumes on the old timeline
+        assertEquals(sleeps + 7, clock.sleeps);
+        assertEquals(start + 19 * F, clock.now);
+        assertEquals(20 * 1000, cycles);
+        assertEquals(0, throttle.getLostFrames());
+    }
+
+    @Test
+    public void testGivesUpLongLag() {
+        FakeClock clock = new FakeClock();
+        Throttle throttle = new Throttle(clock);
+        throttle.start(0, 60000);
+        long cycles = 0;
+        for (int frame = 0; frame < 10; frame++) {
+            cycles = throttle.nextFrame(cycles, 60000, false);
+        }
+        clock.now += 20 * F; // thread was suspended
+        long stalled = clock.now;
+        cycles = throttle.nextFrame(cycles, 60000, false);
+        assertEquals(19, throttle.getLostFrames()); // frame 10 was due 19 frames ago
+        assertEquals(stalled, clock.now); // timeline restarts now, no burst to catch up
+        assertEquals(11 * 1000, cycles);
+        throttle.nextFrame(cycles, 60000, false);
+        assertEquals(stalled + F, clock.now);
+    }
+
+    @Test
+    public void testTurboDoesNotSleep() {
+        FakeClock clock = new FakeClock();
+        Throttle throttle = new Throttle(clock);
+        throttle.start(0, 60000);
+        long cycles = 0;
+        for (int frame = 0; frame < 100; frame++) {
+            cycles = throttle.nextFrame(cycles, 60000, true);
+        }
+        assertEquals(0, clock.sleeps);
+        assertEquals(100 * 1000, cycles);
+    }
+
+    /**
+     * Smoke test of real pacing, with bounds which tolerate a loaded host
+     */
+    @Test
+    public void testHoldsFrequency() throws InterruptedException {
+        final Dcpu cpu = new Dcpu();
+        cpu.upload(new Assembler().assemble(":loop SET PC, loop\n"));
+        cpu.setFrequency(250000);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                cpu.run();
+            }
+        };
+        thread.start();
+        Thread.sleep(1300);
+        cpu.halt = true;
+        thread.join();
+        Throttle throttle = cpu.getThrottle();
+        assertEquals(throttle.toString(), 250000, throttle.getAchievedFrequency(), 250000 * 0.25);
+    }
+
+    @Test
+    public void testTurboIsNotThrottled() throws InterruptedException {
+        final Dcpu cpu = new Dcpu();
+        cpu.upload(new Assembler().assemble(":loop SET PC, loop\n"));
+        cpu.setTurboMode(true);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                cpu.run();
+            }
+        };
+        thread.start();
+        Thread.sleep(200);
+        cpu.halt = true;
+        thread.join();
+        assertTrue(cpu.cycles > Dcpu.DEFAULT_CPU_FREQUENCY);
+    }
+}
@@ -0,0 +1,102 @@
+package dcpu;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TraceFilterTest {
+
+    private static final String PROGRAM = "" +
+            "       SET I, 0\n" +
+            ":loop  ADD I, 1\n" +
+            "       JSR func\n" +
+            "       IFN I, 3\n" +
+            "           SET PC, loop\n" +
+            "       HCF 0\n" +
+            ":func  SET J, 2\n" +
+            ":func.loop SUB J, 1\n" +
+            "       SET PUSH, J\n" +
+            "       SET [0x1000+J], POP\n" +
+            "       IFN J, 0\n" +
+            "           SET PC, func.loop\n" +
+            "       SET PC, POP\n" +
+            ":data  DAT 0\n";
+
+    private Assembler assembler;
+
+    @Before
+    public void setUp() {
+        assembler = new Assembler();
+        assembler.genMap = true;
+    }
+
+    private String trace(String filter) {
+        Dcpu cpu = new Dcpu();
+        cpu.upload(assembler.assemble(PROGRAM));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Tracer tracer = new Tracer(new PrintStream(out));
+        tracer.setFilter(TraceFilter.parse(filter, assembler.asmmap));
+        tracer.install(cpu);
+        cpu.run();
+        return out.toString();
+    }
+
+    private static int lines(String text) {
+        return text.length() == 0 ? 0 : text.split("\n").length;
+    }
+
+    @Test
+    public void testScope() {
+        String trace = trace("func");
+        // per call: SET J + 2 * (SUB, SET PUSH, SET [], IFN) + 1 SET PC + SET PC, POP
+        assertEquals(trace, 3 * (1 + 2 * 4 + 1 + 1), lines(trace));
+        assertFalse(trace, trace.contains("JSR"));
+        assertTrue(trace, trace.contains("SUB J, 1"));
+    }
+
+    @Test
+    public void testClasses() {
+        String calls = trace("calls");
+        String jsr = String.format("0002: JSR 0x%04x\n", (int) assembler.asmmap.symbol("func"));
+        assertEquals(jsr + jsr + jsr, calls);
+        String writes = trace("writes");
+        // JSR, PUSH and [0x1000+J]
+        assertEquals(writes, 3 * (1 + 2 * 2), lines(writes));
+        assertEquals(3 * 2 * 2, lines(trace("writes,func.loop-data"))); // no JSR
+    }
+
+    @Test
+    public void testSampling() {
+        int all = lines(trace(""));
+        assertEquals((all + 4) / 5, lines(trace("1/5")));
+        // loop up to func: ADD, JSR, IFN, SET PC in two passes, ADD, JSR, IFN and HCF in the last one
+        assertEquals(6, lines(trace("loop,1/2")));
+    }
+
+    @Test
+    public void testParse() {
+        assembler.assemble(PROGRAM);
+        TraceFilter filter = TraceFilter.parse("0x10-20, loop ,calls,1/4", assembler.asmmap);
+        assertEquals("0x0010-0x0014,loop,calls,1/4", filter.toString());
+        try {
+            TraceFilter.parse("nowhere", assembler.asmmap);
+            fail("label is unknown");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            TraceFilter.parse("1/0", null);
+            fail("sampling is zero");
+        } catch (IllegalArgumentException expected) {
+        }
+        filter = TraceFilter.parse("0x100", null);
+        assertTrue(filter.accept((char) 0x100, (char) 0));
+        assertFalse(filter.accept((char) 0x101, (char) 0));
+    }
+}
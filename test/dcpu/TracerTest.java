@@ -230,4 +230,31 @@ public class TracerTest {
                         "0013: HCF 0\n";
         assertEquals("trace", expected, baos.toString());
     }
+
+    @Test
+    public void testSubscribe() throws Exception {
+        String src = ":loop ADD a, 1\n" +
+                "IFN a, 3\n" +
+                "SET PC, loop\n" +
+                "SET [0x1000], 0x20\n" +
+                "HCF 0";
+        dcpu.upload(assembler.assemble(src));
+        ByteArrayOutputStream expected = new ByteArrayOutputStream(256);
+        new Tracer(new PrintStream(expected)).install(dcpu);
+        dcpu.run();
+
+        Dcpu dcpu2 = new Dcpu();
+        dcpu2.upload(assembler.assemble(src));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(256);
+        tracer = new Tracer(new PrintStream(baos));
+        ExecutionStream stream = new ExecutionStream(4, 2);
+        tracer.subscribe(dcpu2, stream);
+        stream.install(dcpu2);
+        dcpu2.run();
+        stream.uninstall();
+        for (int i = 0; i < 100 && baos.size() < expected.size(); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals("trace", expected.toString(), baos.toString());
+    }
 }
@@ -0,0 +1,116 @@
+package dcpu.aot;
+
+import dcpu.Assembler;
+import dcpu.Dcpu;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import static dcpu.Dcpu.Reg;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StaticRecompilerTest {
+    private static final String PROGRAM = "" +
+            "       SET SP, 0\n" +
+            "       HWN Z\n" +
+            "       SET I, 0\n" +
+            ":loop  JSR sum\n" +
+            "       IFG I, 5\n" +
+            "       IFL I, 10\n" +
+            "       ADD B, 1\n" +
+            "       ADD I, 1\n" +
+            "       IFN I, 20\n" +
+            "       SET PC, loop\n" +
+            ":halt  SUB PC, 1\n" +
+            ":sum   ADD A, I\n" +
+            "       MUL X, 3\n" +
+            "       SET PUSH, A\n" +
+            "       SET [data], POP\n" +
+            "       SET PC, POP\n" +
+            ":data  DAT 0\n";
+
+    private Assembler assembler;
+
+    @Before
+    public void setUp() {
+        assembler = new Assembler();
+    }
+
+    @Test
+    public void testSameResultsAsInterpreter() throws Exception {
+        char[] bin = assembler.assemble(PROGRAM);
+        CompiledProgram program = compile(new StaticRecompiler(bin, null).generate("", "TestProgram"), "TestProgram");
+
+        Dcpu plain = new Dcpu();
+        plain.upload(bin);
+        plain.run(500);
+
+        Dcpu compiled = new Dcpu();
+        compiled.upload(bin);
+        compiled.setCompiledProgram(program);
+        compiled.run(500);
+
+        assertEquals(20, compiled.getreg(Reg.I));
+        assertEquals(4, compiled.getreg(Reg.B));
+        assertArrayEquals(plain.mem, compiled.mem);
+        assertEquals(plain.cycles, compiled.cycles);
+    }
+
+    @Test
+    public void testOverwrittenCodeIsInterpreted() throws Exception {
+        assembler.genMap = true;
+        char[] bin = assembler.assemble(PROGRAM);
+        CompiledProgram program = compile(new StaticRecompiler(bin, null).generate("", "TestProgram2"), "TestProgram2");
+        Dcpu cpu = new Dcpu();
+        cpu.upload(bin);
+        cpu.mem[assembler.asmmap.symbol("sum")] = Dcpu.gencmd(Dcpu.O_ADD, Dcpu.A_A, Dcpu.A_2);
+        cpu.setCompiledProgram(program);
+        cpu.run(500);
+        assertEquals(40, cpu.getreg(Reg.A));
+    }
+
+    @Test
+    public void testMapEntryPoints() {
+        assembler.genMap = true;
+        char[] bin = assembler.assemble("" +
+                "         SET A, 1\n" +
+                "         SET PC, end\n" +
+                ":table   DAT 0x7c01, 0x0030\n" +
+                ":end     SUB PC, 1\n" +
+                ":handler SET B, 2\n" +
+                "         RFI 0\n");
+        String withMap = new StaticRecompiler(bin, assembler.asmmap).generate("", "WithMap");
+        assertTrue(withMap.contains("case 0x0000:"));
+        assertTrue(withMap.contains("case 0x0005:"));
+        assertTrue(withMap.contains("case 0x0006:")); // code label
+        assertFalse(withMap.contains("case 0x0003:")); // data label
+        String withoutMap = new StaticRecompiler(bin, null).generate("", "WithoutMap");
+        assertFalse(withoutMap.contains("case 0x0006:"));
+    }
+
+    private CompiledProgram compile(String source, String className) throws IOException, ReflectiveOperationException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        Assume.assumeTrue(compiler != null);
+        File dir = File.createTempFile("aot", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        File file = new File(dir, className + ".java");
+        FileWriter writer = new FileWriter(file);
+        writer.write(source);
+        writer.close();
+        String classpath = System.getProperty("java.class.path");
+        assertEquals(0, compiler.run(null, null, null, "-nowarn", "-cp", classpath, "-d", dir.getPath(), file.getPath()));
+        URLClassLoader loader = new URLClassLoader(new URL[]{dir.toURI().toURL()}, getClass().getClassLoader());
+        return (CompiledProgram) loader.loadClass(className).getDeclaredConstructor().newInstance();
+    }
+}
@@ -0,0 +1,47 @@
+package dcpu.apps;
+
+import dcpu.Assembler;
+import dcpu.Dcpu;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BenchmarkRunnerTest {
+
+    @Test
+    public void testCorpusSelfChecks() throws IOException {
+        for (String name : BenchmarkRunner.CORPUS) {
+            for (boolean jit : new boolean[]{false, true}) {
+                Assembler assembler = new Assembler();
+                assembler.genMap = true;
+                char[] binary = assembler.assemble(BenchmarkRunner.corpusSource(name));
+                BenchmarkRunner.Result result = BenchmarkRunner.run(name, binary, 2000000, jit);
+                Dcpu cpu = result.cpu;
+                assertFalse(name, cpu.halt);
+                assertTrue(name, result.instructions > 0 && result.cycles >= 2000000);
+                assertTrue(name, cpu.mem[assembler.asmmap.symbol("rounds")] > 0);
+                Character failures = assembler.asmmap.symbol("failures");
+                if (failures != null) assertEquals(name, 0, cpu.mem[failures]);
+            }
+        }
+    }
+
+    @Test
+    public void testInterruptsAreHandled() throws IOException {
+        Assembler assembler = new Assembler();
+        assembler.genMap = true;
+        char[] binary = assembler.assemble(BenchmarkRunner.corpusSource("interrupts"));
+        Dcpu cpu = BenchmarkRunner.run("interrupts", binary, 500000, false).cpu; // 5 seconds at 100 kHz
+        int counts = assembler.asmmap.symbol("counts");
+        int rounds = cpu.mem[assembler.asmmap.symbol("rounds")];
+        assertTrue(Math.abs(cpu.mem[counts + 1] - rounds) <= 1);
+        assertTrue(Math.abs(cpu.mem[counts + 3] - rounds) <= 1);
+        int ticks = cpu.mem[assembler.asmmap.symbol("ticks")];
+        assertTrue("ticks " + ticks, ticks >= 290 && ticks <= 310);
+        assertFalse(cpu.isOnFire());
+    }
+}
@@ -0,0 +1,109 @@
+package dcpu.jit;
+
+import dcpu.Assembler;
+import dcpu.Dcpu;
+import dcpu.PreListener;
+import org.junit.Before;
+import org.junit.Test;
+
+import static dcpu.Dcpu.Reg;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JitTest {
+    private Assembler assembler;
+
+    @Before
+    public void setUp() {
+        assembler = new Assembler();
+    }
+
+    /**
+     * Runs program with interpreter and with JIT, checks that results are the same and returns JIT cpu
+     */
+    private Dcpu runBoth(String src, int steps) {
+        char[] bin = assembler.assemble(src);
+        Dcpu plain = new Dcpu();
+        plain.upload(bin);
+        plain.run(steps);
+
+        Dcpu jitted = new Dcpu();
+        jitted.setJitEnabled(true);
+        jitted.getJit().setThreshold(1);
+        jitted.upload(bin);
+        jitted.run(steps);
+
+        assertArrayEquals(plain.mem, jitted.mem);
+        assertEquals(plain.cycles, jitted.cycles);
+        return jitted;
+    }
+
+    @Test
+    public void testArithmeticLoop() {
+        Dcpu cpu = runBoth("" +
+                "       SET I, 0\n" +
+                ":loop  ADD A, I\n" +
+                "       MUL B, 3\n" +
+                "       SUB C, [data]\n" +
+                "       ADX X, 0x7fff\n" +
+                "       DVI Y, -3\n" +
+                "       SHR Z, 1\n" +
+                "       STI [J+data], A\n" +
+                "       ADD I, 1\n" +
+                "       IFN I, 20\n" +
+                "       SET PC, loop\n" +
+                "       SUB PC, 1\n" +
+                ":data  DAT 1234\n", 500);
+        assertEquals(20, cpu.getreg(Reg.I));
+        assertTrue(cpu.getJit().getCompiledBlocks() > 0);
+        assertTrue(cpu.getJit().getJittedInstructions() > 0);
+    }
+
+    @Test
+    public void testStackAndSubroutines() {
+        runBoth("" +
+                "       SET SP, 0\n" +
+                ":loop  SET PUSH, A\n" +
+                "       SET PUSH, 0x1234\n" +
+                "       JSR sub\n" +
+                "       SET B, POP\n" +
+                "       ADD A, POP\n" +
+                "       SET PC, loop\n" +
+                ":sub   ADD A, PICK 1\n" +
+                "       SET EX, PEEK\n" +
+                "       SET PC, POP\n", 1000);
+    }
+
+    @Test
+    public void testSelfModifyingBlock() {
+        // the block rewrites its own third instruction, which must not run stale
+        Dcpu cpu = runBoth("" +
+                "       SET X, [newop]\n" +
+                ":loop  ADD I, 1\n" +
+                "       SET [patch], X\n" +
+                ":patch ADD A, 1\n" +
+                "       SET PC, loop\n" +
+                ":newop ADD A, 2\n", 41);
+        assertEquals(20, cpu.getreg(Reg.A));
+    }
+
+    @Test
+    public void testFallbackWithListeners() {
+        Dcpu cpu = new Dcpu();
+        cpu.setJitEnabled(true);
+        cpu.getJit().setThreshold(1);
+        cpu.upload(assembler.assemble(":loop ADD A, 1\nSET PC, loop\n"));
+        final int[] steps = {0};
+        cpu.stepListener.addListener(new PreListener<Character>() {
+            @Override
+            public void preExecute(Character arg) {
+                steps[0]++;
+            }
+        });
+        cpu.run(100);
+        assertEquals(100, steps[0]);
+        assertEquals(50, cpu.getreg(Reg.A));
+        assertEquals(0, cpu.getJit().getCompiledBlocks());
+    }
+}